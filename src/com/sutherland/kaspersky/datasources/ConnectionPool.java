@@ -0,0 +1,674 @@
+package com.sutherland.kaspersky.datasources;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * A process-wide, bounded pool of JDBC connections to a single database. Reports borrow a connection in setupDataSourceConnections() and
+ * return it on close(), so a dashboard tile and its child roster no longer each pay for a fresh TDS handshake.
+ *
+ * The pool reads its JDBC settings and tuning from the same properties file handed to the Helios ConnectionFactory.
+ *
+ * Connections borrowed and never closed would hold their permits forever, so the eviction task also looks at borrowed connections. One
+ * held past the leak warning time is logged once with the stack that borrowed it, and one held past the abandon timeout is logged again
+ * and counted as abandoned. Its owner may still be using it, so it is left open, and its permit comes back only when it is closed.
+ *
+ * An idle timeout, leak warning or abandon timeout of 0 or less turns that check off. The eviction task runs as often as the shortest
+ * check still on, and not at all if every check is off.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class ConnectionPool
+{
+	public final static String DRIVER_PROPERTY = "driver";
+	public final static String URL_PROPERTY = "url";
+	public final static String USER_PROPERTY = "user";
+	public final static String PASSWORD_PROPERTY = "password";
+
+	public final static String MAX_SIZE_PROPERTY = "pool.maxSize";
+	public final static String MAX_WAIT_PROPERTY = "pool.maxWaitMillis";
+	public final static String IDLE_TIMEOUT_PROPERTY = "pool.idleTimeoutMillis";
+	public final static String VALIDATION_INTERVAL_PROPERTY = "pool.validationIntervalMillis";
+	public final static String VALIDATION_QUERY_PROPERTY = "pool.validationQuery";
+	public final static String STATEMENT_CACHE_SIZE_PROPERTY = "pool.statementCacheSize";
+	public final static String FETCH_SIZE_PROPERTY = "pool.fetchSize";
+	public final static String PARTITION_THREADS_PROPERTY = "pool.partitionThreads";
+	public final static String QUERY_CACHE_TTL_PROPERTY = "pool.queryCache.ttlMillis";
+	public final static String QUERY_CACHE_MAX_ROWS_PROPERTY = "pool.queryCache.maxRows";
+	public final static String LEAK_WARNING_PROPERTY = "pool.leakWarningMillis";
+	public final static String ABANDON_TIMEOUT_PROPERTY = "pool.abandonTimeoutMillis";
+
+	private final static String DEFAULT_DRIVER = "net.sourceforge.jtds.jdbc.Driver";
+	private final static int DEFAULT_MAX_SIZE = 20;
+	private final static long DEFAULT_MAX_WAIT = 10000;
+	private final static long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+	private final static long DEFAULT_VALIDATION_INTERVAL = 30 * 1000;
+	private final static String DEFAULT_VALIDATION_QUERY = "SELECT 1";
+	private final static int DEFAULT_STATEMENT_CACHE_SIZE = 50;
+	private final static int DEFAULT_FETCH_SIZE = 1000;
+	private final static int DEFAULT_PARTITION_THREADS = 4;
+	private final static long DEFAULT_QUERY_CACHE_TTL = 5 * 60 * 1000;
+	private final static long DEFAULT_QUERY_CACHE_MAX_ROWS = 100000;
+	private final static long DEFAULT_LEAK_WARNING = 5 * 60 * 1000;
+	private final static long DEFAULT_ABANDON_TIMEOUT = 30 * 60 * 1000;
+
+	private final static HashMap<String, ConnectionPool> pools = new HashMap<String, ConnectionPool>();
+
+	private final static Timer evictionTimer = new Timer("ConnectionPool-eviction", true);
+
+	private final static Logger logger = Logger.getLogger(ConnectionPool.class);
+
+	private final String url;
+	private final Properties connectionProperties;
+	private final int maxSize;
+	private final long maxWait;
+	private final long idleTimeout;
+	private final long validationInterval;
+	private final String validationQuery;
+	private final int statementCacheSize;
+	private final int fetchSize;
+	private final int partitionThreads;
+	private final long leakWarning;
+	private final long abandonTimeout;
+	private ExecutorService partitionExecutor;
+	private final QueryCache queryCache;
+
+	private final Semaphore permits;
+	private final ArrayDeque<PooledConnection> idleConnections;
+	private final Set<PooledConnection> borrowedConnections;
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong destroyed = new AtomicLong();
+	private final AtomicLong borrowed = new AtomicLong();
+	private final AtomicLong waitTimeouts = new AtomicLong();
+	private final AtomicLong totalWaitMillis = new AtomicLong();
+	private final AtomicLong validationFailures = new AtomicLong();
+	private final AtomicLong abandoned = new AtomicLong();
+
+	/**
+	 * Build a pool from the given properties.
+	 *
+	 * @param props	The JDBC and pool settings.
+	 *
+	 * @throws SQLException	If the JDBC driver cannot be loaded.
+	 */
+	private ConnectionPool(Properties props) throws SQLException
+	{
+		String driver = props.getProperty(DRIVER_PROPERTY, DEFAULT_DRIVER);
+
+		try
+		{
+			Class.forName(driver);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new SQLException("Could not load JDBC driver " + driver, e);
+		}
+
+		url = props.getProperty(URL_PROPERTY);
+
+		if(url == null)
+		{
+			throw new SQLException("No " + URL_PROPERTY + " defined for connection pool");
+		}
+
+		connectionProperties = new Properties();
+		if(props.getProperty(USER_PROPERTY) != null)
+		{
+			connectionProperties.setProperty("user", props.getProperty(USER_PROPERTY));
+		}
+		if(props.getProperty(PASSWORD_PROPERTY) != null)
+		{
+			connectionProperties.setProperty("password", props.getProperty(PASSWORD_PROPERTY));
+		}
+
+		maxSize = Integer.parseInt(props.getProperty(MAX_SIZE_PROPERTY, "" + DEFAULT_MAX_SIZE));
+		maxWait = Long.parseLong(props.getProperty(MAX_WAIT_PROPERTY, "" + DEFAULT_MAX_WAIT));
+		idleTimeout = getCheckMillis(props, IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT);
+		validationInterval = Long.parseLong(props.getProperty(VALIDATION_INTERVAL_PROPERTY, "" + DEFAULT_VALIDATION_INTERVAL));
+		validationQuery = props.getProperty(VALIDATION_QUERY_PROPERTY, DEFAULT_VALIDATION_QUERY);
+		statementCacheSize = Integer.parseInt(props.getProperty(STATEMENT_CACHE_SIZE_PROPERTY, "" + DEFAULT_STATEMENT_CACHE_SIZE));
+		fetchSize = Integer.parseInt(props.getProperty(FETCH_SIZE_PROPERTY, "" + DEFAULT_FETCH_SIZE));
+		partitionThreads = Integer.parseInt(props.getProperty(PARTITION_THREADS_PROPERTY, "" + DEFAULT_PARTITION_THREADS));
+		leakWarning = getCheckMillis(props, LEAK_WARNING_PROPERTY, DEFAULT_LEAK_WARNING);
+		abandonTimeout = getCheckMillis(props, ABANDON_TIMEOUT_PROPERTY, DEFAULT_ABANDON_TIMEOUT);
+
+		queryCache = new QueryCache
+		(
+				Long.parseLong(props.getProperty(QUERY_CACHE_TTL_PROPERTY, "" + DEFAULT_QUERY_CACHE_TTL)),
+				Long.parseLong(props.getProperty(QUERY_CACHE_MAX_ROWS_PROPERTY, "" + DEFAULT_QUERY_CACHE_MAX_ROWS))
+		);
+
+		permits = new Semaphore(maxSize, true);
+		idleConnections = new ArrayDeque<PooledConnection>(maxSize);
+		borrowedConnections = Collections.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+	}
+
+	/**
+	 * Read the time one of the eviction task's checks waits for. A time of 0 or less turns the check off.
+	 *
+	 * @param props			The pool settings.
+	 * @param property		The check's property.
+	 * @param defaultValue	The time used if the property is not set.
+	 *
+	 * @return	The time in millis, or 0 if the check is off.
+	 */
+	private static long getCheckMillis(Properties props, String property, long defaultValue)
+	{
+		long retval = Long.parseLong(props.getProperty(property, "" + defaultValue));
+
+		if(retval <= 0)
+		{
+			logger.log(Level.WARN, "Connection pool " + property + " is " + retval + ", so that check is turned off");
+
+			retval = 0;
+		}
+
+		return retval;
+	}
+
+	/**
+	 * The period of the eviction task: the shortest time among the checks that are on.
+	 *
+	 * @return	The period in millis, or 0 if every check is off.
+	 */
+	private long getCheckInterval()
+	{
+		long retval = 0;
+
+		for(long checkMillis : new long[]{idleTimeout, leakWarning, abandonTimeout})
+		{
+			if(checkMillis > 0 && (retval == 0 || checkMillis < retval))
+			{
+				retval = checkMillis;
+			}
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Retrieve the shared pool for a database properties file, creating it on first use.
+	 *
+	 * @param propFile	The database properties file, typically one of the DatabaseConfigs entries.
+	 *
+	 * @return	The pool for that database.
+	 *
+	 * @throws SQLException	If the properties file cannot be read or the driver cannot be loaded.
+	 */
+	public static ConnectionPool getPool(String propFile) throws SQLException
+	{
+		synchronized(pools)
+		{
+			ConnectionPool retval = pools.get(propFile);
+
+			if(retval == null)
+			{
+				Properties props = new Properties();
+
+				InputStream in = null;
+				try
+				{
+					in = new FileInputStream(propFile);
+					props.load(in);
+				}
+				catch(IOException e)
+				{
+					throw new SQLException("Could not read database properties file " + propFile, e);
+				}
+				finally
+				{
+					if(in != null)
+					{
+						try
+						{
+							in.close();
+						}
+						catch (IOException e)
+						{}
+					}
+				}
+
+				retval = new ConnectionPool(props);
+				pools.put(propFile, retval);
+
+				long checkInterval = retval.getCheckInterval();
+				if(checkInterval > 0)
+				{
+					evictionTimer.schedule(retval.new EvictionTask(), checkInterval, checkInterval);
+				}
+
+				logger.log(Level.INFO, "Created connection pool for " + propFile + " with max size " + retval.maxSize);
+			}
+
+			return retval;
+		}
+	}
+
+	/**
+	 * Borrow a connection from the pool, waiting up to the configured max wait if the pool is exhausted. Idle connections are validated
+	 * before being handed out if they have not been used recently. Closing the returned connection hands it back to the pool.
+	 *
+	 * @return	A validated connection.
+	 *
+	 * @throws SQLException	If no connection became available in time, or a new connection could not be opened.
+	 */
+	public PooledConnection getConnection() throws SQLException
+	{
+		long waitStart = System.currentTimeMillis();
+
+		try
+		{
+			if(!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS))
+			{
+				waitTimeouts.incrementAndGet();
+				throw new SQLException("Timed out after " + maxWait + "ms waiting for a pooled connection");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a pooled connection", e);
+		}
+
+		totalWaitMillis.addAndGet(System.currentTimeMillis() - waitStart);
+
+		return borrow();
+	}
+
+	/**
+	 * Borrow a connection from the pool only if one is free right away. Callers already holding a connection use this to take more, since
+	 * waiting for a permit while holding one can deadlock when every permit is held the same way.
+	 *
+	 * @return	A validated connection, or null if the pool is exhausted.
+	 *
+	 * @throws SQLException	If a new connection could not be opened.
+	 */
+	public PooledConnection tryGetConnection() throws SQLException
+	{
+		PooledConnection retval = null;
+
+		if(permits.tryAcquire())
+		{
+			retval = borrow();
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Hand out an idle connection, or open a new one, for a permit already acquired. The permit is released if no connection can be had.
+	 */
+	private PooledConnection borrow() throws SQLException
+	{
+		PooledConnection retval = null;
+
+		try
+		{
+			PooledConnection candidate;
+
+			while(retval == null && (candidate = pollIdle()) != null)
+			{
+				if(System.currentTimeMillis() - candidate.getLastReturned() < validationInterval || isValid(candidate.getConnection()))
+				{
+					retval = candidate;
+				}
+				else
+				{
+					validationFailures.incrementAndGet();
+					destroy(candidate);
+				}
+			}
+
+			if(retval == null)
+			{
+				retval = new PooledConnection(this, DriverManager.getConnection(url, connectionProperties));
+				created.incrementAndGet();
+			}
+		}
+		finally
+		{
+			if(retval == null)
+			{
+				permits.release();
+			}
+		}
+
+		borrowed.incrementAndGet();
+		retval.setBorrowed();
+		borrowedConnections.add(retval);
+
+		return retval;
+	}
+
+	/**
+	 * Return a borrowed connection to the pool. Broken connections are discarded rather than pooled.
+	 *
+	 * @param connection	The connection being returned.
+	 */
+	void release(PooledConnection connection)
+	{
+		borrowedConnections.remove(connection);
+
+		try
+		{
+			boolean reusable = false;
+
+			try
+			{
+				Connection jdbcConnection = connection.getConnection();
+
+				if(!jdbcConnection.isClosed())
+				{
+					if(!jdbcConnection.getAutoCommit())
+					{
+						jdbcConnection.rollback();
+						jdbcConnection.setAutoCommit(true);
+					}
+
+					reusable = true;
+				}
+			}
+			catch(SQLException e)
+			{
+				logger.log(Level.WARN, "Discarding pooled connection that failed on return: " + e.getMessage());
+			}
+
+			if(reusable)
+			{
+				synchronized(idleConnections)
+				{
+					idleConnections.push(connection);
+				}
+			}
+			else
+			{
+				destroy(connection);
+			}
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	private PooledConnection pollIdle()
+	{
+		synchronized(idleConnections)
+		{
+			//most recently returned first, so the least used connections age out
+			return idleConnections.poll();
+		}
+	}
+
+	private boolean isValid(Connection connection)
+	{
+		boolean retval = false;
+
+		Statement statement = null;
+		try
+		{
+			statement = connection.createStatement();
+			ResultSet rs = statement.executeQuery(validationQuery);
+			rs.close();
+
+			retval = true;
+		}
+		catch(SQLException e)
+		{
+			logger.log(Level.WARN, "Pooled connection failed validation: " + e.getMessage());
+		}
+		finally
+		{
+			if(statement != null)
+			{
+				try
+				{
+					statement.close();
+				}
+				catch (SQLException e)
+				{}
+			}
+		}
+
+		return retval;
+	}
+
+	private void destroy(PooledConnection connection)
+	{
+		destroyed.incrementAndGet();
+
+		connection.clearStatementCache();
+
+		try
+		{
+			connection.getConnection().close();
+		}
+		catch (SQLException e)
+		{
+			logger.log(Level.WARN, "Error closing pooled connection: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Close every connection idle for longer than the idle timeout, unless the idle timeout is off.
+	 */
+	void evictIdle()
+	{
+		long now = System.currentTimeMillis();
+
+		int evicted = 0;
+		if(idleTimeout > 0)
+		{
+			synchronized(idleConnections)
+			{
+				Iterator<PooledConnection> it = idleConnections.iterator();
+				PooledConnection connection;
+				while(it.hasNext())
+				{
+					connection = it.next();
+
+					if(now - connection.getLastReturned() >= idleTimeout)
+					{
+						it.remove();
+						destroy(connection);
+						evicted++;
+					}
+				}
+			}
+		}
+
+		if(evicted > 0)
+		{
+			logger.log(Level.INFO, "Evicted " + evicted + " idle pooled connections");
+		}
+	}
+
+	/**
+	 * Log connections borrowed for longer than the leak warning time, and count those borrowed for longer than the abandon timeout as
+	 * abandoned. Each is reported once per borrow. Neither is closed here, since its owner may still be using it; its permit comes back
+	 * when it is closed.
+	 */
+	void checkBorrowed()
+	{
+		long now = System.currentTimeMillis();
+
+		long heldMillis;
+		for(PooledConnection connection : borrowedConnections)
+		{
+			heldMillis = now - connection.getBorrowedAt();
+
+			if(abandonTimeout > 0 && heldMillis >= abandonTimeout)
+			{
+				if(connection.markAbandonReported())
+				{
+					abandoned.incrementAndGet();
+
+					logger.log(Level.ERROR, "Pooled connection abandoned, still borrowed after " + heldMillis + "ms; it stays open until closed", connection.getBorrower());
+				}
+			}
+			else if(leakWarning > 0 && heldMillis >= leakWarning && connection.markLeakReported())
+			{
+				logger.log(Level.WARN, "Pooled connection still borrowed after " + heldMillis + "ms, possibly never closed", connection.getBorrower());
+			}
+		}
+	}
+
+	/**
+	 * @return	The number of connections currently borrowed.
+	 */
+	public int getActiveCount()
+	{
+		return maxSize - permits.availablePermits();
+	}
+
+	/**
+	 * @return	The number of open connections waiting in the pool.
+	 */
+	public int getIdleCount()
+	{
+		synchronized(idleConnections)
+		{
+			return idleConnections.size();
+		}
+	}
+
+	/**
+	 * @return	The maximum number of connections the pool will hand out at once.
+	 */
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * @return	The number of prepared statements each connection keeps open for reuse.
+	 */
+	public int getStatementCacheSize()
+	{
+		return statementCacheSize;
+	}
+
+	/**
+	 * @return	The default number of rows a cursor pulls from the server per round trip.
+	 */
+	public int getFetchSize()
+	{
+		return fetchSize;
+	}
+
+	/**
+	 * @return	The number of date range partitions queried at once on this pool's connections.
+	 */
+	public int getPartitionThreads()
+	{
+		return partitionThreads;
+	}
+
+	/**
+	 * The daemon threads that run date range partitions for this pool, started on first use. Each partition borrows its own connection,
+	 * so the thread count is kept well under the pool's max size.
+	 *
+	 * @return	The partition executor.
+	 */
+	synchronized ExecutorService getPartitionExecutor()
+	{
+		if(partitionExecutor == null)
+		{
+			partitionExecutor = Executors.newFixedThreadPool(partitionThreads, new ThreadFactory()
+			{
+				private int threadCount = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable task)
+				{
+					Thread retval = new Thread(task, "ConnectionPool-partition-" + (++threadCount));
+					retval.setDaemon(true);
+
+					return retval;
+				}
+			});
+		}
+
+		return partitionExecutor;
+	}
+
+	/**
+	 * @return	The query result cache shared by this pool's connections.
+	 */
+	public QueryCache getQueryCache()
+	{
+		return queryCache;
+	}
+
+	/**
+	 * Pool metrics, in the same name => value shape as the per-connection query statistics.
+	 *
+	 * @return	The pool metrics.
+	 */
+	public LinkedHashMap<String, String> getStatistics()
+	{
+		LinkedHashMap<String, String> retval = new LinkedHashMap<String, String>();
+
+		long borrowCount = borrowed.get();
+
+		retval.put("Max Size", "" + maxSize);
+		retval.put("Active", "" + getActiveCount());
+		retval.put("Idle", "" + getIdleCount());
+		retval.put("Waiting", "" + permits.getQueueLength());
+		retval.put("Created", "" + created.get());
+		retval.put("Destroyed", "" + destroyed.get());
+		retval.put("Borrowed", "" + borrowCount);
+		retval.put("Partition Threads", "" + partitionThreads);
+		retval.put("Wait Timeouts", "" + waitTimeouts.get());
+		retval.put("Validation Failures", "" + validationFailures.get());
+		retval.put("Abandoned", "" + abandoned.get());
+		retval.put("Average Wait (ms)", "" + (borrowCount > 0 ? (double)totalWaitMillis.get() / borrowCount : 0.0));
+		retval.putAll(queryCache.getStatistics());
+
+		return retval;
+	}
+
+	private final class EvictionTask extends TimerTask
+	{
+		@Override
+		public void run()
+		{
+			try
+			{
+				evictIdle();
+				checkBorrowed();
+			}
+			catch(Exception e)
+			{
+				logger.log(Level.ERROR, "Error checking pooled connections: " + e.getMessage());
+			}
+		}
+	}
+}
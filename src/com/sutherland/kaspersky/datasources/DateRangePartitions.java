@@ -0,0 +1,272 @@
+package com.sutherland.kaspersky.datasources;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Splits a report's [startDate, endDate) range into day or week sized partitions and runs a query against each partition, spreading them
+ * over the caller's connection and whatever spare pooled connections there are, in parallel. Each partition produces a partial result,
+ * and the partials are handed back in date order for the caller to merge.
+ *
+ * Ranges of up to a week are split by day and longer ranges by week, so a quarterly or yearly report becomes a few dozen small queries
+ * spread over the pool's partition threads instead of one long scan. The caller already holds a connection, so spare connections are only
+ * taken if the pool has them free right away: waiting for one could deadlock once every connection is held by a report doing the same.
+ * With no spare connections, every partition runs on the caller's connection in turn.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class DateRangePartitions
+{
+	/**
+	 * Ranges spanning up to this many days are partitioned by day, longer ranges by week.
+	 */
+	public final static int DAILY_PARTITION_LIMIT = 7;
+
+	private final static int WEEK_DAYS = 7;
+
+	/**
+	 * A query run against one partition of a date range.
+	 *
+	 * @param <T>	The partial result type.
+	 */
+	public interface PartitionTask<T>
+	{
+		/**
+		 * Run the query over one partition.
+		 *
+		 * @param dbConnection	The connection to query on. Only valid for the duration of the call.
+		 * @param startDate		The start of the partition, inclusive.
+		 * @param endDate		The end of the partition, exclusive.
+		 *
+		 * @return	The partial result for the partition.
+		 *
+		 * @throws SQLException	If the query fails.
+		 */
+		T run(PooledConnection dbConnection, Timestamp startDate, Timestamp endDate) throws SQLException;
+	}
+
+	private DateRangePartitions()
+	{}
+
+	/**
+	 * Split a range into partitions on midnight boundaries. The first and last partitions may be shorter than a full day or week.
+	 *
+	 * @param startDate	The start of the range, inclusive.
+	 * @param endDate	The end of the range, exclusive.
+	 *
+	 * @return	The [start, end) pairs, in date order. Empty if the range is empty.
+	 */
+	public static ArrayList<Timestamp[]> partition(Timestamp startDate, Timestamp endDate)
+	{
+		ArrayList<Timestamp[]> retval = new ArrayList<Timestamp[]>();
+
+		long spanDays = (endDate.getTime() - startDate.getTime()) / (24 * 60 * 60 * 1000);
+		int partitionDays = (spanDays <= DAILY_PARTITION_LIMIT) ? 1 : WEEK_DAYS;
+
+		GregorianCalendar boundary = new GregorianCalendar();
+		boundary.setTimeInMillis(startDate.getTime());
+		boundary.set(GregorianCalendar.HOUR_OF_DAY, 0);
+		boundary.set(GregorianCalendar.MINUTE, 0);
+		boundary.set(GregorianCalendar.SECOND, 0);
+		boundary.set(GregorianCalendar.MILLISECOND, 0);
+
+		Timestamp partitionStart = startDate;
+		Timestamp partitionEnd;
+		while(partitionStart.before(endDate))
+		{
+			//calendar days rather than fixed millis, so partitions stay on midnight across daylight saving changes
+			boundary.add(GregorianCalendar.DAY_OF_MONTH, partitionDays);
+
+			partitionEnd = new Timestamp(Math.min(boundary.getTimeInMillis(), endDate.getTime()));
+
+			retval.add(new Timestamp[]{partitionStart, partitionEnd});
+
+			partitionStart = partitionEnd;
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Run a task over every partition of a range. The partitions are dealt out in turn to lanes: the caller's connection in the calling
+	 * thread, and one lane per spare connection the pool has free, up to its partition threads, each run on a partition thread. Query
+	 * timings from the spare connections are copied into the caller's connection statistics.
+	 *
+	 * @param dbConnection	The caller's connection.
+	 * @param startDate		The start of the range, inclusive.
+	 * @param endDate		The end of the range, exclusive.
+	 * @param task			The query to run per partition.
+	 *
+	 * @return	The partial results, in date order.
+	 *
+	 * @throws SQLException	If any partition fails. The remaining partitions are cancelled.
+	 */
+	public static <T> ArrayList<T> run(PooledConnection dbConnection, Timestamp startDate, Timestamp endDate, PartitionTask<T> task) throws SQLException
+	{
+		ArrayList<T> retval = new ArrayList<T>();
+
+		ArrayList<Timestamp[]> partitions = partition(startDate, endDate);
+
+		if(partitions.size() <= 1)
+		{
+			retval.add(task.run(dbConnection, startDate, endDate));
+		}
+		else
+		{
+			ConnectionPool pool = dbConnection.getPool();
+
+			ArrayList<PartitionLane<T>> lanes = new ArrayList<PartitionLane<T>>();
+			ArrayList<Future<ArrayList<T>>> futures = new ArrayList<Future<ArrayList<T>>>();
+
+			boolean finished = false;
+			try
+			{
+				//never wait for a spare connection, the caller's own is enough to get through every partition
+				PooledConnection spareConnection;
+				while(lanes.size() < Math.min(partitions.size() - 1, pool.getPartitionThreads()) && (spareConnection = pool.tryGetConnection()) != null)
+				{
+					lanes.add(new PartitionLane<T>(spareConnection, task));
+				}
+
+				//lane 0 is the caller's, partition i goes to lane i % laneCount
+				int laneCount = lanes.size() + 1;
+				ArrayList<Timestamp[]> callerPartitions = new ArrayList<Timestamp[]>();
+
+				for(int i = 0; i < partitions.size(); i++)
+				{
+					if(i % laneCount == 0)
+					{
+						callerPartitions.add(partitions.get(i));
+					}
+					else
+					{
+						lanes.get(i % laneCount - 1).partitions.add(partitions.get(i));
+					}
+				}
+
+				for(PartitionLane<T> lane : lanes)
+				{
+					futures.add(pool.getPartitionExecutor().submit(lane));
+				}
+
+				ArrayList<T> callerPartials = new ArrayList<T>();
+				for(Timestamp[] partition : callerPartitions)
+				{
+					callerPartials.add(task.run(dbConnection, partition[0], partition[1]));
+				}
+
+				ArrayList<ArrayList<T>> lanePartials = new ArrayList<ArrayList<T>>();
+				for(int i = 0; i < futures.size(); i++)
+				{
+					lanePartials.add(futures.get(i).get());
+
+					dbConnection.addStatistics("Partition connection " + (i + 1), lanes.get(i).statistics);
+				}
+
+				for(int i = 0; i < partitions.size(); i++)
+				{
+					retval.add((i % laneCount == 0) ? callerPartials.get(i / laneCount) : lanePartials.get(i % laneCount - 1).get(i / laneCount));
+				}
+
+				finished = true;
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted waiting for date range partitions", e);
+			}
+			catch(ExecutionException e)
+			{
+				if(e.getCause() instanceof SQLException)
+				{
+					throw (SQLException)e.getCause();
+				}
+
+				throw new SQLException("Error querying date range partition: " + e.getCause(), e.getCause());
+			}
+			finally
+			{
+				if(!finished)
+				{
+					for(Future<ArrayList<T>> future : futures)
+					{
+						future.cancel(true);
+					}
+
+					//lanes that never started still hold their spare connection
+					for(PartitionLane<T> lane : lanes)
+					{
+						lane.abandon();
+					}
+				}
+			}
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Runs a run of partitions in turn on a spare connection, keeps the connection's query timings, and returns the connection.
+	 */
+	private final static class PartitionLane<T> implements Callable<ArrayList<T>>
+	{
+		private final PooledConnection dbConnection;
+		private final PartitionTask<T> task;
+		private final ArrayList<Timestamp[]> partitions;
+		private final LinkedHashMap<String, String> statistics;
+		private final AtomicBoolean started;
+
+		PartitionLane(PooledConnection dbConnection, PartitionTask<T> task)
+		{
+			this.dbConnection = dbConnection;
+			this.task = task;
+			this.partitions = new ArrayList<Timestamp[]>();
+			this.statistics = new LinkedHashMap<String, String>();
+			this.started = new AtomicBoolean();
+		}
+
+		@Override
+		public ArrayList<T> call() throws SQLException
+		{
+			ArrayList<T> retval = new ArrayList<T>();
+
+			if(started.compareAndSet(false, true))
+			{
+				try
+				{
+					for(Timestamp[] partition : partitions)
+					{
+						retval.add(task.run(dbConnection, partition[0], partition[1]));
+					}
+
+					statistics.putAll(dbConnection.getStatistics());
+				}
+				finally
+				{
+					dbConnection.close();
+				}
+			}
+
+			return retval;
+		}
+
+		/**
+		 * Return the connection if the lane has not started, since it will not run now.
+		 */
+		void abandon()
+		{
+			if(started.compareAndSet(false, true))
+			{
+				dbConnection.close();
+			}
+		}
+	}
+}
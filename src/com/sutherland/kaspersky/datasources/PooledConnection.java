@@ -0,0 +1,449 @@
+package com.sutherland.kaspersky.datasources;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * A connection borrowed from a ConnectionPool. Offers the getStatistics/close surface the reports used on RemoteConnection, but close()
+ * hands the underlying JDBC connection back to the pool instead of tearing it down. Queries are prepared once per connection and reused
+ * with new bind parameters on later runs. Only runRangeQuery results go through the pool's QueryCache: they are served from it while
+ * fresh, and kept without expiry once their range ends before the ingest watermark. Rows read through openCursor are never cached.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class PooledConnection
+{
+	private final ConnectionPool pool;
+	private final Connection connection;
+	private final LinkedHashMap<String, String> statistics;
+	private final StatementCache statementCache;
+	private long statementsPrepared;
+	private long statementCacheHits;
+	private long lastReturned;
+	private boolean borrowed;
+	private long borrowedAt;
+	private Throwable borrower;
+	private boolean leakReported;
+	private boolean abandonReported;
+
+	/**
+	 * Wrap a JDBC connection owned by a pool.
+	 *
+	 * @param pool			The owning pool.
+	 * @param connection	The JDBC connection.
+	 */
+	PooledConnection(ConnectionPool pool, Connection connection)
+	{
+		this.pool = pool;
+		this.connection = connection;
+		this.statistics = new LinkedHashMap<String, String>();
+		this.statementCache = new StatementCache(pool.getStatementCacheSize());
+		this.lastReturned = System.currentTimeMillis();
+	}
+
+	/**
+	 * Run a query over a date range and return every row, with each column as a String. Null columns are returned as empty strings.
+	 * 
+	 * The result is cached in the pool's QueryCache for its time to live. If the range ends before the pool's ingest watermark its data
+	 * can no longer change, so the result is cached without expiry.
+	 *
+	 * @param rangeEnd		The end of the date range the query covers.
+	 * @param query			The query to run, with ? placeholders for each parameter.
+	 * @param parameters	The bind parameters, in placeholder order.
+	 *
+	 * @return	The result rows.
+	 *
+	 * @throws SQLException	If the query failed. Failed queries are not cached.
+	 */
+	public ArrayList<String[]> runRangeQuery(Timestamp rangeEnd, String query, Object... parameters) throws SQLException
+	{
+		return runCachedQuery(rangeEnd.getTime(), query, parameters);
+	}
+
+	private ArrayList<String[]> runCachedQuery(long rangeEnd, String query, Object... parameters) throws SQLException
+	{
+		ArrayList<String[]> retval;
+
+		QueryCache queryCache = pool.getQueryCache();
+		String key = QueryCache.getKey(query, parameters);
+
+		ArrayList<String[]> cachedRows = queryCache.get(key);
+
+		if(cachedRows != null)
+		{
+			//the cached rows are shared with other connections, so hand out copies
+			retval = new ArrayList<String[]>(cachedRows.size());
+			for(String[] row : cachedRows)
+			{
+				retval.add(row.clone());
+			}
+
+			statistics.put(query, retval.size() + " rows from cache");
+		}
+		else
+		{
+			long start = System.currentTimeMillis();
+
+			retval = executeQuery(query, parameters);
+
+			ArrayList<String[]> rowsToCache = new ArrayList<String[]>(retval.size());
+			for(String[] row : retval)
+			{
+				rowsToCache.add(row.clone());
+			}
+
+			queryCache.put(key, rowsToCache, rangeEnd);
+
+			recordStatistics(query, retval.size(), start);
+		}
+
+		return retval;
+	}
+
+	private ArrayList<String[]> executeQuery(String query, Object... parameters) throws SQLException
+	{
+		ArrayList<String[]> retval = new ArrayList<String[]>();
+
+		ResultSet rs = null;
+		try
+		{
+			rs = prepare(query, parameters).executeQuery();
+
+			int columnCount = rs.getMetaData().getColumnCount();
+			String[] row;
+			String value;
+			while(rs.next())
+			{
+				row = new String[columnCount];
+
+				for(int i = 0; i < columnCount; i++)
+				{
+					value = rs.getString(i + 1);
+					row[i] = (value == null) ? "" : value;
+				}
+
+				retval.add(row);
+			}
+		}
+		finally
+		{
+			closeResultSet(rs);
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Run a query and stream its rows through a forward-only cursor, using the pool's default fetch size.
+	 *
+	 * @param query			The query to run, with ? placeholders for each parameter.
+	 * @param parameters	The bind parameters, in placeholder order.
+	 *
+	 * @return	An open cursor. The caller must close it before running another query on this connection.
+	 *
+	 * @throws SQLException	If the query could not be run.
+	 */
+	public RowCursor openCursor(String query, Object... parameters) throws SQLException
+	{
+		return openCursor(pool.getFetchSize(), query, parameters);
+	}
+
+	/**
+	 * Run a query and stream its rows through a forward-only cursor.
+	 *
+	 * @param fetchSize		The number of rows to pull from the server per round trip.
+	 * @param query			The query to run, with ? placeholders for each parameter.
+	 * @param parameters	The bind parameters, in placeholder order.
+	 *
+	 * @return	An open cursor. The caller must close it before running another query on this connection.
+	 *
+	 * @throws SQLException	If the query could not be run.
+	 */
+	public RowCursor openCursor(int fetchSize, String query, Object... parameters) throws SQLException
+	{
+		long start = System.currentTimeMillis();
+
+		PreparedStatement statement = prepare(query, parameters);
+		statement.setFetchSize(fetchSize);
+
+		return new RowCursor(this, query, statement.executeQuery(), start);
+	}
+
+	/**
+	 * Retrieve the cached prepared statement for a query, preparing it on first use, and bind the parameters.
+	 *
+	 * @param query			The query, with ? placeholders.
+	 * @param parameters	The bind parameters.
+	 *
+	 * @return	The bound statement, owned by the cache. Callers must not close it.
+	 *
+	 * @throws SQLException	If the statement could not be prepared or bound.
+	 */
+	PreparedStatement prepare(String query, Object... parameters) throws SQLException
+	{
+		PreparedStatement retval = statementCache.get(query);
+
+		if(retval == null)
+		{
+			retval = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statementCache.put(query, retval);
+			statementsPrepared++;
+		}
+		else
+		{
+			retval.clearParameters();
+			statementCacheHits++;
+		}
+
+		for(int i = 0; i < parameters.length; i++)
+		{
+			retval.setObject(i + 1, parameters[i]);
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Convert a report date parameter, either yyyy-MM-dd or yyyy-MM-dd HH:mm:ss, into a bindable timestamp.
+	 *
+	 * @param sqlDate	The date string.
+	 *
+	 * @return	The timestamp.
+	 */
+	public static Timestamp toTimestamp(String sqlDate)
+	{
+		String date = sqlDate.trim();
+
+		if(date.length() == 10)
+		{
+			date += " 00:00:00";
+		}
+
+		return Timestamp.valueOf(date);
+	}
+
+	void recordStatistics(String query, long rows, long start)
+	{
+		statistics.put(query, rows + " rows in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	static void closeResultSet(ResultSet rs)
+	{
+		if(rs != null)
+		{
+			try
+			{
+				rs.close();
+			}
+			catch (SQLException e)
+			{}
+		}
+	}
+
+	/**
+	 * Close every cached statement. Called by the pool before the underlying connection is discarded.
+	 */
+	void clearStatementCache()
+	{
+		for(PreparedStatement statement : statementCache.values())
+		{
+			try
+			{
+				statement.close();
+			}
+			catch (SQLException e)
+			{}
+		}
+
+		statementCache.clear();
+	}
+
+	/**
+	 * @return	The query result cache shared by the pool's connections.
+	 */
+	public QueryCache getQueryCache()
+	{
+		return pool.getQueryCache();
+	}
+
+	/**
+	 * Timings of the queries run since this connection was borrowed.
+	 *
+	 * @return	Query => timing map.
+	 */
+	public LinkedHashMap<String, String> getStatistics()
+	{
+		return statistics;
+	}
+
+	/**
+	 * @return	The number of statements this connection has prepared over its lifetime.
+	 */
+	public long getStatementsPrepared()
+	{
+		return statementsPrepared;
+	}
+
+	/**
+	 * @return	The number of query runs served by an already prepared statement.
+	 */
+	public long getStatementCacheHits()
+	{
+		return statementCacheHits;
+	}
+
+	/**
+	 * Return the connection to its pool. The connection must not be used afterwards.
+	 */
+	public void close()
+	{
+		if(endBorrow())
+		{
+			lastReturned = System.currentTimeMillis();
+			statistics.clear();
+
+			pool.release(this);
+		}
+	}
+
+	/**
+	 * Copy another connection's query timings into this connection's statistics, so work farmed out to other connections is still
+	 * reported by the report that asked for it.
+	 *
+	 * @param label			Prefixed to each query, to tell the copies apart.
+	 * @param statistics	The query => timing map to copy.
+	 */
+	void addStatistics(String label, LinkedHashMap<String, String> statistics)
+	{
+		for(Entry<String, String> queryStats : statistics.entrySet())
+		{
+			this.statistics.put(label + " " + queryStats.getKey(), queryStats.getValue());
+		}
+	}
+
+	/**
+	 * @return	The pool this connection belongs to.
+	 */
+	public ConnectionPool getPool()
+	{
+		return pool;
+	}
+
+	Connection getConnection()
+	{
+		return connection;
+	}
+
+	long getLastReturned()
+	{
+		return lastReturned;
+	}
+
+	synchronized void setBorrowed()
+	{
+		borrowed = true;
+		borrowedAt = System.currentTimeMillis();
+		borrower = new Throwable("Connection borrowed by " + Thread.currentThread().getName());
+		leakReported = false;
+		abandonReported = false;
+	}
+
+	/**
+	 * End the current borrow on close().
+	 *
+	 * @return	True if the connection was borrowed, false if it had already been closed.
+	 */
+	synchronized boolean endBorrow()
+	{
+		boolean retval = borrowed;
+
+		borrowed = false;
+
+		return retval;
+	}
+
+	/**
+	 * @return	When the connection was last borrowed, in epoch millis.
+	 */
+	synchronized long getBorrowedAt()
+	{
+		return borrowedAt;
+	}
+
+	/**
+	 * @return	The stack of the thread that last borrowed the connection.
+	 */
+	synchronized Throwable getBorrower()
+	{
+		return borrower;
+	}
+
+	/**
+	 * Flag the current borrow as reported for being held too long.
+	 *
+	 * @return	True the first time the borrow is flagged.
+	 */
+	synchronized boolean markLeakReported()
+	{
+		boolean retval = !leakReported;
+
+		leakReported = true;
+
+		return retval;
+	}
+
+	/**
+	 * Flag the current borrow as reported for being held past the abandon timeout.
+	 *
+	 * @return	True the first time the borrow is flagged.
+	 */
+	synchronized boolean markAbandonReported()
+	{
+		boolean retval = !abandonReported;
+
+		abandonReported = true;
+
+		return retval;
+	}
+
+	/**
+	 * Least recently used cache of prepared statements, closing statements as they are evicted.
+	 */
+	private final static class StatementCache extends LinkedHashMap<String, PreparedStatement>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		StatementCache(int maxSize)
+		{
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Entry<String, PreparedStatement> eldest)
+		{
+			boolean retval = size() > maxSize;
+
+			if(retval)
+			{
+				try
+				{
+					eldest.getValue().close();
+				}
+				catch (SQLException e)
+				{}
+			}
+
+			return retval;
+		}
+	}
+}
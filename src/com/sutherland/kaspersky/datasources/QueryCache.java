@@ -0,0 +1,247 @@
+package com.sutherland.kaspersky.datasources;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * A pool-wide cache of query results, shared by every connection the pool hands out so that users running the same window, such as
+ * yesterday or month to date, share one database round trip.
+ *
+ * Results are keyed by the query with its whitespace normalized plus the bind parameter values. Entries expire after a time to live,
+ * except results for ranges that end before the ingest watermark, which can no longer change and are kept until evicted. The cache is
+ * bounded by the total number of rows held, evicting the least recently used results first.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class QueryCache
+{
+	/**
+	 * Expiry of results that never go stale.
+	 */
+	public final static long NEVER = Long.MAX_VALUE;
+
+	private final long timeToLive;
+	private final long maxRows;
+	private final LinkedHashMap<String, CachedResult> results;
+	private long cachedRows;
+	private long watermark;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Build an empty cache.
+	 *
+	 * @param timeToLive	How long results for open ranges stay fresh, in milliseconds. 0 disables the cache.
+	 * @param maxRows		The most rows to hold across all results.
+	 */
+	QueryCache(long timeToLive, long maxRows)
+	{
+		this.timeToLive = timeToLive;
+		this.maxRows = maxRows;
+		this.results = new LinkedHashMap<String, CachedResult>(16, 0.75f, true);
+		this.watermark = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Build the cache key for a query and its parameters.
+	 *
+	 * @param query			The query.
+	 * @param parameters	The bind parameters.
+	 *
+	 * @return	The key.
+	 */
+	static String getKey(String query, Object[] parameters)
+	{
+		StringBuilder retval = new StringBuilder(query.length() + 16 * parameters.length);
+
+		//collapse runs of whitespace outside string literals, so queries built with different line breaks or padding share entries
+		boolean pendingSpace = false;
+		boolean inLiteral = false;
+		char c;
+		for(int i = 0; i < query.length(); i++)
+		{
+			c = query.charAt(i);
+
+			if(c == '\'')
+			{
+				inLiteral = !inLiteral;
+			}
+
+			if(Character.isWhitespace(c) && !inLiteral)
+			{
+				pendingSpace = retval.length() > 0;
+			}
+			else
+			{
+				if(pendingSpace)
+				{
+					retval.append(' ');
+					pendingSpace = false;
+				}
+
+				retval.append(c);
+			}
+		}
+
+		for(Object parameter : parameters)
+		{
+			retval.append('\u0000').append(parameter);
+		}
+
+		return retval.toString();
+	}
+
+	/**
+	 * Look up a fresh result.
+	 *
+	 * @param key	The cache key.
+	 *
+	 * @return	The cached rows, or null on a miss. The rows are shared and must not be modified.
+	 */
+	synchronized ArrayList<String[]> get(String key)
+	{
+		ArrayList<String[]> retval = null;
+
+		CachedResult result = results.get(key);
+
+		if(result != null && result.expires <= System.currentTimeMillis())
+		{
+			remove(key);
+			result = null;
+		}
+
+		if(result != null)
+		{
+			retval = result.rows;
+			hits++;
+		}
+		else
+		{
+			misses++;
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Cache a result.
+	 *
+	 * @param key		The cache key.
+	 * @param rows		The result rows.
+	 * @param rangeEnd	The end of the date range the query covers, or NEVER if the query is not bounded by date.
+	 */
+	synchronized void put(String key, ArrayList<String[]> rows, long rangeEnd)
+	{
+		if(timeToLive > 0 && rows.size() <= maxRows)
+		{
+			remove(key);
+
+			long expires = (rangeEnd <= watermark) ? NEVER : System.currentTimeMillis() + timeToLive;
+
+			results.put(key, new CachedResult(rows, expires));
+			cachedRows += rows.size();
+
+			Iterator<Entry<String, CachedResult>> it = results.entrySet().iterator();
+			while(cachedRows > maxRows && it.hasNext())
+			{
+				cachedRows -= it.next().getValue().rows.size();
+				it.remove();
+				evictions++;
+			}
+		}
+	}
+
+	private void remove(String key)
+	{
+		CachedResult removed = results.remove(key);
+
+		if(removed != null)
+		{
+			cachedRows -= removed.rows.size();
+		}
+	}
+
+	/**
+	 * Advance the ingest watermark. Results for ranges ending at or before the watermark are cached without expiry from then on.
+	 *
+	 * @param latestIngested	The time of the latest ingested data, in epoch millis. Older values are ignored.
+	 */
+	public synchronized void advanceWatermark(long latestIngested)
+	{
+		if(latestIngested > watermark)
+		{
+			watermark = latestIngested;
+		}
+	}
+
+	/**
+	 * @return	The ingest watermark, or Long.MIN_VALUE if none has been set.
+	 */
+	public synchronized long getWatermark()
+	{
+		return watermark;
+	}
+
+	/**
+	 * Drop the cached results for ranges the watermark had not passed when they were cached, since newly ingested rows may change them.
+	 */
+	public synchronized void invalidateOpenRanges()
+	{
+		Iterator<Entry<String, CachedResult>> it = results.entrySet().iterator();
+		CachedResult result;
+		while(it.hasNext())
+		{
+			result = it.next().getValue();
+
+			if(result.expires != NEVER)
+			{
+				cachedRows -= result.rows.size();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop every cached result.
+	 */
+	public synchronized void clear()
+	{
+		results.clear();
+		cachedRows = 0;
+	}
+
+	/**
+	 * Cache metrics, in the same name => value shape as the pool statistics.
+	 *
+	 * @return	The cache metrics.
+	 */
+	public synchronized LinkedHashMap<String, String> getStatistics()
+	{
+		LinkedHashMap<String, String> retval = new LinkedHashMap<String, String>();
+
+		retval.put("Query Cache Entries", "" + results.size());
+		retval.put("Query Cache Rows", "" + cachedRows);
+		retval.put("Query Cache Hits", "" + hits);
+		retval.put("Query Cache Misses", "" + misses);
+		retval.put("Query Cache Evictions", "" + evictions);
+
+		return retval;
+	}
+
+	private final static class CachedResult
+	{
+		private final ArrayList<String[]> rows;
+		private final long expires;
+
+		CachedResult(ArrayList<String[]> rows, long expires)
+		{
+			this.rows = rows;
+			this.expires = expires;
+		}
+	}
+}
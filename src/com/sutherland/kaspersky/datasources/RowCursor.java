@@ -0,0 +1,277 @@
+package com.sutherland.kaspersky.datasources;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.TimeZone;
+
+/**
+ * A forward-only cursor over a query result. Rows are pulled from the driver in batches of the fetch size as the caller advances, so
+ * only the current batch is ever held in memory rather than the whole result set.
+ *
+ * Column indexes are zero-based, matching the String[] rows returned by runRangeQuery. Besides plain strings, columns can be read already
+ * decoded as epoch millis, nullable ints and interval seconds, straight from the driver's typed values.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class RowCursor implements AutoCloseable
+{
+	/**
+	 * Returned by getNullableInt for a null or blank column.
+	 */
+	public final static int NULL_INT = Integer.MIN_VALUE;
+
+	/**
+	 * Returned by getEpochMillis for a null column.
+	 */
+	public final static long NULL_TIME = Long.MIN_VALUE;
+
+	private final static long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+	/**
+	 * The zone drivers build Time values in, at 1970-01-01 local time.
+	 */
+	private final static TimeZone LOCAL_ZONE = TimeZone.getDefault();
+
+	private final PooledConnection connection;
+	private final String query;
+	private final ResultSet rs;
+	private final long start;
+	private long rowCount;
+	private boolean closed;
+
+	/**
+	 * Wrap an open result set.
+	 *
+	 * @param connection	The connection the query ran on, for statistics.
+	 * @param query			The query, for statistics.
+	 * @param rs			The open result set.
+	 * @param start			When the query was issued.
+	 */
+	RowCursor(PooledConnection connection, String query, ResultSet rs, long start)
+	{
+		this.connection = connection;
+		this.query = query;
+		this.rs = rs;
+		this.start = start;
+	}
+
+	/**
+	 * Advance to the next row.
+	 *
+	 * @return	True if there is a current row, false once the result is exhausted.
+	 *
+	 * @throws SQLException	If the driver fails to fetch the next row.
+	 */
+	public boolean next() throws SQLException
+	{
+		boolean retval = !closed && rs.next();
+
+		if(retval)
+		{
+			rowCount++;
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Read a column of the current row as a String. Null columns are returned as empty strings.
+	 *
+	 * @param column	The zero-based column index.
+	 *
+	 * @return	The column value.
+	 *
+	 * @throws SQLException	If the column cannot be read.
+	 */
+	public String getString(int column) throws SQLException
+	{
+		String retval = rs.getString(column + 1);
+
+		return (retval == null) ? "" : retval;
+	}
+
+	/**
+	 * Read a datetime column of the current row as milliseconds since the epoch.
+	 *
+	 * @param column	The zero-based column index.
+	 *
+	 * @return	The timestamp, or NULL_TIME if the column is null.
+	 *
+	 * @throws SQLException	If the column cannot be read as a timestamp.
+	 */
+	public long getEpochMillis(int column) throws SQLException
+	{
+		Timestamp value = rs.getTimestamp(column + 1);
+
+		return (value == null) ? NULL_TIME : value.getTime();
+	}
+
+	/**
+	 * Read an integer column of the current row. Survey answers come back as numbers or as blank strings for unanswered questions, so
+	 * both are handled without going through a String for numeric columns.
+	 *
+	 * @param column	The zero-based column index.
+	 *
+	 * @return	The value, or NULL_INT if the column is null or blank.
+	 *
+	 * @throws SQLException	If the column holds something other than an integer.
+	 */
+	public int getNullableInt(int column) throws SQLException
+	{
+		int retval = NULL_INT;
+
+		Object value = rs.getObject(column + 1);
+
+		if(value instanceof Number)
+		{
+			retval = ((Number)value).intValue();
+		}
+		else if(value != null)
+		{
+			String text = value.toString().trim();
+
+			if(!text.isEmpty())
+			{
+				try
+				{
+					retval = Integer.parseInt(text);
+				}
+				catch(NumberFormatException e)
+				{
+					throw new SQLException("Column " + column + " is not an integer: " + text, e);
+				}
+			}
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Read an HH:MM:SS interval column of the current row as a number of seconds. Time typed columns are decoded from their millis, and
+	 * character columns are scanned in place without splitting.
+	 *
+	 * @param column	The zero-based column index.
+	 *
+	 * @return	The interval in seconds, or -1 if the column is null or not an interval.
+	 *
+	 * @throws SQLException	If the column cannot be read.
+	 */
+	public double getIntervalSeconds(int column) throws SQLException
+	{
+		double retval = -1;
+
+		Object value = rs.getObject(column + 1);
+
+		if(value instanceof Time)
+		{
+			//the driver stores the time of day in local time on 1970-01-01, so undo that day's offset rather than take the millis as UTC
+			long millis = ((Time)value).getTime();
+			long localMillis = millis + LOCAL_ZONE.getOffset(millis);
+
+			retval = (((localMillis % DAY_MILLIS) + DAY_MILLIS) % DAY_MILLIS) / 1000.0;
+		}
+		else if(value != null)
+		{
+			retval = parseIntervalSeconds(value.toString());
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Scan an HH:MM:SS[.fff] interval into seconds.
+	 *
+	 * @param interval	The interval text.
+	 *
+	 * @return	The interval in seconds, or -1 if the text is not an interval.
+	 */
+	static double parseIntervalSeconds(String interval)
+	{
+		double retval = 0;
+
+		long field = 0;
+		int fieldCount = 0;
+		int fractionDigits = -1;
+		long fraction = 0;
+		boolean digitSeen = false;
+		boolean valid = true;
+
+		char c;
+		for(int i = 0; i < interval.length() && valid; i++)
+		{
+			c = interval.charAt(i);
+
+			if(c >= '0' && c <= '9')
+			{
+				if(fractionDigits >= 0)
+				{
+					fraction = fraction * 10 + (c - '0');
+					fractionDigits++;
+				}
+				else
+				{
+					field = field * 10 + (c - '0');
+				}
+				digitSeen = true;
+			}
+			else if(c == ':' && fractionDigits < 0 && digitSeen)
+			{
+				retval = (retval + field) * 60;
+				field = 0;
+				fieldCount++;
+				digitSeen = false;
+			}
+			else if(c == '.' && fractionDigits < 0 && fieldCount == 2)
+			{
+				fractionDigits = 0;
+			}
+			else if(c != ' ')
+			{
+				valid = false;
+			}
+		}
+
+		if(!valid || fieldCount != 2 || (!digitSeen && fractionDigits < 0))
+		{
+			retval = -1;
+		}
+		else
+		{
+			retval += field;
+
+			if(fractionDigits > 0)
+			{
+				retval += fraction / Math.pow(10, fractionDigits);
+			}
+		}
+
+		return retval;
+	}
+
+	/**
+	 * @return	The number of rows read so far.
+	 */
+	public long getRowCount()
+	{
+		return rowCount;
+	}
+
+	/**
+	 * Close the cursor and record its statistics on the owning connection. The underlying statement stays cached for reuse.
+	 */
+	@Override
+	public void close()
+	{
+		if(!closed)
+		{
+			closed = true;
+
+			PooledConnection.closeResultSet(rs);
+
+			connection.recordStatistics(query, rowCount, start);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package com.sutherland.kaspersky.report;
+
+import java.sql.SQLException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Aggregates rows already at hand, such as a mapped survey snapshot, in chunks on a shared ForkJoinPool. Each chunk builds a partial of
+ * its own on the thread that processes it, so chunks share no state while they run, and the partials are merged pairwise in row order as
+ * the chunks complete.
+ *
+ * Row ranges of up to CHUNK_ROWS rows are aggregated in the calling thread.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class ChunkedAggregation
+{
+	/**
+	 * Ranges are split in half until they hold no more than this many rows.
+	 */
+	public final static int CHUNK_ROWS = 16384;
+
+	private final static ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Aggregation of one chunk of rows.
+	 *
+	 * @param <T>	The partial aggregate type.
+	 */
+	public interface ChunkTask<T extends Mergeable<T>>
+	{
+		/**
+		 * Aggregate a chunk of rows into a new partial. Called concurrently for different chunks.
+		 *
+		 * @param fromRow	The first row of the chunk, inclusive.
+		 * @param toRow		The last row of the chunk, exclusive.
+		 *
+		 * @return	The chunk's partial.
+		 *
+		 * @throws SQLException	If a row cannot be read.
+		 */
+		T aggregate(int fromRow, int toRow) throws SQLException;
+	}
+
+	private ChunkedAggregation()
+	{}
+
+	/**
+	 * Aggregate the rows [fromRow, toRow).
+	 *
+	 * @param fromRow	The first row, inclusive.
+	 * @param toRow		The last row, exclusive.
+	 * @param task		The aggregation of a chunk.
+	 *
+	 * @return	The partials of every chunk, merged in row order.
+	 *
+	 * @throws SQLException	If any chunk fails.
+	 */
+	public static <T extends Mergeable<T>> T run(int fromRow, int toRow, ChunkTask<T> task) throws SQLException
+	{
+		T retval;
+
+		if(toRow - fromRow <= CHUNK_ROWS)
+		{
+			retval = task.aggregate(fromRow, toRow);
+		}
+		else
+		{
+			try
+			{
+				retval = pool.invoke(new Chunk<T>(task, fromRow, toRow));
+			}
+			catch(ChunkFailure e)
+			{
+				//the pool may rethrow a copy of a chunk's failure, with the original as its cause
+				Throwable cause = e.getCause();
+				while(cause instanceof ChunkFailure)
+				{
+					cause = cause.getCause();
+				}
+
+				throw (SQLException)cause;
+			}
+		}
+
+		return retval;
+	}
+
+	private final static class Chunk<T extends Mergeable<T>> extends RecursiveTask<T>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final ChunkTask<T> task;
+		private final int fromRow;
+		private final int toRow;
+
+		Chunk(ChunkTask<T> task, int fromRow, int toRow)
+		{
+			this.task = task;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected T compute()
+		{
+			T retval;
+
+			if(toRow - fromRow <= CHUNK_ROWS)
+			{
+				try
+				{
+					retval = task.aggregate(fromRow, toRow);
+				}
+				catch(SQLException e)
+				{
+					throw new ChunkFailure(e);
+				}
+			}
+			else
+			{
+				int middleRow = fromRow + (toRow - fromRow) / 2;
+
+				Chunk<T> later = new Chunk<T>(task, middleRow, toRow);
+				later.fork();
+
+				retval = new Chunk<T>(task, fromRow, middleRow).compute();
+				retval.merge(later.join());
+			}
+
+			return retval;
+		}
+	}
+
+	/**
+	 * Carries a chunk's SQLException out of the pool.
+	 */
+	private final static class ChunkFailure extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		ChunkFailure(SQLException cause)
+		{
+			super(cause);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package com.sutherland.kaspersky.report;
+
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Running totals per report grain, held as primitives. Each grain has a fixed number of measures, and each measure keeps a count, a sum,
+ * a sum of squares and the smallest and largest values, so a report's memory grows with its grains rather than with its rows. Tables
+ * and accumulators are Mergeable, so partial totals from separate threads or partitions can be combined.
+ *
+ * Grains keep the order they were first seen in, as Aggregation's datum list does.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class GrainAccumulators implements Mergeable<GrainAccumulators>
+{
+	private final int measureCount;
+
+	/**
+	 * Grain => accumulator per measure.
+	 */
+	private final LinkedHashMap<String, Accumulator[]> grains;
+
+	/**
+	 * Build an empty table.
+	 *
+	 * @param measureCount	The number of measures kept per grain.
+	 */
+	public GrainAccumulators(int measureCount)
+	{
+		this.measureCount = measureCount;
+		this.grains = new LinkedHashMap<String, Accumulator[]>();
+	}
+
+	/**
+	 * Retrieve a grain's accumulator for a measure, adding the grain if it is new.
+	 *
+	 * @param grain		The report grain.
+	 * @param measure	The measure index.
+	 *
+	 * @return	The accumulator.
+	 */
+	public Accumulator get(String grain, int measure)
+	{
+		Accumulator[] measures = grains.get(grain);
+
+		if(measures == null)
+		{
+			measures = new Accumulator[measureCount];
+			for(int i = 0; i < measureCount; i++)
+			{
+				measures[i] = new Accumulator();
+			}
+
+			grains.put(grain, measures);
+		}
+
+		return measures[measure];
+	}
+
+	/**
+	 * @return	The grains, in the order they were first seen.
+	 */
+	public Set<String> getGrains()
+	{
+		return grains.keySet();
+	}
+
+	/**
+	 * Add another table's totals to this one. Grains new to this table are added after its own.
+	 *
+	 * @param other	The table to add, with the same measures.
+	 */
+	@Override
+	public void merge(GrainAccumulators other)
+	{
+		for(String grain : other.getGrains())
+		{
+			for(int measure = 0; measure < measureCount; measure++)
+			{
+				get(grain, measure).merge(other.get(grain, measure));
+			}
+		}
+	}
+
+	/**
+	 * A count, sum, sum of squares, minimum and maximum of the values of one measure.
+	 */
+	public final static class Accumulator implements Mergeable<Accumulator>
+	{
+		private long count;
+		private double sum;
+		private double sumOfSquares;
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+
+		/**
+		 * Count an occurrence with no value.
+		 */
+		public void increment()
+		{
+			count++;
+		}
+
+		/**
+		 * Count a value.
+		 *
+		 * @param value	The value.
+		 */
+		public void add(double value)
+		{
+			count++;
+			sum += value;
+			sumOfSquares += value * value;
+
+			if(value < min)
+			{
+				min = value;
+			}
+
+			if(value > max)
+			{
+				max = value;
+			}
+		}
+
+		/**
+		 * Add another accumulator's totals to these.
+		 *
+		 * @param other	The accumulator to add.
+		 */
+		@Override
+		public void merge(Accumulator other)
+		{
+			count += other.count;
+			sum += other.sum;
+			sumOfSquares += other.sumOfSquares;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+
+		/**
+		 * @return	The number of values counted.
+		 */
+		public long getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * @return	The sum of the values.
+		 */
+		public double getSum()
+		{
+			return sum;
+		}
+
+		/**
+		 * @return	The sum of the squares of the values.
+		 */
+		public double getSumOfSquares()
+		{
+			return sumOfSquares;
+		}
+
+		/**
+		 * @return	The smallest value added, or positive infinity if none were.
+		 */
+		public double getMin()
+		{
+			return min;
+		}
+
+		/**
+		 * @return	The largest value added, or negative infinity if none were.
+		 */
+		public double getMax()
+		{
+			return max;
+		}
+
+		/**
+		 * @return	The mean of the values, or 0 if none were counted.
+		 */
+		public double getMean()
+		{
+			return (count == 0) ? 0 : sum / count;
+		}
+	}
+}
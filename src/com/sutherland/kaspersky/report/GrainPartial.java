@@ -0,0 +1,54 @@
+/**
+ *
+ */
+package com.sutherland.kaspersky.report;
+
+/**
+ * One thread's share of a report's grain totals: the accumulators it fills and the report plan it assigns grains with. Plans keep state
+ * between rows, so each partial compiles its own.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class GrainPartial implements Mergeable<GrainPartial>
+{
+	private final ReportPlan plan;
+	private final GrainAccumulators accumulators;
+
+	/**
+	 * Build an empty partial.
+	 *
+	 * @param plan			The plan, used only by the thread filling this partial.
+	 * @param measureCount	The number of measures kept per grain.
+	 */
+	public GrainPartial(ReportPlan plan, int measureCount)
+	{
+		this.plan = plan;
+		this.accumulators = new GrainAccumulators(measureCount);
+	}
+
+	/**
+	 * @return	The plan to admit and assign rows with.
+	 */
+	public ReportPlan getPlan()
+	{
+		return plan;
+	}
+
+	/**
+	 * @return	The partial's totals.
+	 */
+	public GrainAccumulators getAccumulators()
+	{
+		return accumulators;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.Mergeable#merge(com.sutherland.kaspersky.report.Mergeable)
+	 */
+	@Override
+	public void merge(GrainPartial other)
+	{
+		accumulators.merge(other.accumulators);
+	}
+}
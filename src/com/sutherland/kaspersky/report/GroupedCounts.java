@@ -0,0 +1,228 @@
+/**
+ *
+ */
+package com.sutherland.kaspersky.report;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import com.sutherland.helios.report.Report;
+import com.sutherland.kaspersky.datasources.DateRangePartitions;
+import com.sutherland.kaspersky.datasources.DateRangePartitions.PartitionTask;
+import com.sutherland.kaspersky.datasources.PooledConnection;
+
+/**
+ * Runs count-style report metrics as grouped queries, so the database returns one row per bucket rather than one row per survey or session.
+ *
+ * Time trend reports are bucketed by hour on the server, which is fine enough for every date grain, and each bucket is then labelled and
+ * summed into its date grain. Stack reports are bucketed by technician, and each technician is mapped to its user grain through the roster.
+ *
+ * The row query handed in must select the bucket time as Bucket_Time and the technician as Technician_ID, plus anything the count
+ * expression needs, and its first two bind parameters must be the start and end of the report's date range. The range is split with
+ * DateRangePartitions and each partition is counted on its own connection, then the partial counts are summed. Partition counts go
+ * through the query cache, so settled days before the ingest watermark are only ever counted once.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class GroupedCounts
+{
+	private final static String HOUR_BUCKET = "DATEADD(hour, DATEDIFF(hour, 0, Bucket_Time), 0)";
+
+	/**
+	 * Count expression matching a survey whose Q1-Q4 answers, each out of 10 points, score a CSAT of at least 85%. Expects Q1-Q4 to have been
+	 * selected through nullableInt().
+	 */
+	public final static String SATISFIED_SURVEY_COUNT =
+			"SUM(CASE WHEN " +
+			"(CASE WHEN Q1 IS NULL THEN 0 ELSE 1 END + CASE WHEN Q2 IS NULL THEN 0 ELSE 1 END + CASE WHEN Q3 IS NULL THEN 0 ELSE 1 END + CASE WHEN Q4 IS NULL THEN 0 ELSE 1 END) > 0 " +
+			"AND 100 * (ISNULL(Q1, 0) + ISNULL(Q2, 0) + ISNULL(Q3, 0) + ISNULL(Q4, 0)) >= " +
+			"85 * 10 * (CASE WHEN Q1 IS NULL THEN 0 ELSE 1 END + CASE WHEN Q2 IS NULL THEN 0 ELSE 1 END + CASE WHEN Q3 IS NULL THEN 0 ELSE 1 END + CASE WHEN Q4 IS NULL THEN 0 ELSE 1 END) " +
+			"THEN 1 ELSE 0 END)";
+
+	public final static String ROW_COUNT = "COUNT(*)";
+
+	/**
+	 * SQL expression reading a survey answer column as an int, with blank answers as NULL, whether the column is stored as a number or as text.
+	 *
+	 * @param column	The answer column.
+	 *
+	 * @return	The expression.
+	 */
+	public static String nullableInt(String column)
+	{
+		return "CAST(NULLIF(LTRIM(RTRIM(CAST(" + column + " AS varchar(10)))), '') AS int)";
+	}
+
+	/**
+	 * Count rows per date grain for time trend reports, or per user grain otherwise.
+	 *
+	 * @param report			The report being run.
+	 * @param dbConnection		The connection to query on.
+	 * @param roster			The loaded roster.
+	 * @param rowQuery			The row query, selecting Bucket_Time and Technician_ID.
+	 * @param countExpression	The aggregate to compute per bucket.
+	 * @param parameters		The row query's bind parameters, starting with the start and end of the date range.
+	 *
+	 * @return	Grain => count, in the order the grains were first seen.
+	 *
+	 * @throws SQLException	If the query fails.
+	 */
+	public static LinkedHashMap<String, Double> count(Report report, PooledConnection dbConnection, final KasperskyRoster roster, final String rowQuery, final String countExpression, final ArrayList<Object> parameters) throws SQLException
+	{
+		LinkedHashMap<String, Double> retval = new LinkedHashMap<String, Double>();
+
+		PartitionTask<LinkedHashMap<String, Double>> partitionCount;
+
+		//read the report parameters up front, the partitions run on other threads
+		if(report.isTimeTrendReport())
+		{
+			final int timeGrain = Integer.parseInt(report.getParameters().getTimeGrain());
+			final int dateFormat = Integer.parseInt(report.getParameters().getDateFormat());
+
+			partitionCount = new PartitionTask<LinkedHashMap<String, Double>>()
+			{
+				@Override
+				public LinkedHashMap<String, Double> run(PooledConnection partitionConnection, Timestamp startDate, Timestamp endDate) throws SQLException
+				{
+					return countByTimeGrain(partitionConnection, rowQuery, countExpression, partitionParameters(parameters, startDate, endDate), timeGrain, dateFormat);
+				}
+			};
+		}
+		else //if(isStackReport())
+		{
+			final int userGrain = Integer.parseInt(report.getParameters().getUserGrain());
+
+			partitionCount = new PartitionTask<LinkedHashMap<String, Double>>()
+			{
+				@Override
+				public LinkedHashMap<String, Double> run(PooledConnection partitionConnection, Timestamp startDate, Timestamp endDate) throws SQLException
+				{
+					return countByUserGrain(partitionConnection, roster, rowQuery, countExpression, partitionParameters(parameters, startDate, endDate), userGrain);
+				}
+			};
+		}
+
+		IngestWatermark.getWatermark(dbConnection);
+
+		//partials come back in date order, so time grains keep their first-seen order
+		for(LinkedHashMap<String, Double> partial : DateRangePartitions.run(dbConnection, (Timestamp)parameters.get(0), (Timestamp)parameters.get(1), partitionCount))
+		{
+			for(String grain : partial.keySet())
+			{
+				Double current = retval.get(grain);
+
+				retval.put(grain, (current == null ? 0 : current) + partial.get(grain));
+			}
+		}
+
+		return retval;
+	}
+
+	private static ArrayList<Object> partitionParameters(ArrayList<Object> parameters, Timestamp startDate, Timestamp endDate)
+	{
+		ArrayList<Object> retval = new ArrayList<Object>(parameters);
+
+		retval.set(0, startDate);
+		retval.set(1, endDate);
+
+		return retval;
+	}
+
+	/**
+	 * Count rows per date grain.
+	 *
+	 * @param dbConnection		The connection to query on.
+	 * @param rowQuery			The row query, selecting Bucket_Time.
+	 * @param countExpression	The aggregate to compute per bucket.
+	 * @param parameters		The row query's bind parameters.
+	 * @param timeGrain			The report's time grain.
+	 * @param dateFormat		The report's date format.
+	 *
+	 * @return	Date grain => count, in the order the grains were first seen.
+	 *
+	 * @throws SQLException	If the query fails.
+	 */
+	private static LinkedHashMap<String, Double> countByTimeGrain(PooledConnection dbConnection, String rowQuery, String countExpression, ArrayList<Object> parameters, int timeGrain, int dateFormat) throws SQLException
+	{
+		LinkedHashMap<String, Double> retval = new LinkedHashMap<String, Double>();
+
+		String query = "SELECT " + HOUR_BUCKET + "," + countExpression + " FROM (" + rowQuery + ") Bucket_Rows GROUP BY " + HOUR_BUCKET + " ORDER BY 1";
+
+		TimeGrainLabels labels = new TimeGrainLabels(timeGrain, dateFormat);
+
+		for(String[] row : dbConnection.runRangeQuery((Timestamp)parameters.get(1), query, parameters.toArray()))
+		{
+			add(retval, labels.getLabel(SqlTimestamps.toEpochMillis(row[0])), parseCount(row[1]));
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Count rows per user grain. Technicians outside the roster are dropped.
+	 *
+	 * @param dbConnection		The connection to query on.
+	 * @param roster			The loaded roster.
+	 * @param rowQuery			The row query, selecting Technician_ID.
+	 * @param countExpression	The aggregate to compute per bucket.
+	 * @param parameters		The row query's bind parameters.
+	 * @param userGrain			The report's user grain.
+	 *
+	 * @return	User grain => count, in the order the grains were first seen.
+	 *
+	 * @throws SQLException	If the query fails.
+	 */
+	private static LinkedHashMap<String, Double> countByUserGrain(PooledConnection dbConnection, KasperskyRoster roster, String rowQuery, String countExpression, ArrayList<Object> parameters, int userGrain) throws SQLException
+	{
+		LinkedHashMap<String, Double> retval = new LinkedHashMap<String, Double>();
+
+		String query = "SELECT Technician_ID," + countExpression + " FROM (" + rowQuery + ") Bucket_Rows GROUP BY Technician_ID";
+
+		String tID;
+
+		for(String[] row : dbConnection.runRangeQuery((Timestamp)parameters.get(1), query, parameters.toArray()))
+		{
+			tID = row[0];
+
+			if(roster.hasUser(tID))
+			{
+				add(retval, roster.getUserGrain(userGrain, tID), parseCount(row[1]));
+			}
+		}
+
+		return retval;
+	}
+
+	private static int parseCount(String count)
+	{
+		return count.isEmpty() ? 0 : Integer.parseInt(count.trim());
+	}
+
+	private static void add(LinkedHashMap<String, Double> counts, String reportGrain, int count)
+	{
+		//the row-by-row reports never create a grain for a bucket with nothing counted
+		if(count > 0)
+		{
+			Double current = counts.get(reportGrain);
+
+			counts.put(reportGrain, (current == null ? 0 : current) + count);
+		}
+	}
+
+	/**
+	 * Convert grain counts to report rows.
+	 *
+	 * @param counts	Grain => count.
+	 * @param retval	The report rows to add to.
+	 */
+	public static void addRows(LinkedHashMap<String, Double> counts, ArrayList<String[]> retval)
+	{
+		for(String grain : counts.keySet())
+		{
+			retval.add(new String[]{grain, "" + counts.get(grain) });
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ *
+ */
+package com.sutherland.kaspersky.report;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.sutherland.kaspersky.datasources.ConnectionPool;
+import com.sutherland.kaspersky.datasources.PooledConnection;
+import com.sutherland.kaspersky.datasources.RowCursor;
+import com.sutherland.kaspersky.report.survey.DailySurveyRollup;
+import com.sutherland.kaspersky.report.survey.SurveyRecord;
+
+/**
+ * Ingests the LMI survey table incrementally, and follows the session table. Both tables are loaded roughly in time order, surveys by
+ * Date and sessions by End_Time, so each keeps a high-water mark of the latest row seen. Rows can commit a little after later ones, so
+ * every poll reads surveys again from INGEST_LAG_MILLIS before the survey mark, and the daily survey rollup skips those it has already
+ * counted. Nothing is rolled up per session, so the session mark only needs the latest End_Time. The connection pool's cache watermark
+ * is held the same lag behind the earlier of the two marks, so query results are only cached without expiry for ranges no late row is
+ * expected in.
+ *
+ * Polling starts the first time a report asks for the watermark, and continues in the background on a fixed schedule.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class IngestWatermark
+{
+	/**
+	 * How often new rows are polled for, in milliseconds.
+	 */
+	public final static long INGEST_INTERVAL_MILLIS = 60 * 1000;
+
+	/**
+	 * How far behind the latest row a row may still commit, in milliseconds. Each poll reads again from this far before the marks.
+	 */
+	public final static long INGEST_LAG_MILLIS = 15 * 60 * 1000;
+
+	private final static String LATEST_INGESTED_QUERY =
+			"SELECT (SELECT MAX(Date) FROM LMI_10982630_Customer_Survey),(SELECT MAX(End_Time) FROM LMI_10982630_Session)";
+
+	private final static String NEW_SURVEYS_QUERY = "SELECT " + SurveyRecord.COLUMNS + " FROM LMI_10982630_Customer_Survey WHERE Date > ? ORDER BY Date";
+
+	//sessions are written as they end, and the session reports bound End_Time, so End_Time is what the mark follows
+	private final static String LATEST_SESSION_QUERY = "SELECT MAX(End_Time) FROM LMI_10982630_Session WHERE End_Time > ?";
+
+	/**
+	 * Held while polling, so a slow poll does not hold up reports asking for the watermark.
+	 */
+	private final static Object pollLock = new Object();
+
+	private static ConnectionPool pool;
+	private static Timer timer;
+
+	/**
+	 * The latest ingested Date and End_Time, or Long.MIN_VALUE until the first poll succeeds. Guarded by pollLock.
+	 */
+	private static long surveyMark = Long.MIN_VALUE;
+	private static long sessionMark = Long.MIN_VALUE;
+
+	private final static Logger logger = Logger.getLogger(IngestWatermark.class);
+
+	private IngestWatermark()
+	{}
+
+	/**
+	 * Retrieve the connection pool's cache watermark, starting ingestion on the first call.
+	 *
+	 * @param dbConnection	The connection to query on.
+	 *
+	 * @return	The watermark, in epoch millis, or Long.MIN_VALUE if nothing could be ingested yet.
+	 */
+	public static long getWatermark(PooledConnection dbConnection)
+	{
+		synchronized(IngestWatermark.class)
+		{
+			if(timer == null)
+			{
+				pool = dbConnection.getPool();
+
+				//poll once up front so the caller sees a watermark, then keep polling in the background
+				poll(dbConnection);
+
+				timer = new Timer("LMI-ingest", true);
+				timer.schedule(new IngestTask(), INGEST_INTERVAL_MILLIS, INGEST_INTERVAL_MILLIS);
+			}
+		}
+
+		return dbConnection.getQueryCache().getWatermark();
+	}
+
+	/**
+	 * Read the surveys ingested since INGEST_LAG_MILLIS before the last survey mark, and the latest session End_Time past the session mark,
+	 * and advance the marks. Errors are logged, and the same rows are read again on the next poll.
+	 *
+	 * @param dbConnection	The connection to query on.
+	 */
+	private static void poll(PooledConnection dbConnection)
+	{
+		synchronized(pollLock)
+		{
+			pollNewRows(dbConnection);
+		}
+	}
+
+	private static void pollNewRows(PooledConnection dbConnection)
+	{
+		long previousSurveyMark = surveyMark;
+		long previousSessionMark = sessionMark;
+
+		try
+		{
+			if(surveyMark == Long.MIN_VALUE || sessionMark == Long.MIN_VALUE)
+			{
+				readLatestIngested(dbConnection);
+			}
+			else
+			{
+				RowCursor rows = dbConnection.openCursor(NEW_SURVEYS_QUERY, new Timestamp(surveyMark - INGEST_LAG_MILLIS));
+				try
+				{
+					surveyMark = DailySurveyRollup.addSurveys(rows, surveyMark);
+				}
+				finally
+				{
+					rows.close();
+				}
+
+				rows = dbConnection.openCursor(LATEST_SESSION_QUERY, new Timestamp(sessionMark));
+				try
+				{
+					if(rows.next() && rows.getEpochMillis(0) != RowCursor.NULL_TIME)
+					{
+						sessionMark = Math.max(sessionMark, rows.getEpochMillis(0));
+					}
+				}
+				finally
+				{
+					rows.close();
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			logger.log(Level.ERROR, "Ingest poll failed, retrying in " + INGEST_INTERVAL_MILLIS + "ms: " + e.getMessage());
+		}
+
+		if(surveyMark != Long.MIN_VALUE && sessionMark != Long.MIN_VALUE && (surveyMark != previousSurveyMark || sessionMark != previousSessionMark))
+		{
+			//rows may still commit up to the lag behind the marks, so only ranges ending before that are settled
+			dbConnection.getQueryCache().advanceWatermark(Math.min(surveyMark, sessionMark) - INGEST_LAG_MILLIS);
+
+			//results cached for ranges past the old watermark may be missing the new rows
+			dbConnection.getQueryCache().invalidateOpenRanges();
+		}
+	}
+
+	private static void readLatestIngested(PooledConnection dbConnection) throws SQLException
+	{
+		//read around the query cache, since the marks must reflect the tables as they are now
+		RowCursor rows = dbConnection.openCursor(LATEST_INGESTED_QUERY);
+		try
+		{
+			if(rows.next())
+			{
+				long latestSurvey = rows.getEpochMillis(0);
+				long latestSession = rows.getEpochMillis(1);
+
+				if(latestSurvey != RowCursor.NULL_TIME && latestSession != RowCursor.NULL_TIME)
+				{
+					surveyMark = latestSurvey;
+					sessionMark = latestSession;
+
+					DailySurveyRollup.startIngest(surveyMark);
+				}
+			}
+		}
+		finally
+		{
+			rows.close();
+		}
+	}
+
+	private static class IngestTask extends TimerTask
+	{
+		/* (non-Javadoc)
+		 * @see java.util.TimerTask#run()
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				PooledConnection dbConnection = pool.getConnection();
+				try
+				{
+					poll(dbConnection);
+				}
+				finally
+				{
+					dbConnection.close();
+				}
+			}
+			catch (SQLException e)
+			{
+				logger.log(Level.ERROR, "Ingest poll could not borrow a connection: " + e.getMessage());
+			}
+			catch (RuntimeException e)
+			{
+				//an exception escaping run() would cancel the timer, and nothing would be ingested again
+				logger.log(Level.ERROR, "Ingest poll failed, retrying in " + INGEST_INTERVAL_MILLIS + "ms", e);
+			}
+		}
+	}
+}
@@ -4,7 +4,9 @@
 package com.sutherland.kaspersky.report;
 
 
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
@@ -13,16 +15,19 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 
 import com.sutherland.helios.api.report.frontend.ReportFrontEndGroups;
-import com.sutherland.helios.data.Datum;
-import com.sutherland.helios.database.connection.SQL.ConnectionFactory;
-import com.sutherland.helios.exceptions.DatabaseConnectionCreationException;
+import com.sutherland.helios.data.granularity.user.UserGrains;
 import com.sutherland.helios.exceptions.ExceptionFormatter;
 import com.sutherland.helios.exceptions.ReportSetupException;
 import com.sutherland.helios.logging.LogIDFactory;
 import com.sutherland.helios.report.parameters.groups.ReportParameterGroups;
 import com.sutherland.helios.roster.Roster;
+import com.sutherland.kaspersky.datasources.ConnectionPool;
 import com.sutherland.kaspersky.datasources.DatabaseConfigs;
 import com.sutherland.kaspersky.report.roster.Attributes;
+import com.sutherland.kaspersky.report.roster.RosterCache;
+import com.sutherland.kaspersky.report.roster.RosterRecord;
+import com.sutherland.kaspersky.report.roster.RosterSnapshot;
+import com.sutherland.kaspersky.report.roster.UserGrainMemo;
 
 
 /**
@@ -36,11 +41,22 @@ import com.sutherland.kaspersky.report.roster.Attributes;
 public final class KasperskyRoster extends Roster implements Attributes
 {
 	
+	/**
+	 * The shared snapshot this roster was loaded from, kept for the whole report run so a refresh mid-run cannot change its answers.
+	 */
+	private RosterSnapshot snapshot;
+	
+	/**
+	 * The ordinals in the snapshot of the users admitted by the agent and team parameters, or null if the roster could not be loaded.
+	 */
+	private BitSet selection;
+	
 	private final String dbPropFile = DatabaseConfigs.KASP_DEV_DB;
 
-	private final static String PROGRAM_NAME = "Kaspersky";
-
-	private final static String ORGUNIT_NAME = "CAN01";
+	/**
+	 * Filtered rosters larger than this are pushed down as a subquery rather than an IN-list, keeping well clear of the driver's bind parameter limit.
+	 */
+	public final static int MAX_IN_LIST_SIZE = 1000;
 	
 	private final static Logger logger = Logger.getLogger(KasperskyRoster.class);
 
@@ -116,53 +132,24 @@ public final class KasperskyRoster extends Roster implements Attributes
 	}
 
 	/** 
-	 * Attempt to establish connections to all required datasources. A report by definition has at least one, and possibly many.
+	 * Attempt to establish connections to all required datasources. The roster is read from the shared RosterCache, which borrows a pooled 
+	 * connection of its own only when it has to query the database, so the roster holds none.
 	 * 
-	 * @return	True if the connection was established, false otherwise.
+	 * @return	True.
 	 */
 	protected boolean setupDataSourceConnections()
 	{
-		boolean retval = false;
-
-		try 
-		{
-			ConnectionFactory factory = new ConnectionFactory();
-			
-			factory.load(dbPropFile);
-			
-			dbConnection = factory.getConnection();
-		}
-		catch(DatabaseConnectionCreationException e )
-		{
-			setErrorMessage("DatabaseConnectionCreationException on attempt to access database");
-					
-			logErrorMessage( getErrorMessage());
-			logErrorMessage( ExceptionFormatter.asString(e));
-		}
-		finally
-		{
-			if(dbConnection != null)
-			{
-				retval = true;
-			}
-		}
-
-		return retval;
+		return true;
 	}
 
 	/**
-	 * Close the report, any sub reports, and any database connections.
+	 * Close the report and any sub reports.
 	 * 
 	 * @see report.Report#close()
 	 */
 	@Override
 	public void close()
 	{
-		if(dbConnection != null)
-		{
-			dbConnection.close();
-		}
-
 		super.close();
 		
 		if (!isChildReport) 
@@ -190,7 +177,8 @@ public final class KasperskyRoster extends Roster implements Attributes
 	}
 
 	/**
-	 * Build the roster from the database. Also build the PARAM -> USER mappings for other reports to reference.
+	 * Build the roster from the shared roster cache, keeping the users admitted by the agent and team parameters. Also build the PARAM -> USER 
+	 * mappings for other reports to reference.
 	 * 
 	 */
 	public void load()
@@ -198,91 +186,120 @@ public final class KasperskyRoster extends Roster implements Attributes
 		logInfoMessage("Loading Roster");
 
 		clearUsers();
+		selection = null;
 
-		String nodeID;
-		String parentID;
-		String name;
-		String team;
-		String email;
-		String description;
-		String status;
-		String type;
-		String fullName;
-
-		Datum newUser = null;
-		
-		String query = 	"SELECT NODE_ID,PARENT_ID,TEAM,NAME,EMAIL,DESCRIPTION,STATUS,TYPE FROM LMI_KASPERSKY_ROSTER where parent_id = '10982630' and type != 'Administrator' and type != 'AdministratorLink'  and type != 'MasterAdministrator' ";
-		
-		for(String[] row:  dbConnection.runQuery(query))
+		try
 		{
-			try
-			{					
-				nodeID = row[0].trim();
-				parentID = row[1].trim();
-				name = row[3].trim();
-				team = row[2].trim();
-				email = row[4].trim();
-				description = row[5].trim();
-				status = row[6].trim();
-				type = row[7].trim();
-				
-				fullName = name;
+			snapshot = RosterCache.getSnapshot(ConnectionPool.getPool(dbPropFile));
+			
+			//dashboards repeat the same selections, so each is compiled once per snapshot, the only time a Datum is built for every agent
+			String selectionKey = includeAllUsers + "|" + getParameters().getAgentNames() + "|" + getParameters().getTeamNames();
+			
+			BitSet compiled = snapshot.getSelection(selectionKey);
+			if(compiled == null)
+			{
+				compiled = new BitSet(snapshot.getSize());
 				
-				type = row[6].trim();
-
-				if( !hasUser(nodeID) ) 
+				for(int ordinal = 0; ordinal < snapshot.getSize(); ordinal++)
 				{
-					newUser = new Datum(nodeID);
-
-					newUser.addAttribute(NODE_ID_ATTR);
-					newUser.addAttribute(PARENT_ID_ATTR);
-					newUser.addAttribute(TEAMNAME_ATTR);
-					newUser.addAttribute(NAME_ATTR);
-					newUser.addAttribute(STATUS_ATTR); 
-					newUser.addAttribute(TYPE_ATTR);
-					newUser.addAttribute(EMAIL_ATTR);
-					newUser.addAttribute(FULLNAME_ATTR);
-					newUser.addAttribute(ACTIVE_ATTR);
-					newUser.addAttribute(PROGRAMNAME_ATTR);
-					newUser.addAttribute(ORGUNIT_ATTR);
-					
-					newUser.setAttributeAsUnique(NODE_ID_ATTR);
-
-					newUser.addData(NODE_ID_ATTR, nodeID);
-					newUser.addData(PARENT_ID_ATTR, parentID);
-					newUser.addData(NAME_ATTR, name);
-					newUser.addData(TEAMNAME_ATTR, team);
-					newUser.addData(EMAIL_ATTR, email);
-					newUser.addData(DESCRIPTION_ATTR, description);
-					newUser.addData(STATUS_ATTR, status);
-					newUser.addData(TYPE_ATTR, type);
-					
-					
-					newUser.addData(FULLNAME_ATTR, fullName);
-					newUser.addData(PROGRAMNAME_ATTR, PROGRAM_NAME);
-					newUser.addData(ORGUNIT_ATTR, ORGUNIT_NAME);
-					
-					if(shouldIncludeUser(newUser) || includeAllUsers)
+					if(includeAllUsers || shouldIncludeUser(snapshot.getRecords().get(ordinal).newDatum()))
 					{
-						addUser(nodeID, newUser);
+						compiled.set(ordinal);
 					}
 				}
+				
+				snapshot.putSelection(selectionKey, compiled);
 			}
-			catch(NullPointerException e)
+			
+			RosterRecord record;
+			for(int ordinal = compiled.nextSetBit(0); ordinal >= 0; ordinal = compiled.nextSetBit(ordinal + 1))
 			{
-				logErrorMessage(  "Error adding user for line beginning with " + row[0]);
-				logErrorMessage( ExceptionFormatter.asString(e));
+				record = snapshot.getRecords().get(ordinal);
+				addUser(record.getNodeID(), record.newDatum());
 			}
+			
+			selection = compiled;
 		}
-		
-		for( Entry<String, String> queryEntry : dbConnection.getStatistics().entrySet())
+		catch(SQLException e)
 		{
-			logInfoMessage( "Query: " + queryEntry.getKey() + " => " + queryEntry.getValue());
+			logErrorMessage( "Could not read the roster");
+			logErrorMessage( ExceptionFormatter.asString(e));
 		}
 		
 		logInfoMessage( "Loaded " + getSize() + " users into roster");
 	}
 	
+	private boolean isFiltered()
+	{
+		return 	(getParameters().getAgentNames() != null && !getParameters().getAgentNames().isEmpty()) || 
+				(getParameters().getTeamNames() != null && !getParameters().getTeamNames().isEmpty());
+	}
+	
+	/**
+	 * Determine if getTechnicianFilter() admits exactly the technicians in this roster, in which case reports may rely on the database alone
+	 * to filter rows, for example when aggregating on the server.
+	 * 
+	 * @return	True if the technician filter is exact, false if hasUser() must still be checked per technician.
+	 */
+	public boolean isTechnicianFilterExact()
+	{
+		return !isFiltered() || getSize() <= MAX_IN_LIST_SIZE;
+	}
+	
+	/**
+	 * Build a SQL predicate restricting a technician ID column to the users in this roster, so reports can have the database drop rows for 
+	 * technicians outside the roster instead of transferring them and discarding them with hasUser(). 
+	 * 
+	 * When agents or teams were selected, the loaded node IDs are bound as an IN-list. Otherwise, or if the selection is too large, the roster 
+	 * constraints are applied as a subquery against LMI_KASPERSKY_ROSTER. Either way the predicate never admits a technician the roster would 
+	 * reject, so hasUser() remains a valid final check.
+	 * 
+	 * @param technicianColumn	The column holding the technician's node ID.
+	 * @param parameters		The query's bind parameters, to which the predicate's parameters are appended.
+	 * 
+	 * @return	The predicate.
+	 */
+	public String getTechnicianFilter(String technicianColumn, ArrayList<Object> parameters)
+	{
+		StringBuilder retval = new StringBuilder();
+		
+		boolean filtered = isFiltered();
+		
+		if(filtered && getSize() == 0)
+		{
+			retval.append("1 = 0");
+		}
+		else if(filtered && getSize() <= MAX_IN_LIST_SIZE)
+		{
+			retval.append(technicianColumn);
+			retval.append(" IN (");
+			
+			boolean first = true;
+			for(String userID : getUserIDs())
+			{
+				if(!first)
+				{
+					retval.append(',');
+				}
+				retval.append('?');
+				parameters.add(userID);
+				
+				first = false;
+			}
+			
+			retval.append(')');
+		}
+		else
+		{
+			retval.append(technicianColumn);
+			retval.append(" IN (SELECT NODE_ID FROM LMI_KASPERSKY_ROSTER where ");
+			retval.append(RosterCache.ROSTER_CONSTRAINTS);
+			retval.append(')');
+		}
+		
+		return retval.toString();
+	}
+	
 	/**
 	 * Accessor for a specified User's name, for human readability.
 	 * 
@@ -292,21 +309,119 @@ public final class KasperskyRoster extends Roster implements Attributes
 	 */
 	public String getFullName(String userID)
 	{
-		Datum user = getUser(userID);
-
 		String fullName = null;
 
-		try
+		RosterRecord user = getRecord(userID);
+		
+		if(user != null)
 		{
-			fullName = user.getAttributeData(NAME_ATTR).get(0);
+			fullName = user.getName();
 		}
-		catch(NullPointerException e)
+		else
 		{
 			logErrorMessage( "Could not determine full name for parameter: " + userID);
 		}
 
 		return fullName;
 	}
+	
+	/**
+	 * Determine if a user was admitted to this roster, as one bit test on the user's ordinal once the roster is loaded.
+	 * 
+	 * @param userID	The user's node ID.
+	 * 
+	 * @return	True if the user is in this roster.
+	 * 
+	 * @see com.sutherland.helios.roster.Roster#hasUser(java.lang.String)
+	 */
+	@Override
+	public boolean hasUser(String userID)
+	{
+		boolean retval;
+		
+		if(selection != null)
+		{
+			retval = hasOrdinal(snapshot.getOrdinal(userID));
+		}
+		else
+		{
+			retval = super.hasUser(userID);
+		}
+		
+		return retval;
+	}
+	
+	/**
+	 * Resolve a user's ordinal, so a caller checking the same technician repeatedly can test membership with hasOrdinal() alone.
+	 * 
+	 * @param userID	The user's node ID.
+	 * 
+	 * @return	The user's ordinal in the loaded snapshot, or -1 if the user is not in the snapshot or the roster is not loaded.
+	 */
+	public int getOrdinal(String userID)
+	{
+		return (snapshot != null) ? snapshot.getOrdinal(userID) : -1;
+	}
+	
+	/**
+	 * Determine if the user with an ordinal was admitted to this roster.
+	 * 
+	 * @param ordinal	The user's ordinal, from getOrdinal().
+	 * 
+	 * @return	True if the user is in this roster.
+	 */
+	public boolean hasOrdinal(int ordinal)
+	{
+		return selection != null && ordinal >= 0 && selection.get(ordinal);
+	}
+	
+	/**
+	 * Resolve a loaded user's user grain through the shared memo, so a report derives each technician's grain once per roster refresh 
+	 * rather than once per row.
+	 * 
+	 * @param userGrain	The user grain code.
+	 * @param userID	The user's node ID.
+	 * 
+	 * @return	The user's grain, as UserGrains.getUserGrain() would give it.
+	 */
+	public String getUserGrain(int userGrain, String userID)
+	{
+		String retval;
+		
+		RosterRecord user = getRecord(userID);
+		
+		if(user != null)
+		{
+			retval = UserGrainMemo.getUserGrain(userGrain, user);
+		}
+		else
+		{
+			retval = UserGrains.getUserGrain(userGrain, getUser(userID));
+		}
+		
+		return retval;
+	}
+	
+	/**
+	 * Accessor for a loaded user's roster record.
+	 * 
+	 * @param userID	The user's node ID.
+	 * 
+	 * @return	The record, or null if the user is not in this roster.
+	 */
+	public RosterRecord getRecord(String userID)
+	{
+		RosterRecord retval = null;
+		
+		int ordinal = getOrdinal(userID);
+		
+		if(hasOrdinal(ordinal))
+		{
+			retval = snapshot.getRecords().get(ordinal);
+		}
+		
+		return retval;
+	}
 
 	/**
 	 * Convert the userlist into something more user-readable.
@@ -323,23 +438,23 @@ public final class KasperskyRoster extends Roster implements Attributes
 		load();
 
 		ArrayList<String[]> retval = new ArrayList<String[]>();
-		Datum thisUser;
+		RosterRecord thisUser;
 		for(String userID : getUserIDs())
 		{
-			thisUser = getUser(userID);
+			thisUser = getRecord(userID);
 			
 			retval.add
 			(
 					new String[]
 					{
-							thisUser.getAttributeData(NODE_ID_ATTR).get(0),
-							thisUser.getAttributeData(PARENT_ID_ATTR).get(0),
-							thisUser.getAttributeData(TEAMNAME_ATTR).get(0),
-							thisUser.getAttributeData(NAME_ATTR).get(0),
-							thisUser.getAttributeData(EMAIL_ATTR).get(0),
-							thisUser.getAttributeData(DESCRIPTION_ATTR).get(0),
-							thisUser.getAttributeData(STATUS_ATTR).get(0),
-							thisUser.getAttributeData(TYPE_ATTR).get(0),
+							thisUser.getNodeID(),
+							thisUser.getParentID(),
+							thisUser.getTeam(),
+							thisUser.getName(),
+							thisUser.getEmail(),
+							thisUser.getDescription(),
+							thisUser.getStatus(),
+							thisUser.getType(),
 					}
 			);
 		}
@@ -354,7 +469,7 @@ public final class KasperskyRoster extends Roster implements Attributes
 		
 		try
 		{
-			retval = getUser(userID).getAttributeData(STATUS_ATTR).get(0).equalsIgnoreCase("disabled");
+			retval = getRecord(userID).getStatus().equalsIgnoreCase("disabled");
 		}
 		catch(Exception e)
 		{}
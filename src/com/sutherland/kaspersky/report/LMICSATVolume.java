@@ -3,6 +3,8 @@
  */
 package com.sutherland.kaspersky.report;
 
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
@@ -12,33 +14,39 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 
 import com.sutherland.helios.api.report.frontend.ReportFrontEndGroups;
-import com.sutherland.helios.data.Aggregation;
 import com.sutherland.helios.data.attributes.DataAttributes;
-import com.sutherland.helios.data.granularity.user.UserGrains;
 import com.sutherland.helios.data.units.DataUnits;
-import com.sutherland.helios.database.connection.SQL.ConnectionFactory;
-import com.sutherland.helios.database.connection.SQL.RemoteConnection;
-import com.sutherland.helios.date.formatting.DateFormatter;
-import com.sutherland.helios.date.parsing.DateParser;
-import com.sutherland.helios.exceptions.DatabaseConnectionCreationException;
 import com.sutherland.helios.exceptions.ExceptionFormatter;
 import com.sutherland.helios.exceptions.ReportSetupException;
 import com.sutherland.helios.logging.LogIDFactory;
 import com.sutherland.helios.report.Report;
 import com.sutherland.helios.report.parameters.groups.ReportParameterGroups;
+import com.sutherland.kaspersky.datasources.ConnectionPool;
 import com.sutherland.kaspersky.datasources.DatabaseConfigs;
+import com.sutherland.kaspersky.datasources.PooledConnection;
+import com.sutherland.kaspersky.report.survey.ChunkedSurveyMetric;
+import com.sutherland.kaspersky.report.survey.DailySurveyRollup;
+import com.sutherland.kaspersky.report.survey.SurveyRecord;
+import com.sutherland.kaspersky.report.survey.SurveyScan;
+import com.sutherland.kaspersky.report.survey.SurveyScoring;
+import com.sutherland.kaspersky.report.survey.SurveyTotals;
 
 
 /**
  * @author Jason Diamond
  *
  */
-public final class LMICSATVolume extends Report implements DataAttributes 
+public final class LMICSATVolume extends Report implements DataAttributes, ChunkedSurveyMetric
 {
-	private RemoteConnection dbConnection;
+	private PooledConnection dbConnection;
 	private final String dbPropFile = DatabaseConfigs.KASP_DEV_DB;
 	private KasperskyRoster roster;
+	private boolean dailyRollup = true;
+	private GrainAccumulators reportData;
+	private ReportPlan plan;
+	private boolean aggregatePushdown = true;
 	private final static Logger logger = Logger.getLogger(LMICSATVolume.class);
+	private final static int SATISFIED_SURVEYS = 0;
 	
 	public static String uiGetReportName()
 	{
@@ -121,15 +129,11 @@ public final class LMICSATVolume extends Report implements DataAttributes
 
 		try 
 		{
-			ConnectionFactory factory = new ConnectionFactory();
-			
-			factory.load(dbPropFile);
-			
-			dbConnection = factory.getConnection();
+			dbConnection = ConnectionPool.getPool(dbPropFile).getConnection();
 		}
-		catch(DatabaseConnectionCreationException e )
+		catch(SQLException e)
 		{
-			setErrorMessage("DatabaseConnectionCreationException on attempt to access database");
+			setErrorMessage("SQLException on attempt to access database");
 			
 			logErrorMessage(getErrorMessage());
 			logErrorMessage( ExceptionFormatter.asString(e));
@@ -150,6 +154,11 @@ public final class LMICSATVolume extends Report implements DataAttributes
 	@Override
 	public void close()
 	{
+		if(roster != null)
+		{
+			roster.close();
+		}
+		
 		if(dbConnection != null)
 		{
 			dbConnection.close();
@@ -163,6 +172,17 @@ public final class LMICSATVolume extends Report implements DataAttributes
 		}
 	}
 	
+	/**
+	 * Choose whether to count on the database with grouped queries, or to transfer and count every row. Pushdown is on by default, and is only
+	 * used when the roster's technician filter is exact.
+	 * 
+	 * @param aggregatePushdown	True to count on the database.
+	 */
+	public void setAggregatePushdown(boolean aggregatePushdown)
+	{
+		this.aggregatePushdown = aggregatePushdown;
+	}
+	
 	@Override
 	public ArrayList<String> getReportSchema() 
 	{
@@ -182,6 +202,17 @@ public final class LMICSATVolume extends Report implements DataAttributes
 		return retval;
 	}
 
+	/**
+	 * Choose whether to answer day-or-coarser grains over midnight-aligned ranges from the daily survey rollup, or to score every survey
+	 * in the range. The rollup is used by default.
+	 * 
+	 * @param dailyRollup	True to answer from the rollup when the grain allows it.
+	 */
+	public void setDailyRollup(boolean dailyRollup)
+	{
+		this.dailyRollup = dailyRollup;
+	}
+	
 	/* (non-Javadoc)
 	 * @see helios.Report#runReport(java.lang.String, java.lang.String)
 	 */
@@ -191,105 +222,144 @@ public final class LMICSATVolume extends Report implements DataAttributes
 		
 		ArrayList<String[]> retval = new ArrayList<String[]>();
 
-		String query = "SELECT Date,Session_ID,Customer_Name,Technician_Name,Technician_ID,Q1,Q2,Q3,Q4 FROM LMI_10982630_Customer_Survey WHERE Date >= '" + 
-				getParameters().getStartDate() + 
-				"' AND Date < '" + 
-				getParameters().getEndDate() + 
-				"'";
-
+		Timestamp startDate = PooledConnection.toTimestamp(getParameters().getStartDate());
+		Timestamp endDate = PooledConnection.toTimestamp(getParameters().getEndDate());
 
-		Aggregation reportData = new Aggregation();
 
-		String tID, q1, q2, q3, q4, reportGrain;
-		int maxPoints, surveyPoints;
+		reportData = new GrainAccumulators(1);
 		
 		roster = new KasperskyRoster();
 		roster.setChildReport(true);
 		roster.getParameters().setAgentNames(getParameters().getAgentNames());
 		roster.getParameters().setTeamNames(getParameters().getTeamNames());
 		roster.load();
-				
-		//don't assign time grain just yet. in case this is a non-time report, because the timegrain param is not guaranteed to be set 
-		int timeGrain, userGrain, dateFormat;
 		
-		for(String[] row:  dbConnection.runQuery(query))
+		plan = ReportPlan.compile(this, roster);
+		
+		if(dailyRollup && DailySurveyRollup.canAnswer(this, startDate, endDate))
 		{
-			maxPoints = 0;
-			surveyPoints = 0;
-
-			tID = row[4];
-			if(roster.hasUser(tID) )
+			//score from the per-technician daily totals rather than from every survey
+			SurveyTotals totals;
+			for(Entry<String, SurveyTotals> grainTotals : DailySurveyRollup.getGrainTotals(this, dbConnection, roster, startDate, endDate).entrySet())
 			{
-				q1 = row[5];
-				q2 = row[6];
-				q3 = row[7];
-				q4 = row[8];
-
-				if( !q1.equals("") )
-				{
-					surveyPoints += Integer.parseInt(q1);
-					maxPoints += 10;
-				}
-
-				if( !q2.equals("") )
-				{
-					surveyPoints += Integer.parseInt(q2);
-					maxPoints += 10;
-				}
-
-				if( !q3.equals("") )
-				{
-					surveyPoints += Integer.parseInt(q3);
-					maxPoints += 10;
-				}
-
-				if( !q4.equals("") )
+				totals = grainTotals.getValue();
+				
+				if(totals.getSatisfiedSurveys() > 0)
 				{
-					surveyPoints += Integer.parseInt(q4);
-					maxPoints += 10;
-				}
-
-				//throw out blank surveys
-				if(maxPoints > 0)
-				{
-					if(isTimeTrendReport())
-					{
-						timeGrain = Integer.parseInt(getParameters().getTimeGrain());
-						dateFormat = Integer.parseInt(getParameters().getDateFormat());
-						reportGrain = DateFormatter.getFormattedDate(DateParser.convertSQLDateToGregorian(row[0]), timeGrain, dateFormat);
-					}
-					else //if(isStackReport())
-					{
-						userGrain = Integer.parseInt(getParameters().getUserGrain());
-						reportGrain = UserGrains.getUserGrain(userGrain, roster.getUser(tID));
-					}
-
-					double csat = (double)surveyPoints/(double)maxPoints;
-
-					if( csat >= .85)
-					{
-						reportData.addDatum(reportGrain);
-						reportData.getDatum(reportGrain).addAttribute(SAT_SURVEYS_ATTR);
-						reportData.getDatum(reportGrain).addData(SAT_SURVEYS_ATTR, tID);
-					}
+					retval.add(new String[]{grainTotals.getKey(), "" + (double)totals.getSatisfiedSurveys() });
 				}
 			}
-
+		}
+		else if(aggregatePushdown && roster.isTechnicianFilterExact() && !SurveyScan.isGathering(startDate, endDate, roster))
+		{
+			ArrayList<Object> queryParameters = new ArrayList<Object>();
+			queryParameters.add(startDate);
+			queryParameters.add(endDate);
+			
+			String technicianFilter = roster.getTechnicianFilter("Technician_ID", queryParameters);
+			
+			//let the database do the counting, and only transfer one row per bucket
+			String rowQuery = "SELECT Date AS Bucket_Time,Technician_ID," + 
+					GroupedCounts.nullableInt("Q1") + " AS Q1," + 
+					GroupedCounts.nullableInt("Q2") + " AS Q2," + 
+					GroupedCounts.nullableInt("Q3") + " AS Q3," + 
+					GroupedCounts.nullableInt("Q4") + " AS Q4 " + 
+					"FROM LMI_10982630_Customer_Survey WHERE Date >= ? AND Date < ? AND " + technicianFilter;
+			
+			GroupedCounts.addRows(GroupedCounts.count(this, dbConnection, roster, rowQuery, GroupedCounts.SATISFIED_SURVEY_COUNT, queryParameters), retval);
+		}
+		else
+		{
+			SurveyScan.scan(dbConnection, startDate, endDate, roster, this);
+			
+			double numSatCases;
+			for(String grain : reportData.getGrains())
+			{
+				numSatCases = reportData.get(grain, SATISFIED_SURVEYS).getCount();
+				retval.add(new String[]{grain, "" + numSatCases });
+			}
 		}
 		
+		logQueryStatistics();
+
+		return retval;
+	}
+
+	/**
+	 * Log the timings of the queries run for this report.
+	 */
+	private void logQueryStatistics()
+	{
 		for( Entry<String, String> queryStats  : dbConnection.getStatistics().entrySet())
 		{
 			logInfoMessage( "Query " + queryStats.getKey() + ": " + queryStats.getValue());
 		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.SurveyMetric#addSurvey(com.sutherland.kaspersky.report.survey.SurveyRecord)
+	 */
+	@Override
+	public void addSurvey(SurveyRecord survey)
+	{
+		addSurvey(survey, plan, reportData);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.ChunkedSurveyMetric#newPartial()
+	 */
+	@Override
+	public GrainPartial newPartial()
+	{
+		return new GrainPartial(ReportPlan.compile(this, roster), 1);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.ChunkedSurveyMetric#addSurvey(com.sutherland.kaspersky.report.GrainPartial, com.sutherland.kaspersky.report.survey.SurveyRecord)
+	 */
+	@Override
+	public void addSurvey(GrainPartial partial, SurveyRecord survey)
+	{
+		addSurvey(survey, partial.getPlan(), partial.getAccumulators());
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.ChunkedSurveyMetric#addPartial(com.sutherland.kaspersky.report.GrainPartial)
+	 */
+	@Override
+	public void addPartial(GrainPartial partial)
+	{
+		reportData.merge(partial.getAccumulators());
+	}
+	
+	private void addSurvey(SurveyRecord survey, ReportPlan surveyPlan, GrainAccumulators surveyData)
+	{
+		String tID, reportGrain;
+		int score;
 
-		double numSatCases;
-		for(String grain : reportData.getDatumIDList())
+		tID = survey.getTechnicianID();
+		if(surveyPlan.admits(tID))
 		{
-			numSatCases = reportData.getDatum(grain).getAttributeData(SAT_SURVEYS_ATTR).size();
-			retval.add(new String[]{grain, "" + numSatCases });
+			score = survey.getScore(SurveyScoring.TEN_POINT);
+
+			//throw out blank surveys
+			if(SurveyScoring.getMaxPoints(score) > 0 && SurveyScoring.getRate(score) >= .85)
+			{
+				reportGrain = surveyPlan.getGrain(survey.getSurveyTime(), tID);
+
+				surveyData.get(reportGrain, SATISFIED_SURVEYS).increment();
+			}
 		}
 
-		return retval;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.SurveyMetric#needsDetailColumns()
+	 */
+	@Override
+	public boolean needsDetailColumns()
+	{
+		return false;
 	}
 	
 	@Override
@@ -3,6 +3,8 @@
  */
 package com.sutherland.kaspersky.report;
 
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
@@ -12,21 +14,19 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 
 import com.sutherland.helios.api.report.frontend.ReportFrontEndGroups;
-import com.sutherland.helios.data.Aggregation;
 import com.sutherland.helios.data.attributes.DataAttributes;
-import com.sutherland.helios.data.granularity.user.UserGrains;
 import com.sutherland.helios.data.units.DataUnits;
-import com.sutherland.helios.database.connection.SQL.ConnectionFactory;
-import com.sutherland.helios.database.connection.SQL.RemoteConnection;
-import com.sutherland.helios.date.formatting.DateFormatter;
-import com.sutherland.helios.date.parsing.DateParser;
-import com.sutherland.helios.exceptions.DatabaseConnectionCreationException;
 import com.sutherland.helios.exceptions.ExceptionFormatter;
 import com.sutherland.helios.exceptions.ReportSetupException;
 import com.sutherland.helios.logging.LogIDFactory;
 import com.sutherland.helios.report.Report;
 import com.sutherland.helios.report.parameters.groups.ReportParameterGroups;
+import com.sutherland.kaspersky.datasources.ConnectionPool;
 import com.sutherland.kaspersky.datasources.DatabaseConfigs;
+import com.sutherland.kaspersky.datasources.DateRangePartitions;
+import com.sutherland.kaspersky.datasources.DateRangePartitions.PartitionTask;
+import com.sutherland.kaspersky.datasources.PooledConnection;
+import com.sutherland.kaspersky.datasources.RowCursor;
 
 
 /**
@@ -35,11 +35,13 @@ import com.sutherland.kaspersky.datasources.DatabaseConfigs;
  */
 public final class LMIConcurrency extends Report implements DataAttributes 
 {
-	private RemoteConnection dbConnection;
+	private PooledConnection dbConnection;
 
 	private final String dbPropFile = DatabaseConfigs.KASP_DEV_DB;
 	private KasperskyRoster roster;
+	private boolean aggregatePushdown = true;
 	private final static Logger logger = Logger.getLogger(LMIConcurrency.class);
+	private final static int SESSIONS = 0;
 	
 	public static String uiGetReportName()
 	{
@@ -122,15 +124,11 @@ public final class LMIConcurrency extends Report implements DataAttributes
 
 		try 
 		{
-			ConnectionFactory factory = new ConnectionFactory();
-			
-			factory.load(dbPropFile);
-			
-			dbConnection = factory.getConnection();
+			dbConnection = ConnectionPool.getPool(dbPropFile).getConnection();
 		}
-		catch(DatabaseConnectionCreationException e )
+		catch(SQLException e)
 		{
-			setErrorMessage("DatabaseConnectionCreationException on attempt to access database");
+			setErrorMessage("SQLException on attempt to access database");
 			
 			logErrorMessage(getErrorMessage());
 			logErrorMessage( ExceptionFormatter.asString(e));
@@ -151,6 +149,11 @@ public final class LMIConcurrency extends Report implements DataAttributes
 	@Override
 	public void close()
 	{
+		if(roster != null)
+		{
+			roster.close();
+		}
+		
 		if(dbConnection != null)
 		{
 			dbConnection.close();
@@ -164,6 +167,17 @@ public final class LMIConcurrency extends Report implements DataAttributes
 		}
 	}
 	
+	/**
+	 * Choose whether to count on the database with grouped queries, or to transfer and count every row. Pushdown is on by default, and is only
+	 * used when the roster's technician filter is exact.
+	 * 
+	 * @param aggregatePushdown	True to count on the database.
+	 */
+	public void setAggregatePushdown(boolean aggregatePushdown)
+	{
+		this.aggregatePushdown = aggregatePushdown;
+	}
+	
 	@Override
 	public ArrayList<String> getReportSchema() 
 	{
@@ -183,29 +197,6 @@ public final class LMIConcurrency extends Report implements DataAttributes
 		return retval;
 	}
 	
-	private double convertIntervalLengthToSeconds(String interval)
-	{
-		//interval in HH:MM:SS
-		
-		double retval = -1;
-		
-		String[] parts = interval.split(":");
-		
-		try
-		{
-			retval = (60 * 60 * Double.parseDouble(parts[0])) + (60*Double.parseDouble(parts[1])) + (Double.parseDouble(parts[2]));
-		}
-		catch(Exception e)
-		{
-			setErrorMessage("Error occured computing interval length");
-			
-			logErrorMessage(getErrorMessage());
-			logErrorMessage( ExceptionFormatter.asString(e));
-		}
-		
-		return retval;
-	}
-	
 	/* (non-Javadoc)
 	 * @see helios.Report#runReport(java.lang.String, java.lang.String)
 	 */
@@ -214,66 +205,142 @@ public final class LMIConcurrency extends Report implements DataAttributes
 	{
 		ArrayList<String[]> retval = new ArrayList<String[]>();
 
-		String query = "Select Start_Time,Technician_ID,Active_Time,Work_Time FROM LMI_10982630_Session Where " + 
-				"Start_Time >= '" + 
-				getParameters().getStartDate() + 
-				"' AND End_Time < '" + 
-				getParameters().getEndDate() + "'";
+		String query = "Select Start_Time,Technician_ID,Active_Time,Work_Time FROM LMI_10982630_Session Where Start_Time >= ? AND Start_Time < ? AND End_Time < ?";
 
-		Aggregation reportData = new Aggregation();
+		Timestamp startDate = PooledConnection.toTimestamp(getParameters().getStartDate());
+		Timestamp endDate = PooledConnection.toTimestamp(getParameters().getEndDate());
+
+		GrainAccumulators reportData = new GrainAccumulators(1);
 
-		String reportGrain, tID, conc;
-		
 		roster = new KasperskyRoster();
 		roster.setChildReport(true);
 		roster.getParameters().setAgentNames(getParameters().getAgentNames());
 		roster.getParameters().setTeamNames(getParameters().getTeamNames());
 		roster.load();
 		
-		//don't assign time grain just yet. in case this is a non-time report, because the timegrain param is not guaranteed to be set 
-		int timeGrain, userGrain, dateFormat;
+		ArrayList<Object> queryParameters = new ArrayList<Object>();
+		queryParameters.add(startDate);
+		queryParameters.add(endDate);
+		queryParameters.add(endDate);
+		
+		String technicianFilter = roster.getTechnicianFilter("Technician_ID", queryParameters);
 		
-		for(String[] row:  dbConnection.runQuery(query))
+		if(aggregatePushdown && roster.isTechnicianFilterExact())
 		{
-			tID = row[1];
-			if(roster.hasUser(tID) )
+			//let the database do the counting, and only transfer one row per bucket
+			String rowQuery = "SELECT Start_Time AS Bucket_Time,Technician_ID FROM LMI_10982630_Session WHERE Start_Time >= ? AND Start_Time < ? AND End_Time < ? AND " + technicianFilter;
+			
+			GroupedCounts.addRows(GroupedCounts.count(this, dbConnection, roster, rowQuery, GroupedCounts.ROW_COUNT, queryParameters), retval);
+		}
+		else
+		{
+			query += " AND " + technicianFilter;
+			
+			final String sessionQuery = query;
+			final ArrayList<Object> sessionParameters = queryParameters;
+			
+			//partitions split on Start_Time only, so a session running past a partition boundary is still counted once
+			//each partition aggregates its own sessions, and the partials are merged in date order
+			PartitionTask<GrainAccumulators> partitionSessions = new PartitionTask<GrainAccumulators>()
 			{
-				if(isTimeTrendReport())
+				@Override
+				public GrainAccumulators run(PooledConnection partitionConnection, Timestamp partitionStart, Timestamp partitionEnd) throws SQLException
 				{
-					timeGrain = Integer.parseInt(getParameters().getTimeGrain());
-					dateFormat = Integer.parseInt(getParameters().getDateFormat());
-					reportGrain = DateFormatter.getFormattedDate(DateParser.convertSQLDateToGregorian(row[0]), timeGrain, dateFormat);
-				}
-				else //if(isStackReport())
-				{
-					userGrain = Integer.parseInt(getParameters().getUserGrain());
-					reportGrain = UserGrains.getUserGrain(userGrain, roster.getUser(tID));
+					ArrayList<Object> partitionParameters = new ArrayList<Object>(sessionParameters);
+					partitionParameters.set(0, partitionStart);
+					partitionParameters.set(1, partitionEnd);
+					
+					return aggregateSessions(partitionConnection, sessionQuery, partitionParameters);
 				}
-
-				//active_/work_time
-				//times are in HH:MM:SS
-
-				conc = "" + convertIntervalLengthToSeconds(row[2])/convertIntervalLengthToSeconds(row[3]);
-
-				reportData.addDatum(reportGrain);
-				reportData.getDatum(reportGrain).addAttribute(ALL_SURVEYS_ATTR);
-				reportData.getDatum(reportGrain).addData(ALL_SURVEYS_ATTR, conc);
-
+			};
+			
+			for(GrainAccumulators partial : DateRangePartitions.run(dbConnection, startDate, endDate, partitionSessions))
+			{
+				reportData.merge(partial);
+			}
+			
+			double numSatCases;
+			for(String grain : reportData.getGrains())
+			{
+				numSatCases = reportData.get(grain, SESSIONS).getCount();
+				retval.add(new String[]{grain, "" + numSatCases });
 			}
 		}
 		
+		logQueryStatistics();
+
+		return retval;
+	}
+
+	/**
+	 * Log the timings of the queries run for this report.
+	 */
+	private void logQueryStatistics()
+	{
 		for( Entry<String, String> queryStats  : dbConnection.getStatistics().entrySet())
 		{
 			logInfoMessage( "Query " + queryStats.getKey() + ": " + queryStats.getValue());
 		}
+	}
+	
+	/**
+	 * Aggregate the concurrency of each session in one partition of the report's date range.
+	 * 
+	 * @param partitionConnection	The connection to query on.
+	 * @param query					The session query.
+	 * @param parameters			The session query's bind parameters, for the partition.
+	 * 
+	 * @return	Grain => count and sum of the sessions' concurrency.
+	 * 
+	 * @throws SQLException	If the query fails.
+	 */
+	private GrainAccumulators aggregateSessions(PooledConnection partitionConnection, String query, ArrayList<Object> parameters) throws SQLException
+	{
+		GrainAccumulators retval = new GrainAccumulators(1);
+		
+		String reportGrain, tID;
+		double activeSeconds, workSeconds;
+		
+		//partitions run on separate threads, so each compiles its own plan
+		ReportPlan plan = ReportPlan.compile(this, roster);
+		
+		RowCursor rows = partitionConnection.openCursor(query, parameters.toArray());
+		try
+		{
+			while(rows.next())
+			{
+				tID = rows.getString(1);
+				if(plan.admits(tID))
+				{
+					reportGrain = plan.getGrain(rows.getEpochMillis(0), tID);
+
+					//active_/work_time
+					//times are in HH:MM:SS
 
-		double numSatCases;
-		for(String grain : reportData.getDatumIDList())
+					activeSeconds = rows.getIntervalSeconds(2);
+					workSeconds = rows.getIntervalSeconds(3);
+					
+					if(activeSeconds < 0 || workSeconds < 0)
+					{
+						//partitions run on separate threads
+						synchronized(this)
+						{
+							setErrorMessage("Error occured computing interval length");
+							
+							logErrorMessage(getErrorMessage());
+						}
+					}
+
+					retval.get(reportGrain, SESSIONS).add(activeSeconds/workSeconds);
+
+				}
+			}
+		}
+		finally
 		{
-			numSatCases = reportData.getDatum(grain).getAttributeData(ALL_SURVEYS_ATTR).size();
-			retval.add(new String[]{grain, "" + numSatCases });
+			rows.close();
 		}
-
+		
 		return retval;
 	}
 	
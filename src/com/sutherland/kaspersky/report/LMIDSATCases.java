@@ -3,7 +3,10 @@
  */
 package com.sutherland.kaspersky.report;
 
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.GregorianCalendar;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
@@ -13,27 +16,32 @@ import org.apache.log4j.MDC;
 
 import com.sutherland.helios.api.report.frontend.ReportFrontEndGroups;
 import com.sutherland.helios.data.formatting.NumberFormatter;
-import com.sutherland.helios.database.connection.SQL.ConnectionFactory;
-import com.sutherland.helios.database.connection.SQL.RemoteConnection;
 import com.sutherland.helios.date.parsing.DateParser;
-import com.sutherland.helios.exceptions.DatabaseConnectionCreationException;
 import com.sutherland.helios.exceptions.ExceptionFormatter;
 import com.sutherland.helios.exceptions.ReportSetupException;
 import com.sutherland.helios.logging.LogIDFactory;
 import com.sutherland.helios.report.Report;
 import com.sutherland.helios.report.parameters.groups.ReportParameterGroups;
+import com.sutherland.kaspersky.datasources.ConnectionPool;
 import com.sutherland.kaspersky.datasources.DatabaseConfigs;
+import com.sutherland.kaspersky.datasources.PooledConnection;
+import com.sutherland.kaspersky.report.survey.SurveyMetric;
+import com.sutherland.kaspersky.report.survey.SurveyRecord;
+import com.sutherland.kaspersky.report.survey.SurveyScan;
+import com.sutherland.kaspersky.report.survey.SurveyScoring;
 
 /**
  * @author Jason Diamond
  *
  */
-public final class LMIDSATCases extends Report 
+public final class LMIDSATCases extends Report implements SurveyMetric
 {
-	private RemoteConnection dbConnection;
+	private PooledConnection dbConnection;
 
 	private final String dbPropFile = DatabaseConfigs.KASP_DEV_DB;
 	private KasperskyRoster roster;
+	private ArrayList<String[]> dsatCases;
+	private GregorianCalendar surveyDate;
 	private final static Logger logger = Logger.getLogger(LMIDSATCases.class);
 
 	public static String uiGetReportName()
@@ -117,15 +125,11 @@ public final class LMIDSATCases extends Report
 
 		try 
 		{
-			ConnectionFactory factory = new ConnectionFactory();
-
-			factory.load(dbPropFile);
-
-			dbConnection = factory.getConnection();
+			dbConnection = ConnectionPool.getPool(dbPropFile).getConnection();
 		}
-		catch(DatabaseConnectionCreationException e )
+		catch(SQLException e)
 		{
-			setErrorMessage("DatabaseConnectionCreationException on attempt to access database");
+			setErrorMessage("SQLException on attempt to access database");
 
 			logErrorMessage(getErrorMessage());
 			logErrorMessage( ExceptionFormatter.asString(e));
@@ -192,106 +196,87 @@ public final class LMIDSATCases extends Report
 	{
 		ArrayList<String[]> retval = new ArrayList<String[]>();
 
-		String query = "SELECT Date,Session_ID,Customer_Name,Technician_Name,Technician_ID,Q1,Q2,Q3,Q4,Comments FROM LMI_10982630_Customer_Survey WHERE Date >= '" + 
-				getParameters().getStartDate() + 
-				"' AND Date < '" + 
-				getParameters().getEndDate() + 
-				"'";
+		Timestamp startDate = PooledConnection.toTimestamp(getParameters().getStartDate());
+		Timestamp endDate = PooledConnection.toTimestamp(getParameters().getEndDate());
 
 		roster = new KasperskyRoster();
 		roster.setChildReport(true);
 		roster.getParameters().setAgentNames(getParameters().getAgentNames());
 		roster.getParameters().setTeamNames(getParameters().getTeamNames());
 		roster.load();
+		
+		dsatCases = retval;
+		surveyDate = new GregorianCalendar();
+		
+		SurveyScan.scan(dbConnection, startDate, endDate, roster, this);
 
-		String tID, q1, q2, q3, q4, comments;
-		int maxPoints, surveyPoints;
-		for(String[] row:  dbConnection.runQuery(query))
+		for( Entry<String, String> queryStats  : dbConnection.getStatistics().entrySet())
 		{
-			maxPoints = 0;
-			surveyPoints = 0;
-			
-			tID = row[4];
-			if(roster.hasUser(tID) )
-			{
-				//questions can be blank, surveys can be blank
-				
-				//for each q, if the value is defined add the normalized values
-				
+			logInfoMessage( "Query " + queryStats.getKey() + ": " + queryStats.getValue());
+		}
 
-				
-				q1 = row[5];
-				q2 = row[6];
-				q3 = row[7];
-				q4 = row[8];
-				comments = row[9];
-				
-				if( !q1.equals("") )
-				{
-					surveyPoints += Integer.parseInt(q1);
-					maxPoints += 10;
-				}
-				
-				if( !q2.equals("") )
+		return retval;
+	}	
+
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.SurveyMetric#addSurvey(com.sutherland.kaspersky.report.survey.SurveyRecord)
+	 */
+	@Override
+	public void addSurvey(SurveyRecord survey) throws SQLException
+	{
+		String tID;
+		int score;
+	
+		tID = survey.getTechnicianID();
+		if(roster.hasUser(tID) )
+		{
+			//questions can be blank, surveys can be blank
+			score = survey.getScore(SurveyScoring.TEN_POINT);
+		
+			//throw out blank surveys
+			if(SurveyScoring.getMaxPoints(score) > 0)
+			{
+				double csat = SurveyScoring.getRate(score);
+			
+				if( csat < .85)
 				{
-					surveyPoints += Integer.parseInt(q2);
-					maxPoints += 10;
-				}
+					//add row if dsat < 85%
 				
-				if( !q3.equals("") )
-				{
-					surveyPoints += Integer.parseInt(q3);
-					maxPoints += 10;
-				}
+					int dateFormat = Integer.parseInt(getParameters().getDateFormat());
+					surveyDate.setTimeInMillis(survey.getSurveyTime());
+					String creationDate = DateParser.convertToString(surveyDate, dateFormat );	
 				
-				if( !q4.equals("") )
-				{
-					surveyPoints += Integer.parseInt(q4);
-					maxPoints += 10;
-				}
 				
-				//throw out blank surveys
-				if(maxPoints > 0)
-				{
-					double csat = (double)surveyPoints/(double)maxPoints;
-					
-					if( csat < .85)
-					{
-						//add row if dsat < 85%
-						
-						int dateFormat = Integer.parseInt(getParameters().getDateFormat());
-						String creationDate = DateParser.convertToString(DateParser.convertSQLDateToGregorian(row[0]), dateFormat );	
-						
-						
-						retval.add
-						(
-							new String[]
-							{
-									creationDate,
-									row[1],
-									row[2],
-									row[3],
-									q1,
-									q2,
-									q3,
-									q4,
-									comments,
-									"" + NumberFormatter.convertToPercentage(csat, 4)
-							}
-						);
-					}
+					dsatCases.add
+					(
+						new String[]
+						{
+								creationDate,
+								survey.getSessionID(),
+								survey.getCustomerName(),
+								survey.getTechnicianName(),
+								survey.getAnswerText(1),
+								survey.getAnswerText(2),
+								survey.getAnswerText(3),
+								survey.getAnswerText(4),
+								survey.getComments(),
+								"" + NumberFormatter.convertToPercentage(csat, 4)
+						}
+					);
 				}
 			}
 		}
-
-		for( Entry<String, String> queryStats  : dbConnection.getStatistics().entrySet())
-		{
-			logInfoMessage( "Query " + queryStats.getKey() + ": " + queryStats.getValue());
-		}
-
-		return retval;
-	}	
-
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.SurveyMetric#needsDetailColumns()
+	 */
+	@Override
+	public boolean needsDetailColumns()
+	{
+		return true;
+	}
+	
 	@Override
 	protected void logErrorMessage(String message) 
 	{
@@ -12,7 +12,6 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 
 import com.sutherland.helios.api.report.frontend.ReportFrontEndGroups;
-import com.sutherland.helios.data.Aggregation;
 import com.sutherland.helios.data.attributes.DataAttributes;
 import com.sutherland.helios.data.units.DataUnits;
 import com.sutherland.helios.exceptions.ExceptionFormatter;
@@ -29,6 +28,7 @@ public final class LMIDSATVolume extends Report  implements DataAttributes
 {
 	private LMIDSATCases dsatCaseReport;
 	private final static Logger logger = Logger.getLogger(LMIDSATVolume.class);
+	private final static int DSAT_CASES = 0;
 
 	public static String uiGetReportName()
 	{
@@ -163,28 +163,17 @@ public final class LMIDSATVolume extends Report  implements DataAttributes
 		dsatCaseReport.setParameters(getParameters());
 		dsatCaseReport.startReport();
 		
-		Aggregation reportGrainData = new Aggregation();
+		GrainAccumulators reportGrainData = new GrainAccumulators(1);
 
-		String reportGrain;
-		
 		for(String[] row : dsatCaseReport.getData())
 		{
-			reportGrain = row[3];
-
-			reportGrainData.addDatum(reportGrain);
-			reportGrainData.getDatum(reportGrain).addAttribute(DSAT_CASE_ATTR );
-			reportGrainData.getDatum(reportGrain).addData(DSAT_CASE_ATTR, row[0]);
+			reportGrainData.get(row[3], DSAT_CASES).increment();
 		}
 
 		int dsatCount;
-		for(String user : reportGrainData.getDatumIDList())
+		for(String user : reportGrainData.getGrains())
 		{
-			//not all users will have refunds
-			dsatCount = 0;
-			if( reportGrainData.getDatum(user).getAttributeData(DSAT_CASE_ATTR) != null)
-			{
-				dsatCount = reportGrainData.getDatum(user).getAttributeData(DSAT_CASE_ATTR).size();
-			}
+			dsatCount = (int)reportGrainData.get(user, DSAT_CASES).getCount();
 
 			retval.add(new String[]{user, "" + dsatCount }) ;
 		}
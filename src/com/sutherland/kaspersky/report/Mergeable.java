@@ -0,0 +1,24 @@
+/**
+ *
+ */
+package com.sutherland.kaspersky.report;
+
+/**
+ * A partial aggregate that can absorb another of its kind. Merging must be associative, so partials built over adjacent chunks of rows
+ * can be combined in any grouping, as long as they are combined in row order, and give the same totals as one pass over all the rows.
+ *
+ * The same partials serve parallel chunks of one scan, date range partitions, and totals kept between reports.
+ *
+ * @author Jason Diamond
+ *
+ * @param <T>	The partial's own type.
+ */
+public interface Mergeable<T extends Mergeable<T>>
+{
+	/**
+	 * Add another partial's totals to this one. The other partial covers rows after this one's, and is not modified.
+	 *
+	 * @param other	The partial to add.
+	 */
+	public void merge(T other);
+}
@@ -3,6 +3,8 @@
  */
 package com.sutherland.kaspersky.report;
 
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
@@ -12,36 +14,40 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 
 import com.sutherland.helios.api.report.frontend.ReportFrontEndGroups;
-import com.sutherland.helios.data.Aggregation;
 import com.sutherland.helios.data.attributes.DataAttributes;
 import com.sutherland.helios.data.formatting.NumberFormatter;
-import com.sutherland.helios.data.granularity.user.UserGrains;
 import com.sutherland.helios.data.units.DataUnits;
-import com.sutherland.helios.database.connection.SQL.ConnectionFactory;
-import com.sutherland.helios.database.connection.SQL.RemoteConnection;
-import com.sutherland.helios.date.formatting.DateFormatter;
-import com.sutherland.helios.date.parsing.DateParser;
-import com.sutherland.helios.exceptions.DatabaseConnectionCreationException;
 import com.sutherland.helios.exceptions.ExceptionFormatter;
 import com.sutherland.helios.exceptions.ReportSetupException;
 import com.sutherland.helios.logging.LogIDFactory;
 import com.sutherland.helios.report.Report;
 import com.sutherland.helios.report.parameters.groups.ReportParameterGroups;
+import com.sutherland.kaspersky.datasources.ConnectionPool;
 import com.sutherland.kaspersky.datasources.DatabaseConfigs;
+import com.sutherland.kaspersky.datasources.PooledConnection;
+import com.sutherland.kaspersky.datasources.RowCursor;
+import com.sutherland.kaspersky.report.survey.ChunkedSurveyMetric;
+import com.sutherland.kaspersky.report.survey.DailySurveyRollup;
+import com.sutherland.kaspersky.report.survey.SurveyRecord;
+import com.sutherland.kaspersky.report.survey.SurveyScan;
+import com.sutherland.kaspersky.report.survey.SurveyTotals;
 
 /**
  * @author Jason Diamond
  *
  */
-public final class NetPromoterScore extends Report  implements DataAttributes
+public final class NetPromoterScore extends Report  implements DataAttributes, ChunkedSurveyMetric
 {
-	private RemoteConnection dbConnection;
+	private PooledConnection dbConnection;
 	private final String dbPropFile = DatabaseConfigs.KASP_DEV_DB;
 	private KasperskyRoster roster;
+	private boolean dailyRollup = true;
+	private GrainAccumulators reportData;
+	private ReportPlan plan;
 	private final static Logger logger = Logger.getLogger(NetPromoterScore.class);
-	private final static String NET_PROM_ATTR = "netPromoter";
-	private final static String NON_NET_PROM_ATTR = "nonNetProm";
-	private final static String VIABLE_SURVEYS_ATTR = "viableSurveys";
+	private final static int NET_PROM = 0;
+	private final static int NON_NET_PROM = 1;
+	private final static int VIABLE_SURVEYS = 2;
 	
 	public static String uiGetReportName()
 	{
@@ -124,15 +130,11 @@ public final class NetPromoterScore extends Report  implements DataAttributes
 
 		try 
 		{
-			ConnectionFactory factory = new ConnectionFactory();
-			
-			factory.load(dbPropFile);
-			
-			dbConnection = factory.getConnection();
+			dbConnection = ConnectionPool.getPool(dbPropFile).getConnection();
 		}
-		catch(DatabaseConnectionCreationException e )
+		catch(SQLException e)
 		{
-			setErrorMessage("DatabaseConnectionCreationException on attempt to access database");
+			setErrorMessage("SQLException on attempt to access database");
 			
 			logErrorMessage(getErrorMessage());
 			logErrorMessage( ExceptionFormatter.asString(e));
@@ -152,7 +154,12 @@ public final class NetPromoterScore extends Report  implements DataAttributes
 	 */
 	@Override
 	public void close()
-	{		
+	{
+		if(roster != null)
+		{
+			roster.close();
+		}
+		
 		if(dbConnection != null)
 		{
 			dbConnection.close();
@@ -185,6 +192,17 @@ public final class NetPromoterScore extends Report  implements DataAttributes
 		return retval;
 	}
 
+	/**
+	 * Choose whether to answer day-or-coarser grains over midnight-aligned ranges from the daily survey rollup, or to score every survey
+	 * in the range. The rollup is used by default.
+	 * 
+	 * @param dailyRollup	True to answer from the rollup when the grain allows it.
+	 */
+	public void setDailyRollup(boolean dailyRollup)
+	{
+		this.dailyRollup = dailyRollup;
+	}
+	
 	/* (non-Javadoc)
 	 * @see helios.Report#runReport(java.lang.String, java.lang.String)
 	 */
@@ -194,108 +212,146 @@ public final class NetPromoterScore extends Report  implements DataAttributes
 		
 		ArrayList<String[]> retval = new ArrayList<String[]>();
 
-		String query = "SELECT Date,Technician_ID,Session_ID,Q3 FROM LMI_10982630_Customer_Survey WHERE Date >= '" + 
-				getParameters().getStartDate() + 
-				"' AND Date < '" + 
-				getParameters().getEndDate() + 
-				"'";
-
+		Timestamp startDate = PooledConnection.toTimestamp(getParameters().getStartDate());
+		Timestamp endDate = PooledConnection.toTimestamp(getParameters().getEndDate());
 
-		Aggregation reportData = new Aggregation();
 
-		String tID, q3, reportGrain;
-		int surveyAnswer;
+		reportData = new GrainAccumulators(3);
 		
 		roster = new KasperskyRoster();
 		roster.setChildReport(true);
 		roster.getParameters().setAgentNames(getParameters().getAgentNames());
 		roster.getParameters().setTeamNames(getParameters().getTeamNames());
 		roster.load();
-				
-		//don't assign time grain just yet. in case this is a non-time report, because the timegrain param is not guaranteed to be set 
-		int timeGrain, userGrain, dateFormat;
 		
-		for(String[] row:  dbConnection.runQuery(query))
+		plan = ReportPlan.compile(this, roster);
+		
+		if(dailyRollup && DailySurveyRollup.canAnswer(this, startDate, endDate))
 		{
-			tID = row[1];
-			if(roster.hasUser(tID) )
+			//score from the per-technician daily totals rather than from every survey
+			SurveyTotals totals;
+			for(Entry<String, SurveyTotals> grainTotals : DailySurveyRollup.getGrainTotals(this, dbConnection, roster, startDate, endDate).entrySet())
 			{
-				q3 = row[3];
-
-				if( !q3.equals("") )
+				totals = grainTotals.getValue();
+				
+				if(totals.getNPSSurveys() > 0)
 				{
-					surveyAnswer = Integer.parseInt(q3);
-					
-					if(isTimeTrendReport())
-					{
-						timeGrain = Integer.parseInt(getParameters().getTimeGrain());
-						dateFormat = Integer.parseInt(getParameters().getDateFormat());
-						reportGrain = DateFormatter.getFormattedDate( DateParser.convertSQLDateToGregorian(row[0]), timeGrain, dateFormat);
-					}
-					else //if(isStackReport())
-					{
-						userGrain = Integer.parseInt(getParameters().getUserGrain());
-						reportGrain = UserGrains.getUserGrain(userGrain, roster.getUser(tID));
-					}
-					
-					reportData.addDatum(reportGrain);
-					reportData.getDatum(reportGrain).addAttribute(VIABLE_SURVEYS_ATTR);
-					reportData.getDatum(reportGrain).addAttribute(NET_PROM_ATTR);
-					reportData.getDatum(reportGrain).addAttribute(NON_NET_PROM_ATTR);
-					
-					reportData.getDatum(reportGrain).addData(VIABLE_SURVEYS_ATTR, row[2]);
-					
-					//NPS is calculated by (% of promoters (9-10) - % of detractors (0-6)).
+					retval.add(new String[]{grainTotals.getKey(), "" + NumberFormatter.convertToPercentage(((double)totals.getPromoters()/totals.getNPSSurveys()) - ((double)totals.getDetractors()/totals.getNPSSurveys()), 4) });
+				}
+			}
+		}
+		else
+		{
+			SurveyScan.scan(dbConnection, startDate, endDate, roster, this);
+			
+			double nps, surveyCount, promotedSurveys, nonPromotedSurveys;
+			for(String grain : reportData.getGrains())
+			{
+				surveyCount = reportData.get(grain, VIABLE_SURVEYS).getCount();
+				
+				//a grain could contain zero surveys
+				if(surveyCount > 0)
+				{
+					promotedSurveys = reportData.get(grain, NET_PROM).getCount();
+					nonPromotedSurveys = reportData.get(grain, NON_NET_PROM).getCount();
 					
-					if(surveyAnswer == 9 || surveyAnswer == 10)
-					{
-						reportData.getDatum(reportGrain).addData(NET_PROM_ATTR, row[2]);
-					}
-					else if(surveyAnswer <= 6)
-					{
-						reportData.getDatum(reportGrain).addData(NON_NET_PROM_ATTR, row[2]);
-					}
+					nps = (promotedSurveys/surveyCount) - (nonPromotedSurveys/surveyCount);
+					retval.add(new String[]{grain, "" + NumberFormatter.convertToPercentage(nps, 4) });
 				}
 			}
 		}
 		
+		logQueryStatistics();
+
+		return retval;
+	}
+
+	/**
+	 * Log the timings of the queries run for this report.
+	 */
+	private void logQueryStatistics()
+	{
 		for( Entry<String, String> queryStats  : dbConnection.getStatistics().entrySet())
 		{
 			logInfoMessage( "Query " + queryStats.getKey() + ": " + queryStats.getValue());
 		}
-
-		double nps, surveyCount, promotedSurveys, nonPromotedSurveys;
-		for(String grain : reportData.getDatumIDList())
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.SurveyMetric#addSurvey(com.sutherland.kaspersky.report.survey.SurveyRecord)
+	 */
+	@Override
+	public void addSurvey(SurveyRecord survey)
+	{
+		addSurvey(survey, plan, reportData);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.ChunkedSurveyMetric#newPartial()
+	 */
+	@Override
+	public GrainPartial newPartial()
+	{
+		return new GrainPartial(ReportPlan.compile(this, roster), 3);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.ChunkedSurveyMetric#addSurvey(com.sutherland.kaspersky.report.GrainPartial, com.sutherland.kaspersky.report.survey.SurveyRecord)
+	 */
+	@Override
+	public void addSurvey(GrainPartial partial, SurveyRecord survey)
+	{
+		addSurvey(survey, partial.getPlan(), partial.getAccumulators());
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.ChunkedSurveyMetric#addPartial(com.sutherland.kaspersky.report.GrainPartial)
+	 */
+	@Override
+	public void addPartial(GrainPartial partial)
+	{
+		reportData.merge(partial.getAccumulators());
+	}
+	
+	private void addSurvey(SurveyRecord survey, ReportPlan surveyPlan, GrainAccumulators surveyData)
+	{
+		String tID, reportGrain;
+		int q3, surveyAnswer;
+		
+		tID = survey.getTechnicianID();
+		if(surveyPlan.admits(tID))
 		{
-			surveyCount = reportData.getDatum(grain).getAttributeData(VIABLE_SURVEYS_ATTR).size();
-			
-			if(surveyCount > 0)
-			{
-				//a grain could contain zero surveys
-				if(reportData.getDatum(grain).getAttributeNameList().contains(NET_PROM_ATTR))
-				{
-					promotedSurveys = reportData.getDatum(grain).getAttributeData(NET_PROM_ATTR).size();
-				}
-				else
-				{
-					promotedSurveys = 0;
-				}
+			q3 = survey.getAnswer(3);
 
-				if(reportData.getDatum(grain).getAttributeNameList().contains(NON_NET_PROM_ATTR))
+			if( q3 != RowCursor.NULL_INT )
+			{
+				surveyAnswer = q3;
+			
+				reportGrain = surveyPlan.getGrain(survey.getSurveyTime(), tID);
+			
+				surveyData.get(reportGrain, VIABLE_SURVEYS).increment();
+			
+				//NPS is calculated by (% of promoters (9-10) - % of detractors (0-6)).
+			
+				if(surveyAnswer == 9 || surveyAnswer == 10)
 				{
-					nonPromotedSurveys = reportData.getDatum(grain).getAttributeData(NON_NET_PROM_ATTR).size();
+					surveyData.get(reportGrain, NET_PROM).increment();
 				}
-				else
+				else if(surveyAnswer <= 6)
 				{
-					nonPromotedSurveys = 0;
+					surveyData.get(reportGrain, NON_NET_PROM).increment();
 				}
-				
-				nps = (promotedSurveys/surveyCount) - (nonPromotedSurveys/surveyCount);
-				retval.add(new String[]{grain, "" + NumberFormatter.convertToPercentage(nps, 4) });
 			}
 		}
-
-		return retval;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.survey.SurveyMetric#needsDetailColumns()
+	 */
+	@Override
+	public boolean needsDetailColumns()
+	{
+		return false;
 	}
 	
 	@Override
@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package com.sutherland.kaspersky.report;
+
+import com.sutherland.helios.report.Report;
+
+/**
+ * A report's row handling, resolved once per run. Compiling the plan reads the report mode and grain parameters a single time and picks
+ * the grain function to match, so a report's row loop admits technicians and assigns grains without consulting the report parameters
+ * for every row.
+ *
+ * A plan is used by one thread at a time, since time trend plans keep the labels they have formatted. Reports processing rows on several
+ * threads compile a plan per thread.
+ *
+ * @author Jason Diamond
+ *
+ */
+public abstract class ReportPlan
+{
+	protected final KasperskyRoster roster;
+
+	private ReportPlan(KasperskyRoster roster)
+	{
+		this.roster = roster;
+	}
+
+	/**
+	 * Compile the plan for a report run.
+	 *
+	 * @param report	The report being run.
+	 * @param roster	The report's loaded roster.
+	 *
+	 * @return	A time trend plan if the report is a time trend report, a stack plan otherwise.
+	 */
+	public static ReportPlan compile(Report report, KasperskyRoster roster)
+	{
+		ReportPlan retval;
+
+		if(report.isTimeTrendReport())
+		{
+			retval = new TimeTrendPlan(roster, Integer.parseInt(report.getParameters().getTimeGrain()), Integer.parseInt(report.getParameters().getDateFormat()));
+		}
+		else //if(isStackReport())
+		{
+			retval = new StackPlan(roster, Integer.parseInt(report.getParameters().getUserGrain()));
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Determine if a row's technician passes the report's agent and team filters.
+	 *
+	 * @param technicianID	The technician's node ID.
+	 *
+	 * @return	True if the row should be counted.
+	 */
+	public final boolean admits(String technicianID)
+	{
+		return roster.hasUser(technicianID);
+	}
+
+	/**
+	 * Assign a row to its report grain.
+	 *
+	 * @param time			The row's time, in epoch millis.
+	 * @param technicianID	The row's technician, already admitted.
+	 *
+	 * @return	The grain: a formatted date for time trend reports, a user grain for stack reports.
+	 */
+	public abstract String getGrain(long time, String technicianID);
+
+	private final static class TimeTrendPlan extends ReportPlan
+	{
+		private final TimeGrainLabels labels;
+
+		TimeTrendPlan(KasperskyRoster roster, int timeGrain, int dateFormat)
+		{
+			super(roster);
+
+			this.labels = new TimeGrainLabels(timeGrain, dateFormat);
+		}
+
+		/* (non-Javadoc)
+		 * @see com.sutherland.kaspersky.report.ReportPlan#getGrain(long, java.lang.String)
+		 */
+		@Override
+		public String getGrain(long time, String technicianID)
+		{
+			return labels.getLabel(time);
+		}
+	}
+
+	private final static class StackPlan extends ReportPlan
+	{
+		private final int userGrain;
+
+		StackPlan(KasperskyRoster roster, int userGrain)
+		{
+			super(roster);
+
+			this.userGrain = userGrain;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.sutherland.kaspersky.report.ReportPlan#getGrain(long, java.lang.String)
+		 */
+		@Override
+		public String getGrain(long time, String technicianID)
+		{
+			return roster.getUserGrain(userGrain, technicianID);
+		}
+	}
+}
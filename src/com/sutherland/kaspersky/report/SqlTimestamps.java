@@ -0,0 +1,110 @@
+/**
+ *
+ */
+package com.sutherland.kaspersky.report;
+
+import java.util.TimeZone;
+
+/**
+ * Parses the SQL timestamp strings grouped queries return as their time grain keys, without allocating a Timestamp or a Calendar per
+ * row.
+ *
+ * @author Jason Diamond
+ *
+ */
+final class SqlTimestamps
+{
+	private final static TimeZone LOCAL_ZONE = TimeZone.getDefault();
+
+	private SqlTimestamps()
+	{}
+
+	/**
+	 * Parse a SQL timestamp string, yyyy-MM-dd HH:mm:ss with optional fractional seconds, straight into epoch millis in the local time zone.
+	 * Gives the same result as Timestamp.valueOf(sqlDate).getTime(), without allocating a Timestamp or a Calendar.
+	 *
+	 * @param sqlDate	The timestamp string.
+	 *
+	 * @return	The time, in epoch millis.
+	 *
+	 * @throws IllegalArgumentException	If the string is not a SQL timestamp.
+	 */
+	static long toEpochMillis(String sqlDate)
+	{
+		if(sqlDate.length() < 19 || sqlDate.charAt(4) != '-' || sqlDate.charAt(7) != '-' || sqlDate.charAt(10) != ' ' || sqlDate.charAt(13) != ':' || sqlDate.charAt(16) != ':')
+		{
+			throw new IllegalArgumentException("Timestamp format must be yyyy-mm-dd hh:mm:ss[.fffffffff]: " + sqlDate);
+		}
+
+		int year = parseDigits(sqlDate, 0, 4);
+		int month = parseDigits(sqlDate, 5, 7);
+		int day = parseDigits(sqlDate, 8, 10);
+
+		long retval = (((daysFromCivil(year, month, day) * 24 + parseDigits(sqlDate, 11, 13)) * 60 + parseDigits(sqlDate, 14, 16)) * 60 + parseDigits(sqlDate, 17, 19)) * 1000;
+
+		//only the first three fractional digits are kept
+		if(sqlDate.length() > 20 && sqlDate.charAt(19) == '.')
+		{
+			int millis = 0;
+			for(int i = 20; i < 23; i++)
+			{
+				millis *= 10;
+
+				if(i < sqlDate.length())
+				{
+					millis += parseDigits(sqlDate, i, i + 1);
+				}
+			}
+
+			retval += millis;
+		}
+
+		//the local wall time is converted the way Calendar does, including across daylight saving changes
+		long standardTime = retval - LOCAL_ZONE.getRawOffset();
+		int offset = LOCAL_ZONE.getOffset(standardTime);
+
+		retval -= offset;
+
+		//a wall time skipped when the clocks went forward is read as standard time
+		if(LOCAL_ZONE.getOffset(retval) != offset)
+		{
+			retval = standardTime;
+		}
+
+		return retval;
+	}
+
+	private static int parseDigits(String text, int start, int end)
+	{
+		int retval = 0;
+
+		char digit;
+		for(int i = start; i < end; i++)
+		{
+			digit = text.charAt(i);
+
+			if(digit < '0' || digit > '9')
+			{
+				throw new IllegalArgumentException("Timestamp format must be yyyy-mm-dd hh:mm:ss[.fffffffff]: " + text);
+			}
+
+			retval = retval * 10 + (digit - '0');
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Count the days from 1970-01-01 to a proleptic Gregorian date, by the civil calendar algorithm.
+	 */
+	private static long daysFromCivil(int year, int month, int day)
+	{
+		int y = (month <= 2) ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+		return era * 146097L + dayOfEra - 719468;
+	}
+}
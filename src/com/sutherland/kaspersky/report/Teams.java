@@ -13,15 +13,15 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 
 import com.sutherland.helios.api.report.frontend.ReportFrontEndGroups;
-import com.sutherland.helios.database.connection.DatabaseConnection;
-import com.sutherland.helios.database.connection.SQL.ConnectionFactory;
-import com.sutherland.helios.exceptions.DatabaseConnectionCreationException;
 import com.sutherland.helios.exceptions.ExceptionFormatter;
 import com.sutherland.helios.exceptions.ReportSetupException;
 import com.sutherland.helios.logging.LogIDFactory;
 import com.sutherland.helios.report.Report;
 import com.sutherland.helios.report.parameters.groups.ReportParameterGroups;
+import com.sutherland.kaspersky.datasources.ConnectionPool;
 import com.sutherland.kaspersky.datasources.DatabaseConfigs;
+import com.sutherland.kaspersky.report.roster.RosterCache;
+import com.sutherland.kaspersky.report.roster.RosterSnapshot;
 
 
 /**
@@ -33,7 +33,6 @@ import com.sutherland.kaspersky.datasources.DatabaseConfigs;
 public final class Teams extends Report 
 {	
 	private KasperskyRoster roster;
-	private DatabaseConnection dbConnection;
 	private final String dbPropFile = DatabaseConfigs.KASP_DEV_DB;
 	private final static Logger logger = Logger.getLogger(Teams.class);
 
@@ -109,38 +108,14 @@ public final class Teams extends Report
 	}
 
 	/** 
-	 * Attempt to establish connections to all required datasources. A report by definition has at least one, and possibly many.
+	 * Attempt to establish connections to all required datasources. Teams are answered from the shared roster, which borrows a pooled 
+	 * connection of its own only if it has not been read yet.
 	 * 
-	 * @return	True if the connection was established, false otherwise.
+	 * @return	True.
 	 */
 	protected boolean setupDataSourceConnections()
 	{
-		boolean retval = false;
-
-		try 
-		{
-			ConnectionFactory factory = new ConnectionFactory();
-			
-			factory.load(dbPropFile);
-			
-			dbConnection = factory.getConnection();
-		}
-		catch (DatabaseConnectionCreationException e) 
-		{
-			setErrorMessage("DatabaseConnectionCreationException on attempt to access database");
-			
-			logErrorMessage(getErrorMessage());
-			logErrorMessage( ExceptionFormatter.asString(e));
-		} 
-		finally
-		{
-			if(dbConnection != null)
-			{
-				retval = true;
-			}
-		}
-
-		return retval;
+		return true;
 	}
 
 	/**
@@ -156,11 +131,6 @@ public final class Teams extends Report
 			roster.close();
 		}
 
-		if(dbConnection != null)
-		{
-			dbConnection.close();
-		}
-		
 		super.close();
 		
 		if (!isChildReport) 
@@ -175,18 +145,29 @@ public final class Teams extends Report
 		ArrayList<String> retval = new ArrayList<String>();
 
 		retval.add("Team");
+		retval.add("Agents");
 
 		return retval;
 	}
 
+	/**
+	 * List the teams of the shared roster with their agent counts, from the roster's team index.
+	 * 
+	 * @return	The teams.
+	 * @throws Exception 
+	 * 
+	 * @see report.Report#runReport()
+	 */
 	@Override
 	protected ArrayList<String[]> loadData() throws Exception 
 	{
 		ArrayList<String[]> retval = new ArrayList<String[]>();
 
-		for(String[] row : dbConnection.runQuery("Select distinct team from lmi_kaspersky_roster where parent_id = '10982630' "))
+		RosterSnapshot snapshot = RosterCache.getSnapshot(ConnectionPool.getPool(dbPropFile));
+		
+		for(String team : snapshot.getTeams())
 		{
-			retval.add(row);
+			retval.add(new String[]{team, "" + snapshot.getTeamRecords(team).size()});
 		}
 
 		return retval;
@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package com.sutherland.kaspersky.report;
+
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+import com.sutherland.helios.date.formatting.DateFormatter;
+
+/**
+ * Labels times with a report's date grain, formatting each label once per local hour rather than once per row.
+ *
+ * Rows are bucketed by local hour with integer arithmetic on their epoch millis, and the label of each hour is formatted the first time
+ * a row falls in it. Time grains finer than an hour would need a label per row, so for those every time is formatted as before.
+ *
+ * An instance is used by one thread at a time.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class TimeGrainLabels
+{
+	private final static long HOUR_MILLIS = 60 * 60 * 1000;
+
+	private final int timeGrain;
+	private final int dateFormat;
+	private final GregorianCalendar date;
+	private final TimeZone zone;
+
+	/**
+	 * True if every time in a local hour shares a label.
+	 */
+	private final boolean hourly;
+
+	/**
+	 * Local hour => label.
+	 */
+	private final HashMap<Long, String> labels;
+
+	//rows mostly arrive in time order, so the last hour is checked before the map
+	private long lastHour;
+	private String lastLabel;
+
+	/**
+	 * Build the labels of a date grain.
+	 *
+	 * @param timeGrain		The report's time grain.
+	 * @param dateFormat	The report's date format.
+	 */
+	public TimeGrainLabels(int timeGrain, int dateFormat)
+	{
+		this.timeGrain = timeGrain;
+		this.dateFormat = dateFormat;
+		this.date = new GregorianCalendar();
+		this.zone = date.getTimeZone();
+		this.labels = new HashMap<Long, String>();
+
+		//the grain codes belong to Helios, so check that an hour's first and last moment share a label rather than trusting a list of codes
+		GregorianCalendar hourStart = new GregorianCalendar(2015, GregorianCalendar.JANUARY, 15, 10, 0, 0);
+		GregorianCalendar hourEnd = new GregorianCalendar(2015, GregorianCalendar.JANUARY, 15, 10, 59, 59);
+		hourEnd.set(GregorianCalendar.MILLISECOND, 999);
+
+		hourly = DateFormatter.getFormattedDate(hourStart, timeGrain, dateFormat).equals(DateFormatter.getFormattedDate(hourEnd, timeGrain, dateFormat));
+	}
+
+	/**
+	 * Label a time with the date grain.
+	 *
+	 * @param time	The time, in epoch millis.
+	 *
+	 * @return	The formatted date grain containing the time.
+	 */
+	public String getLabel(long time)
+	{
+		String retval;
+
+		if(hourly)
+		{
+			long localTime = time + zone.getOffset(time);
+			long hour = localTime / HOUR_MILLIS;
+			if(localTime % HOUR_MILLIS < 0)
+			{
+				hour--;
+			}
+
+			if(hour == lastHour && lastLabel != null)
+			{
+				retval = lastLabel;
+			}
+			else
+			{
+				retval = labels.get(hour);
+
+				if(retval == null)
+				{
+					retval = format(time);
+					labels.put(hour, retval);
+				}
+
+				lastHour = hour;
+				lastLabel = retval;
+			}
+		}
+		else
+		{
+			retval = format(time);
+		}
+
+		return retval;
+	}
+
+	private String format(long time)
+	{
+		date.setTimeInMillis(time);
+
+		return DateFormatter.getFormattedDate(date, timeGrain, dateFormat);
+	}
+}
@@ -0,0 +1,387 @@
+package com.sutherland.kaspersky.report.roster;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.sutherland.kaspersky.datasources.ConnectionPool;
+import com.sutherland.kaspersky.datasources.PooledConnection;
+import com.sutherland.kaspersky.datasources.RowCursor;
+
+/**
+ * A process-wide copy of LMI_KASPERSKY_ROSTER, shared by every report that needs a roster. The roster is read the first time it is asked
+ * for, then re-read in the background on a fixed schedule, so reports filter a ready-built snapshot instead of querying and
+ * rebuilding the roster per request.
+ *
+ * A refresh fingerprints each row and rebuilds only the records of agents added or changed since the last read. Every other record
+ * carries over to the next snapshot.
+ *
+ * Each snapshot read from the database is also saved to a local file. After a restart the roster starts from that file, and is
+ * reconciled with the database in the background at once, so the first reports after a redeploy do not wait on LMI_KASPERSKY_ROSTER.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class RosterCache
+{
+	/**
+	 * How often the roster is re-read, in milliseconds.
+	 */
+	public final static long REFRESH_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+	/**
+	 * Where the roster is saved after each change, so a restarted process can serve reports before the database has been read.
+	 */
+	public final static String SNAPSHOT_FILE = "/opt/tomcat/KasperskyReporting/snapshots/roster/roster.snap";
+
+	/**
+	 * The predicate selecting the Kaspersky agents from LMI_KASPERSKY_ROSTER.
+	 */
+	public final static String ROSTER_CONSTRAINTS = "parent_id = '10982630' and type != 'Administrator' and type != 'AdministratorLink'  and type != 'MasterAdministrator'";
+
+	private final static String ROSTER_QUERY = "SELECT NODE_ID,PARENT_ID,TEAM,NAME,EMAIL,DESCRIPTION,STATUS,TYPE FROM LMI_KASPERSKY_ROSTER where " + ROSTER_CONSTRAINTS;
+
+	/**
+	 * The current roster. Refreshes build the next snapshot aside and swap it in, so readers never lock and never see a partial roster.
+	 */
+	private final static AtomicReference<RosterSnapshot> current = new AtomicReference<RosterSnapshot>();
+
+	/**
+	 * Held while reading the first snapshot and starting the refresh, so concurrent first requests read the roster once.
+	 */
+	private final static Object startLock = new Object();
+
+	private final static CopyOnWriteArrayList<RosterListener> listeners = new CopyOnWriteArrayList<RosterListener>();
+
+	private static ConnectionPool pool;
+	private static Timer timer;
+
+	private final static Logger logger = Logger.getLogger(RosterCache.class);
+
+	/**
+	 * A cache derived from the roster, told after each refresh which agents changed so it can drop only their entries.
+	 */
+	public interface RosterListener
+	{
+		/**
+		 * Called once a refreshed snapshot has been published.
+		 *
+		 * @param snapshot			The new snapshot.
+		 * @param changedNodeIDs	The node IDs of the agents added, updated or removed.
+		 */
+		void rosterChanged(RosterSnapshot snapshot, Set<String> changedNodeIDs);
+	}
+
+	private RosterCache()
+	{}
+
+	/**
+	 * Retrieve the shared roster, reading it on the first call and starting the background refresh. Callers should keep the returned
+	 * snapshot for the whole of a report run, so every lookup in the run sees the same roster.
+	 *
+	 * A connection is only borrowed if the roster has to be read from the database.
+	 *
+	 * @param connectionPool	The pool to read the roster through, now if it has not been read yet and on every refresh.
+	 *
+	 * @return	The current roster.
+	 *
+	 * @throws SQLException	If the roster has never been read and could not be read now.
+	 */
+	public static RosterSnapshot getSnapshot(ConnectionPool connectionPool) throws SQLException
+	{
+		RosterSnapshot retval = current.get();
+
+		if(retval == null)
+		{
+			synchronized(startLock)
+			{
+				retval = current.get();
+
+				long firstRefresh = REFRESH_INTERVAL_MILLIS;
+
+				if(retval == null)
+				{
+					File file = new File(SNAPSHOT_FILE);
+
+					if(file.exists())
+					{
+						try
+						{
+							//start from the roster saved by the last process, and reconcile it with the database straight away
+							retval = RosterSnapshot.read(file);
+							firstRefresh = 0;
+
+							logger.log(Level.INFO, "Read " + retval.getSize() + " users into the shared roster from " + file);
+						}
+						catch(IOException e)
+						{
+							logger.log(Level.WARN, "Roster snapshot " + file + " unavailable, reading from the database: " + e.getMessage());
+						}
+					}
+
+					if(retval == null)
+					{
+						PooledConnection dbConnection = connectionPool.getConnection();
+						try
+						{
+							retval = readSnapshot(dbConnection, null, new HashSet<String>());
+						}
+						finally
+						{
+							dbConnection.close();
+						}
+
+						saveSnapshot(retval);
+					}
+
+					current.set(retval);
+				}
+
+				if(timer == null)
+				{
+					pool = connectionPool;
+
+					timer = new Timer("KasperskyRoster-refresh", true);
+					timer.schedule(new RefreshTask(), firstRefresh, REFRESH_INTERVAL_MILLIS);
+				}
+			}
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Retrieve the shared roster without reading it.
+	 *
+	 * @return	The current roster, or null if it has not been read yet.
+	 */
+	public static RosterSnapshot getCurrentSnapshot()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Register a cache that depends on the roster, to be told which agents each refresh changed.
+	 *
+	 * @param listener	The listener.
+	 */
+	public static void addListener(RosterListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/**
+	 * Read the roster, reusing the records of a previous snapshot for every agent whose row is unchanged.
+	 *
+	 * @param dbConnection	The connection to read the roster on.
+	 * @param previous		The snapshot to reuse records from, or null to build every record.
+	 * @param changed		Receives the node IDs of the agents added, updated or removed since the previous snapshot.
+	 *
+	 * @return	The new snapshot, or the previous one if nothing changed.
+	 *
+	 * @throws SQLException	If the roster could not be read.
+	 */
+	private static RosterSnapshot readSnapshot(PooledConnection dbConnection, RosterSnapshot previous, HashSet<String> changed) throws SQLException
+	{
+		RosterSnapshot retval = previous;
+
+		ArrayList<RosterRecord> records = new ArrayList<RosterRecord>();
+		HashSet<String> nodeIDs = new HashSet<String>();
+
+		//teams, statuses and types repeat across thousands of agents, so keep one copy of each, shared with the records reused
+		HashMap<String, String> interned = new HashMap<String, String>();
+		if(previous != null)
+		{
+			for(RosterRecord record : previous.getRecords())
+			{
+				RosterSnapshot.intern(interned, record.getParentID());
+				RosterSnapshot.intern(interned, record.getTeam());
+				RosterSnapshot.intern(interned, record.getStatus());
+				RosterSnapshot.intern(interned, record.getType());
+			}
+		}
+
+		int added = 0;
+		int updated = 0;
+		int removed = 0;
+
+		RowCursor rows = dbConnection.openCursor(ROSTER_QUERY);
+		try
+		{
+			String nodeID;
+			String parentID, team, name, email, description, status, type;
+			RosterRecord record;
+			while(rows.next())
+			{
+				try
+				{
+					nodeID = rows.getString(0).trim();
+
+					if(nodeIDs.add(nodeID))
+					{
+						parentID = rows.getString(1).trim();
+						team = rows.getString(2).trim();
+						name = rows.getString(3).trim();
+						email = rows.getString(4).trim();
+						description = rows.getString(5).trim();
+						status = rows.getString(6).trim();
+
+						//type is STATUS, as the old loader left it, since type user grains and the Roster report's TYPE column show it
+						type = status;
+
+						record = (previous == null) ? null : previous.getRecord(nodeID);
+
+						if(record == null || record.getFingerprint() != RosterRecord.fingerprint(parentID, team, name, email, description, status, type))
+						{
+							if(record == null)
+							{
+								added++;
+							}
+							else
+							{
+								updated++;
+							}
+							changed.add(nodeID);
+
+							record = new RosterRecord
+							(
+									nodeID,
+									RosterSnapshot.intern(interned, parentID),
+									RosterSnapshot.intern(interned, team),
+									name,
+									email,
+									description,
+									RosterSnapshot.intern(interned, status),
+									RosterSnapshot.intern(interned, type)
+							);
+						}
+
+						records.add(record);
+					}
+				}
+				catch(NullPointerException e)
+				{
+					logger.log(Level.ERROR, "Error adding user for line beginning with " + rows.getString(0));
+				}
+			}
+		}
+		finally
+		{
+			rows.close();
+		}
+
+		if(previous != null)
+		{
+			for(RosterRecord record : previous.getRecords())
+			{
+				if(!nodeIDs.contains(record.getNodeID()))
+				{
+					removed++;
+					changed.add(record.getNodeID());
+				}
+			}
+		}
+
+		//an unchanged roster keeps its snapshot, so nothing downstream has to notice the refresh
+		if(previous == null || !changed.isEmpty())
+		{
+			retval = new RosterSnapshot(records);
+		}
+
+		logger.log(Level.INFO, "Read " + records.size() + " users into the shared roster: " + added + " added, " + updated + " updated, " + removed + " removed");
+
+		return retval;
+	}
+
+	/**
+	 * Write a snapshot to SNAPSHOT_FILE, for the next startup to begin from.
+	 *
+	 * @param snapshot	The snapshot.
+	 */
+	private static void saveSnapshot(RosterSnapshot snapshot)
+	{
+		File file = new File(SNAPSHOT_FILE);
+
+		try
+		{
+			File directory = file.getParentFile();
+			if(!directory.isDirectory() && !directory.mkdirs())
+			{
+				throw new IOException("Could not create " + directory);
+			}
+
+			//write aside and rename, so a startup never reads a half written file
+			File partial = new File(directory, file.getName() + ".partial");
+
+			snapshot.write(partial);
+
+			if(!partial.renameTo(file) && !(file.delete() && partial.renameTo(file)))
+			{
+				partial.delete();
+				throw new IOException("Could not rename " + partial + " to " + file);
+			}
+		}
+		catch(IOException e)
+		{
+			logger.log(Level.WARN, "Roster snapshot " + file + " not saved: " + e.getMessage());
+		}
+	}
+
+	private static class RefreshTask extends TimerTask
+	{
+		/* (non-Javadoc)
+		 * @see java.util.TimerTask#run()
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				PooledConnection dbConnection = pool.getConnection();
+				try
+				{
+					RosterSnapshot previous = current.get();
+					HashSet<String> changed = new HashSet<String>();
+
+					//reports keep using the current snapshot until the next one is complete
+					RosterSnapshot next = readSnapshot(dbConnection, previous, changed);
+
+					if(next != previous)
+					{
+						current.set(next);
+						saveSnapshot(next);
+
+						for(RosterListener listener : listeners)
+						{
+							listener.rosterChanged(next, changed);
+						}
+					}
+				}
+				finally
+				{
+					dbConnection.close();
+				}
+			}
+			catch (SQLException e)
+			{
+				logger.log(Level.ERROR, "Roster refresh failed, keeping the current roster: " + e.getMessage());
+			}
+			catch (RuntimeException e)
+			{
+				//an exception escaping run() would cancel the timer, and no refresh would ever run again
+				logger.log(Level.ERROR, "Roster refresh failed, keeping the current roster", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.sutherland.kaspersky.report.roster;
+
+import com.sutherland.helios.data.Datum;
+import com.sutherland.helios.roster.RosterAttributes;
+
+/**
+ * One agent of LMI_KASPERSKY_ROSTER, held as plain fields. Records are immutable and shared by every report using the roster cache, so
+ * the Datum Helios expects is built from the fields for each caller that needs one.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class RosterRecord implements Attributes, RosterAttributes
+{
+	private final static String PROGRAM_NAME = "Kaspersky";
+
+	private final static String ORGUNIT_NAME = "CAN01";
+
+	private final String nodeID;
+	private final String parentID;
+	private final String team;
+	private final String name;
+	private final String email;
+	private final String description;
+	private final String status;
+	private final String type;
+	private final long fingerprint;
+
+	/**
+	 * Build a record. Low-cardinality values such as the team are expected to be interned by the caller.
+	 *
+	 * @param nodeID		The agent's node ID.
+	 * @param parentID		The parent node ID.
+	 * @param team			The team name.
+	 * @param name			The agent's name.
+	 * @param email			The agent's email address.
+	 * @param description	The node description.
+	 * @param status		The node status.
+	 * @param type			The node type.
+	 */
+	public RosterRecord(String nodeID, String parentID, String team, String name, String email, String description, String status, String type)
+	{
+		this.nodeID = nodeID;
+		this.parentID = parentID;
+		this.team = team;
+		this.name = name;
+		this.email = email;
+		this.description = description;
+		this.status = status;
+		this.type = type;
+		this.fingerprint = fingerprint(parentID, team, name, email, description, status, type);
+	}
+
+	/**
+	 * Hash the non-key columns of a roster row, so a refresh can tell whether an agent changed without comparing every field.
+	 *
+	 * @param parentID		The parent node ID.
+	 * @param team			The team name.
+	 * @param name			The agent's name.
+	 * @param email			The agent's email address.
+	 * @param description	The node description.
+	 * @param status		The node status.
+	 * @param type			The node type.
+	 *
+	 * @return	The 64-bit FNV-1a hash of the columns.
+	 */
+	public static long fingerprint(String parentID, String team, String name, String email, String description, String status, String type)
+	{
+		long retval = 0xcbf29ce484222325L;
+
+		for(String column : new String[]{parentID, team, name, email, description, status, type})
+		{
+			for(int i = 0; i < column.length(); i++)
+			{
+				retval = (retval ^ column.charAt(i)) * 0x100000001b3L;
+			}
+
+			//separate the columns, so moving text from one column to the next changes the hash
+			retval = (retval ^ 0xFFFF) * 0x100000001b3L;
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Build the agent as a Datum, for Helios callers. Each call builds a new Datum, since Helios reports may modify the ones they hold.
+	 *
+	 * @return	A new Datum for the agent.
+	 */
+	public Datum newDatum()
+	{
+		Datum retval = new Datum(nodeID);
+
+		retval.addAttribute(NODE_ID_ATTR);
+		retval.addAttribute(PARENT_ID_ATTR);
+		retval.addAttribute(TEAMNAME_ATTR);
+		retval.addAttribute(NAME_ATTR);
+		retval.addAttribute(STATUS_ATTR);
+		retval.addAttribute(TYPE_ATTR);
+		retval.addAttribute(EMAIL_ATTR);
+		retval.addAttribute(FULLNAME_ATTR);
+		retval.addAttribute(ACTIVE_ATTR);
+		retval.addAttribute(PROGRAMNAME_ATTR);
+		retval.addAttribute(ORGUNIT_ATTR);
+
+		retval.setAttributeAsUnique(NODE_ID_ATTR);
+
+		retval.addData(NODE_ID_ATTR, nodeID);
+		retval.addData(PARENT_ID_ATTR, parentID);
+		retval.addData(NAME_ATTR, name);
+		retval.addData(TEAMNAME_ATTR, team);
+		retval.addData(EMAIL_ATTR, email);
+		retval.addData(DESCRIPTION_ATTR, description);
+		retval.addData(STATUS_ATTR, status);
+		retval.addData(TYPE_ATTR, type);
+
+		retval.addData(FULLNAME_ATTR, name);
+		retval.addData(PROGRAMNAME_ATTR, PROGRAM_NAME);
+		retval.addData(ORGUNIT_ATTR, ORGUNIT_NAME);
+
+		return retval;
+	}
+
+	/**
+	 * @return	The fingerprint of the agent's row.
+	 */
+	public long getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	/**
+	 * @return	The agent's node ID.
+	 */
+	public String getNodeID()
+	{
+		return nodeID;
+	}
+
+	/**
+	 * @return	The parent node ID.
+	 */
+	public String getParentID()
+	{
+		return parentID;
+	}
+
+	/**
+	 * @return	The team name.
+	 */
+	public String getTeam()
+	{
+		return team;
+	}
+
+	/**
+	 * @return	The agent's name.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return	The agent's email address.
+	 */
+	public String getEmail()
+	{
+		return email;
+	}
+
+	/**
+	 * @return	The node description.
+	 */
+	public String getDescription()
+	{
+		return description;
+	}
+
+	/**
+	 * @return	The node status.
+	 */
+	public String getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * @return	The node type.
+	 */
+	public String getType()
+	{
+		return type;
+	}
+}
@@ -0,0 +1,324 @@
+package com.sutherland.kaspersky.report.roster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The agents of LMI_KASPERSKY_ROSTER as read at one point in time, indexed by node ID, team, name and email. A snapshot is never modified
+ * once built.
+ *
+ * Each agent has a dense ordinal, its position in the roster, so a selection of agents can be held as a bit set. Selections compiled
+ * against a snapshot are kept with it, and dropped with it when the roster is refreshed.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class RosterSnapshot
+{
+	private final static int MAGIC = 0x4C4D4952;
+	private final static int VERSION = 1;
+
+	/**
+	 * Compiled selections kept past this many are all dropped, and compiled again as they are asked for.
+	 */
+	public final static int MAX_SELECTIONS = 256;
+
+	private final List<RosterRecord> records;
+	private final HashMap<String, Integer> ordinals;
+	private final TreeMap<String, List<RosterRecord>> byTeam;
+	private final HashMap<String, RosterRecord> byName;
+	private final HashMap<String, RosterRecord> byEmail;
+
+	/**
+	 * Selection key => ordinals of the selected agents. The only state added to a snapshot after it is built.
+	 */
+	private final ConcurrentHashMap<String, BitSet> selections = new ConcurrentHashMap<String, BitSet>();
+
+	/**
+	 * Index a set of records. Where several agents share a name or email address, the first in roster order is indexed.
+	 *
+	 * @param records	The records, in roster order, with unique node IDs.
+	 */
+	public RosterSnapshot(ArrayList<RosterRecord> records)
+	{
+		this.records = Collections.unmodifiableList(records);
+
+		ordinals = new HashMap<String, Integer>(records.size() * 2);
+		byTeam = new TreeMap<String, List<RosterRecord>>();
+		byName = new HashMap<String, RosterRecord>(records.size() * 2);
+		byEmail = new HashMap<String, RosterRecord>(records.size() * 2);
+
+		List<RosterRecord> teamRecords;
+		RosterRecord record;
+		for(int ordinal = 0; ordinal < records.size(); ordinal++)
+		{
+			record = records.get(ordinal);
+
+			ordinals.put(record.getNodeID(), ordinal);
+
+			teamRecords = byTeam.get(record.getTeam());
+			if(teamRecords == null)
+			{
+				teamRecords = new ArrayList<RosterRecord>();
+				byTeam.put(record.getTeam(), teamRecords);
+			}
+			teamRecords.add(record);
+
+			if(!byName.containsKey(record.getName()))
+			{
+				byName.put(record.getName(), record);
+			}
+
+			if(!byEmail.containsKey(record.getEmail().toLowerCase(Locale.ROOT)))
+			{
+				byEmail.put(record.getEmail().toLowerCase(Locale.ROOT), record);
+			}
+		}
+
+		for(String team : byTeam.keySet())
+		{
+			byTeam.put(team, Collections.unmodifiableList(byTeam.get(team)));
+		}
+	}
+
+	/**
+	 * Read a snapshot written by write().
+	 *
+	 * @param file	The snapshot file.
+	 *
+	 * @return	The snapshot.
+	 *
+	 * @throws IOException	If the file cannot be read or is not a roster snapshot.
+	 */
+	public static RosterSnapshot read(File file) throws IOException
+	{
+		ArrayList<RosterRecord> records = new ArrayList<RosterRecord>();
+
+		//teams, statuses and types repeat across thousands of agents, so keep one copy of each
+		HashMap<String, String> interned = new HashMap<String, String>();
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				throw new IOException(file + " is not a version " + VERSION + " roster snapshot");
+			}
+
+			int recordCount = in.readInt();
+			for(int i = 0; i < recordCount; i++)
+			{
+				records.add
+				(
+						new RosterRecord
+						(
+								in.readUTF(),
+								intern(interned, in.readUTF()),
+								intern(interned, in.readUTF()),
+								in.readUTF(),
+								in.readUTF(),
+								in.readUTF(),
+								intern(interned, in.readUTF()),
+								intern(interned, in.readUTF())
+						)
+				);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return new RosterSnapshot(records);
+	}
+
+	/**
+	 * Write the snapshot to a file, to be read back by read().
+	 *
+	 * @param file	The snapshot file.
+	 *
+	 * @throws IOException	If the file cannot be written.
+	 */
+	public void write(File file) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(records.size());
+
+			for(RosterRecord record : records)
+			{
+				out.writeUTF(record.getNodeID());
+				out.writeUTF(record.getParentID());
+				out.writeUTF(record.getTeam());
+				out.writeUTF(record.getName());
+				out.writeUTF(record.getEmail());
+				out.writeUTF(record.getDescription());
+				out.writeUTF(record.getStatus());
+				out.writeUTF(record.getType());
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Keep one copy of a repeated value.
+	 *
+	 * @param interned	The copies kept so far.
+	 * @param value		The value.
+	 *
+	 * @return	The kept copy of the value.
+	 */
+	static String intern(HashMap<String, String> interned, String value)
+	{
+		String retval = interned.get(value);
+
+		if(retval == null)
+		{
+			retval = value;
+			interned.put(value, value);
+		}
+
+		return retval;
+	}
+
+	/**
+	 * @return	Every agent, in roster order.
+	 */
+	public List<RosterRecord> getRecords()
+	{
+		return records;
+	}
+
+	/**
+	 * @return	The number of agents.
+	 */
+	public int getSize()
+	{
+		return records.size();
+	}
+
+	/**
+	 * @param nodeID	The agent's node ID.
+	 *
+	 * @return	The agent, or null if the node ID is not in the roster.
+	 */
+	public RosterRecord getRecord(String nodeID)
+	{
+		RosterRecord retval = null;
+
+		int ordinal = getOrdinal(nodeID);
+		if(ordinal >= 0)
+		{
+			retval = records.get(ordinal);
+		}
+
+		return retval;
+	}
+
+	/**
+	 * @param nodeID	The agent's node ID.
+	 *
+	 * @return	The agent's ordinal, its position in getRecords(), or -1 if the node ID is not in the roster.
+	 */
+	public int getOrdinal(String nodeID)
+	{
+		Integer retval = ordinals.get(nodeID);
+
+		return (retval == null) ? -1 : retval;
+	}
+
+	/**
+	 * Look up a compiled agent selection.
+	 *
+	 * @param key	The selection's key, identifying the agent and team parameters it was compiled from.
+	 *
+	 * @return	The ordinals of the selected agents, or null if the selection has not been compiled against this snapshot. The set is shared
+	 * 			and must not be modified.
+	 */
+	public BitSet getSelection(String key)
+	{
+		return selections.get(key);
+	}
+
+	/**
+	 * Keep a compiled agent selection, for later reports making the same selection against this snapshot.
+	 *
+	 * @param key		The selection's key.
+	 * @param selection	The ordinals of the selected agents. The set must not be modified afterwards.
+	 */
+	public void putSelection(String key, BitSet selection)
+	{
+		if(selections.size() >= MAX_SELECTIONS)
+		{
+			selections.clear();
+		}
+
+		selections.put(key, selection);
+	}
+
+	/**
+	 * @return	The team names, in name order.
+	 */
+	public Set<String> getTeams()
+	{
+		return Collections.unmodifiableSet(byTeam.keySet());
+	}
+
+	/**
+	 * @param team	The team name.
+	 *
+	 * @return	The team's agents, in roster order, or an empty list if there is no such team.
+	 */
+	public List<RosterRecord> getTeamRecords(String team)
+	{
+		List<RosterRecord> retval = byTeam.get(team);
+
+		if(retval == null)
+		{
+			retval = Collections.emptyList();
+		}
+
+		return retval;
+	}
+
+	/**
+	 * @param name	The agent's name.
+	 *
+	 * @return	The agent, or null if no agent has that name.
+	 */
+	public RosterRecord findByName(String name)
+	{
+		return byName.get(name);
+	}
+
+	/**
+	 * @param email	The agent's email address, in any case.
+	 *
+	 * @return	The agent, or null if no agent has that address.
+	 */
+	public RosterRecord findByEmail(String email)
+	{
+		return byEmail.get(email.toLowerCase(Locale.ROOT));
+	}
+}
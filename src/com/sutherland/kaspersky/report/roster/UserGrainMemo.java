@@ -0,0 +1,93 @@
+package com.sutherland.kaspersky.report.roster;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sutherland.helios.data.granularity.user.UserGrains;
+
+/**
+ * A process-wide memo of user grain lookups, keyed by user grain and technician, so stack reports resolve each technician's grain once
+ * rather than once per row.
+ *
+ * Each entry remembers the roster record it was derived from, and only answers for that same record. A report still holding an older
+ * snapshot therefore never sees a grain derived from a newer one, or the reverse. Entries of agents changed by a roster refresh are
+ * dropped.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class UserGrainMemo
+{
+	/**
+	 * User grain => node ID => memoized grain.
+	 */
+	private final static ConcurrentHashMap<Integer, ConcurrentHashMap<String, MemoizedGrain>> grains = new ConcurrentHashMap<Integer, ConcurrentHashMap<String, MemoizedGrain>>();
+
+	static
+	{
+		RosterCache.addListener(new RosterCache.RosterListener()
+		{
+			/* (non-Javadoc)
+			 * @see com.sutherland.kaspersky.report.roster.RosterCache.RosterListener#rosterChanged(com.sutherland.kaspersky.report.roster.RosterSnapshot, java.util.Set)
+			 */
+			@Override
+			public void rosterChanged(RosterSnapshot snapshot, Set<String> changedNodeIDs)
+			{
+				for(ConcurrentHashMap<String, MemoizedGrain> userGrainMemo : grains.values())
+				{
+					userGrainMemo.keySet().removeAll(changedNodeIDs);
+				}
+			}
+		});
+	}
+
+	private UserGrainMemo()
+	{}
+
+	/**
+	 * Resolve an agent's user grain, deriving it through UserGrains only the first time.
+	 *
+	 * @param userGrain	The user grain code.
+	 * @param record	The agent's roster record.
+	 *
+	 * @return	The agent's grain, as UserGrains.getUserGrain() would give it.
+	 */
+	public static String getUserGrain(int userGrain, RosterRecord record)
+	{
+		String retval;
+
+		ConcurrentHashMap<String, MemoizedGrain> userGrainMemo = grains.get(userGrain);
+		if(userGrainMemo == null)
+		{
+			grains.putIfAbsent(userGrain, new ConcurrentHashMap<String, MemoizedGrain>());
+			userGrainMemo = grains.get(userGrain);
+		}
+
+		MemoizedGrain memoized = userGrainMemo.get(record.getNodeID());
+
+		if(memoized != null && memoized.record == record)
+		{
+			retval = memoized.grain;
+		}
+		else
+		{
+			retval = UserGrains.getUserGrain(userGrain, record.newDatum());
+
+			userGrainMemo.put(record.getNodeID(), new MemoizedGrain(record, retval));
+		}
+
+		return retval;
+	}
+
+	private static class MemoizedGrain
+	{
+		private final RosterRecord record;
+		private final String grain;
+
+		MemoizedGrain(RosterRecord record, String grain)
+		{
+			this.record = record;
+			this.grain = grain;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.sutherland.kaspersky.report.survey;
+
+import com.sutherland.kaspersky.report.GrainPartial;
+
+/**
+ * A survey metric that can also be filled in parallel chunks. Each chunk fills a GrainPartial of its own, and the partials of all chunks
+ * are merged in survey order before being handed to the metric.
+ *
+ * @author Jason Diamond
+ *
+ */
+public interface ChunkedSurveyMetric extends SurveyMetric
+{
+	/**
+	 * Start a partial for one chunk of surveys. Called from the thread that will fill it.
+	 *
+	 * @return	An empty partial, with a plan of its own.
+	 */
+	public GrainPartial newPartial();
+
+	/**
+	 * Accumulate one survey into a chunk's partial, as addSurvey(SurveyRecord) would into the metric. Called concurrently for different
+	 * partials, so only the partial may be modified.
+	 *
+	 * @param partial	The chunk's partial.
+	 * @param survey	The current survey.
+	 */
+	public void addSurvey(GrainPartial partial, SurveyRecord survey);
+
+	/**
+	 * Add the merged partials of a run of chunks to the metric. Surveys fed to the metric since it last took a partial precede the
+	 * partial's.
+	 *
+	 * @param partial	The merged partial.
+	 */
+	public void addPartial(GrainPartial partial);
+}
@@ -0,0 +1,683 @@
+package com.sutherland.kaspersky.report.survey;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.sutherland.helios.date.formatting.DateFormatter;
+import com.sutherland.helios.report.Report;
+import com.sutherland.kaspersky.datasources.DateRangePartitions;
+import com.sutherland.kaspersky.datasources.DateRangePartitions.PartitionTask;
+import com.sutherland.kaspersky.datasources.PooledConnection;
+import com.sutherland.kaspersky.datasources.RowCursor;
+import com.sutherland.kaspersky.report.IngestWatermark;
+import com.sutherland.kaspersky.report.KasperskyRoster;
+
+/**
+ * Survey totals rolled up per day and technician, so the survey reports can answer day-or-coarser grains without rescoring every
+ * survey in the range.
+ *
+ * Each day is read from the LMI tables once, the first time a report asks for it, and kept until the rollup holds more than MAX_DAYS
+ * days, when the earliest are dropped. Days are read outside the rollup's lock, so reports summing days already held are not held up
+ * by a load. From then on IngestWatermark hands the rollup each new survey as it is ingested, so days still in progress stay current
+ * without being read again. Ingestion reads the rows of its last few minutes again on every poll to catch late commits, so the rows counted since the
+ * settled point are remembered and not counted twice.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class DailySurveyRollup
+{
+	private final static String SURVEY_QUERY = "SELECT " + SurveyRecord.COLUMNS + " FROM LMI_10982630_Customer_Survey WHERE Date >= ? AND Date < ? AND Date <= ?";
+
+	/**
+	 * The most days held at once, about two years.
+	 */
+	public final static int MAX_DAYS = 732;
+
+	/**
+	 * Day => technician => totals, for every day loaded so far. Loaded days without data map to an empty technician map.
+	 */
+	private final static TreeMap<Long, HashMap<String, SurveyTotals>> days = new TreeMap<Long, HashMap<String, SurveyTotals>>();
+
+	/**
+	 * Day => technician => totals ingested so far, for the days a report is loading. Reports needing one of these days wait on days until
+	 * the load is published or abandoned. Guarded by days.
+	 */
+	private final static TreeMap<Long, HashMap<String, SurveyTotals>> loadingDays = new TreeMap<Long, HashMap<String, SurveyTotals>>();
+
+	/**
+	 * How far the held days are settled: every survey up to and including surveysThrough has been counted, and anything later is counted
+	 * as it is ingested. Guarded by days.
+	 */
+	private static long surveysThrough = Long.MIN_VALUE;
+
+	/**
+	 * Key => Date of the surveys ingested past the settled point, so a poll reading them again does not count them twice. Guarded by days.
+	 */
+	private final static HashMap<String, Long> countedSurveys = new HashMap<String, Long>();
+
+	private final static Logger logger = Logger.getLogger(DailySurveyRollup.class);
+
+	/**
+	 * Loads the totals of a run of consecutive days a report has claimed.
+	 */
+	interface DayLoader
+	{
+		/**
+		 * Load the totals of a run of days.
+		 *
+		 * @param startDate		The first day, at midnight, inclusive.
+		 * @param endDate		Midnight after the last day, exclusive.
+		 * @param surveysEnd	The latest survey Date to count.
+		 *
+		 * @return	Day => technician => totals, for the days with data.
+		 *
+		 * @throws SQLException	If the totals could not be loaded.
+		 */
+		TreeMap<Long, HashMap<String, SurveyTotals>> load(Timestamp startDate, Timestamp endDate, Timestamp surveysEnd) throws SQLException;
+	}
+
+	/**
+	 * Reads the held days of a range, while the rollup's lock keeps ingestion from changing them.
+	 */
+	interface DayReader
+	{
+		/**
+		 * Read the days of a range.
+		 *
+		 * @param rangeDays	Day => technician => totals, for every day of the range.
+		 */
+		void read(SortedMap<Long, HashMap<String, SurveyTotals>> rangeDays);
+	}
+
+	private DailySurveyRollup()
+	{}
+
+	/**
+	 * Determine if a report's figures can be built from daily totals: the range must start and end at midnight, and a time trend report's
+	 * time grain must be a day or coarser.
+	 *
+	 * @param report	The report being run.
+	 * @param startDate	The start of the range, inclusive.
+	 * @param endDate	The end of the range, exclusive.
+	 *
+	 * @return	True if the rollup can answer the report.
+	 */
+	public static boolean canAnswer(Report report, Timestamp startDate, Timestamp endDate)
+	{
+		boolean retval = startDate.getTime() == getDay(startDate.getTime()) && endDate.getTime() == getDay(endDate.getTime());
+
+		if(retval && report.isTimeTrendReport())
+		{
+			int timeGrain = Integer.parseInt(report.getParameters().getTimeGrain());
+			int dateFormat = Integer.parseInt(report.getParameters().getDateFormat());
+
+			//the grain codes belong to Helios, so check that a day's first and last second share a label rather than trusting a list of codes
+			GregorianCalendar dayStart = new GregorianCalendar(2015, GregorianCalendar.JANUARY, 15);
+			GregorianCalendar dayEnd = new GregorianCalendar(2015, GregorianCalendar.JANUARY, 15, 23, 59, 59);
+
+			retval = DateFormatter.getFormattedDate(dayStart, timeGrain, dateFormat).equals(DateFormatter.getFormattedDate(dayEnd, timeGrain, dateFormat));
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Sum the daily totals of the roster's technicians over a range into the report's grains: date grains for time trend reports, user
+	 * grains otherwise. Days not yet held are loaded first, outside the lock, and reports asking for the same days at the same time wait
+	 * for a single load. Only call this once canAnswer() has agreed.
+	 *
+	 * @param report		The report being run.
+	 * @param dbConnection	The connection to query on.
+	 * @param roster		The loaded roster.
+	 * @param startDate		The start of the range, at midnight.
+	 * @param endDate		The end of the range, at midnight.
+	 *
+	 * @return	Grain => totals, in date order for time trend reports.
+	 *
+	 * @throws SQLException	If the totals could not be loaded.
+	 */
+	public static LinkedHashMap<String, SurveyTotals> getGrainTotals(final Report report, final PooledConnection dbConnection, final KasperskyRoster roster, Timestamp startDate, Timestamp endDate) throws SQLException
+	{
+		final LinkedHashMap<String, SurveyTotals> retval = new LinkedHashMap<String, SurveyTotals>();
+
+		//make sure ingestion is running before holding any day still in progress
+		IngestWatermark.getWatermark(dbConnection);
+
+		DayLoader loader = new DayLoader()
+		{
+			@Override
+			public TreeMap<Long, HashMap<String, SurveyTotals>> load(Timestamp loadStart, Timestamp loadEnd, Timestamp surveysEnd) throws SQLException
+			{
+				return rollUpDays(dbConnection, loadStart, loadEnd, surveysEnd);
+			}
+		};
+
+		DayReader reader = new DayReader()
+		{
+			@Override
+			public void read(SortedMap<Long, HashMap<String, SurveyTotals>> rangeDays)
+			{
+				sumDays(retval, report, roster, rangeDays);
+			}
+		};
+
+		readDays(startDate.getTime(), endDate.getTime(), loader, reader);
+
+		return retval;
+	}
+
+	/**
+	 * Hold every day of a range and read them. Days not yet held are claimed and loaded outside the lock, and reports asking for the same
+	 * days at the same time wait for a single load.
+	 *
+	 * @param startDay	The first day, at midnight, inclusive.
+	 * @param endDay	Midnight after the last day, exclusive.
+	 * @param loader	Loads the days claimed.
+	 * @param reader	Reads the range once every day is held.
+	 *
+	 * @throws SQLException	If the days could not be loaded.
+	 */
+	static void readDays(long startDay, long endDay, DayLoader loader, DayReader reader) throws SQLException
+	{
+		TreeMap<Long, HashMap<String, SurveyTotals>> claimed;
+		boolean claimedBeforeIngest = false;
+		Timestamp surveysEnd = null;
+		boolean read = false;
+
+		while(!read)
+		{
+			synchronized(days)
+			{
+				awaitLoads(startDay, endDay);
+
+				claimed = claimMissingDays(startDay, endDay);
+
+				if(claimed.isEmpty())
+				{
+					//read under the lock, since ingestion updates the held days in place
+					reader.read(days.subMap(startDay, endDay));
+					read = true;
+				}
+				else
+				{
+					//stop at the settled point, anything later is counted into the claimed days as it is ingested
+					claimedBeforeIngest = surveysThrough == Long.MIN_VALUE;
+					surveysEnd = new Timestamp(claimedBeforeIngest ? endDay : surveysThrough);
+				}
+			}
+
+			if(!read)
+			{
+				loadClaimedDays(loader, claimed, surveysEnd, claimedBeforeIngest, startDay, endDay);
+			}
+		}
+	}
+
+	private static void sumDays(LinkedHashMap<String, SurveyTotals> grains, Report report, KasperskyRoster roster, SortedMap<Long, HashMap<String, SurveyTotals>> rangeDays)
+	{
+		boolean timeTrend = report.isTimeTrendReport();
+		int timeGrain = 0, userGrain = 0, dateFormat = 0;
+
+		if(timeTrend)
+		{
+			timeGrain = Integer.parseInt(report.getParameters().getTimeGrain());
+			dateFormat = Integer.parseInt(report.getParameters().getDateFormat());
+		}
+		else //if(isStackReport())
+		{
+			userGrain = Integer.parseInt(report.getParameters().getUserGrain());
+		}
+
+		GregorianCalendar day = new GregorianCalendar();
+		String dayGrain = null;
+		String reportGrain;
+		SurveyTotals grainTotals;
+
+		for(Entry<Long, HashMap<String, SurveyTotals>> dayTotals : rangeDays.entrySet())
+		{
+			if(timeTrend)
+			{
+				day.setTimeInMillis(dayTotals.getKey());
+				dayGrain = DateFormatter.getFormattedDate(day, timeGrain, dateFormat);
+			}
+
+			for(Entry<String, SurveyTotals> technicianTotals : dayTotals.getValue().entrySet())
+			{
+				if(roster.hasUser(technicianTotals.getKey()))
+				{
+					reportGrain = timeTrend ? dayGrain : roster.getUserGrain(userGrain, technicianTotals.getKey());
+
+					grainTotals = grains.get(reportGrain);
+					if(grainTotals == null)
+					{
+						grainTotals = new SurveyTotals();
+						grains.put(reportGrain, grainTotals);
+					}
+
+					grainTotals.merge(technicianTotals.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start counting ingested rows. Until this is called, days are loaded in full and nothing is ingested.
+	 *
+	 * @param surveyMark	The ingest high-water mark on survey Date.
+	 */
+	public static void startIngest(long surveyMark)
+	{
+		synchronized(days)
+		{
+			//the first poll reads from the lag before the mark, and counts whatever lies past this
+			surveysThrough = surveyMark - IngestWatermark.INGEST_LAG_MILLIS;
+
+			//days loaded in full, say while the first polls were failing, already hold rows ingestion is about to count, so they are read again
+			if(!days.isEmpty() || !loadingDays.isEmpty())
+			{
+				logger.log(Level.INFO, "Ingest started, dropping " + days.size() + " days loaded in full");
+			}
+
+			days.clear();
+			loadingDays.clear();
+			countedSurveys.clear();
+		}
+	}
+
+	/**
+	 * Count newly ingested surveys into the days held, skipping those already counted, then settle the surveys that are past the ingest
+	 * lag. The cursor is read through before the rollup's lock is taken.
+	 *
+	 * @param rows			A cursor selecting SurveyRecord.COLUMNS for the surveys from the ingest lag before the survey mark on, ordered by
+	 * 						Date.
+	 * @param surveyMark	The current survey mark.
+	 *
+	 * @return	The new survey mark: the latest Date read.
+	 *
+	 * @throws SQLException	If the cursor cannot be read.
+	 */
+	public static long addSurveys(RowCursor rows, long surveyMark) throws SQLException
+	{
+		long retval = surveyMark;
+
+		//read the poll's rows before taking the lock, so reports summing held days never wait on the database
+		ArrayList<SurveyRecord> surveys = new ArrayList<SurveyRecord>();
+		ArrayList<String> keys = new ArrayList<String>();
+
+		SurveyRecord survey = new SurveyRecord(rows);
+		while(rows.next())
+		{
+			survey.load();
+
+			surveys.add(survey.copy());
+			keys.add(survey.getSurveyTime() + "|" + survey.getSessionID() + "|" + survey.getTechnicianID());
+
+			retval = Math.max(retval, survey.getSurveyTime());
+		}
+
+		synchronized(days)
+		{
+			HashMap<String, SurveyTotals> technicians;
+			String key;
+			int added = 0;
+
+			for(int i = 0; i < surveys.size(); i++)
+			{
+				survey = surveys.get(i);
+				key = keys.get(i);
+
+				//anything up to the settled point was counted when its day was loaded, and the driver can round the mark
+				if(survey.getSurveyTime() > surveysThrough && !countedSurveys.containsKey(key))
+				{
+					//days not held yet are left for the next poll, or their load once the rows settle
+					technicians = getHeldTechnicians(getDay(survey.getSurveyTime()));
+					if(technicians != null)
+					{
+						getTotals(technicians, survey.getTechnicianID()).addSurvey(survey);
+						countedSurveys.put(key, survey.getSurveyTime());
+						added++;
+					}
+				}
+			}
+
+			surveysThrough = settle(countedSurveys, surveysThrough, retval - IngestWatermark.INGEST_LAG_MILLIS);
+
+			if(added > 0)
+			{
+				logger.log(Level.INFO, "Rolled up " + added + " ingested surveys");
+			}
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Advance a settled point, forgetting the rows counted at or before it, since polls no longer read them. Call holding days.
+	 *
+	 * @param counted	Key => time of the rows counted past the settled point.
+	 * @param through	The settled point.
+	 * @param settled	The point ingestion has now settled to.
+	 *
+	 * @return	The new settled point.
+	 */
+	private static long settle(HashMap<String, Long> counted, long through, long settled)
+	{
+		long retval = Math.max(through, settled);
+
+		Iterator<Long> times = counted.values().iterator();
+		while(times.hasNext())
+		{
+			if(times.next() <= retval)
+			{
+				times.remove();
+			}
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Find the technicians of a day ingestion should count into: a held day, or one being loaded. Call holding days.
+	 *
+	 * @param day	Midnight of the day.
+	 *
+	 * @return	Technician => totals, or null if the day is neither held nor loading.
+	 */
+	private static HashMap<String, SurveyTotals> getHeldTechnicians(long day)
+	{
+		HashMap<String, SurveyTotals> retval = days.get(day);
+		if(retval == null)
+		{
+			retval = loadingDays.get(day);
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Wait until no day in a range is being loaded by another report. Call holding days.
+	 *
+	 * @param startDay	The first day, inclusive.
+	 * @param endDay	The last day, exclusive.
+	 *
+	 * @throws SQLException	If interrupted while waiting.
+	 */
+	private static void awaitLoads(long startDay, long endDay) throws SQLException
+	{
+		while(!loadingDays.subMap(startDay, endDay).isEmpty())
+		{
+			try
+			{
+				days.wait();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted waiting for daily survey totals to load");
+			}
+		}
+	}
+
+	/**
+	 * Claim the days of a range that are not held, so this report loads them while ingestion counts their new rows. Call holding days.
+	 *
+	 * @param startDay	The first day, inclusive.
+	 * @param endDay	The last day, exclusive.
+	 *
+	 * @return	Day => the technician map ingestion counts into, for each day claimed.
+	 */
+	private static TreeMap<Long, HashMap<String, SurveyTotals>> claimMissingDays(long startDay, long endDay)
+	{
+		TreeMap<Long, HashMap<String, SurveyTotals>> retval = new TreeMap<Long, HashMap<String, SurveyTotals>>();
+
+		HashMap<String, SurveyTotals> technicians;
+		for(long day = startDay; day < endDay; day = getNextDay(day))
+		{
+			if(!days.containsKey(day))
+			{
+				technicians = new HashMap<String, SurveyTotals>();
+				loadingDays.put(day, technicians);
+				retval.put(day, technicians);
+			}
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Load the claimed days outside the lock, a run of consecutive days at a time, then publish them. The claims are released whether or
+	 * not the load succeeds.
+	 */
+	private static void loadClaimedDays(DayLoader loader, TreeMap<Long, HashMap<String, SurveyTotals>> claimed, Timestamp surveysEnd, boolean claimedBeforeIngest, long keepStart, long keepEnd) throws SQLException
+	{
+		boolean published = false;
+
+		try
+		{
+			TreeMap<Long, HashMap<String, SurveyTotals>> loaded = new TreeMap<Long, HashMap<String, SurveyTotals>>();
+
+			long runStart = -1, runEnd = -1;
+			for(long day : claimed.keySet())
+			{
+				if(day != runEnd)
+				{
+					if(runStart >= 0)
+					{
+						loaded.putAll(loader.load(new Timestamp(runStart), new Timestamp(runEnd), surveysEnd));
+					}
+
+					runStart = day;
+				}
+
+				runEnd = getNextDay(day);
+			}
+
+			loaded.putAll(loader.load(new Timestamp(runStart), new Timestamp(runEnd), surveysEnd));
+
+			synchronized(days)
+			{
+				//a load started before ingestion read every row, and startIngest has dropped its claims, so it is read again
+				if(!claimedBeforeIngest || surveysThrough == Long.MIN_VALUE)
+				{
+					publishDays(claimed, loaded);
+					trimDays(keepStart, keepEnd);
+					published = true;
+
+					logger.log(Level.INFO, "Rolled up " + claimed.size() + " days from " + new Timestamp(claimed.firstKey()) + ", holding " + days.size() + " days");
+				}
+			}
+		}
+		finally
+		{
+			synchronized(days)
+			{
+				if(!published)
+				{
+					//only release this report's claims, startIngest may have let another report claim the same days since
+					for(Entry<Long, HashMap<String, SurveyTotals>> claimedDay : claimed.entrySet())
+					{
+						if(loadingDays.get(claimedDay.getKey()) == claimedDay.getValue())
+						{
+							loadingDays.remove(claimedDay.getKey());
+						}
+					}
+				}
+
+				days.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Add the loaded totals to what was ingested into the claimed days while they loaded, and hold the days. Call holding days.
+	 */
+	private static void publishDays(TreeMap<Long, HashMap<String, SurveyTotals>> claimed, TreeMap<Long, HashMap<String, SurveyTotals>> loaded)
+	{
+		HashMap<String, SurveyTotals> loadedTechnicians;
+
+		for(Entry<Long, HashMap<String, SurveyTotals>> claimedDay : claimed.entrySet())
+		{
+			loadedTechnicians = loaded.get(claimedDay.getKey());
+			if(loadedTechnicians != null)
+			{
+				for(Entry<String, SurveyTotals> technicianTotals : loadedTechnicians.entrySet())
+				{
+					getTotals(claimedDay.getValue(), technicianTotals.getKey()).merge(technicianTotals.getValue());
+				}
+			}
+
+			loadingDays.remove(claimedDay.getKey());
+			days.put(claimedDay.getKey(), claimedDay.getValue());
+		}
+	}
+
+	/**
+	 * Drop the earliest days held until no more than MAX_DAYS are, sparing the range just published. Call holding days.
+	 *
+	 * @param keepStart	The first day to spare, inclusive.
+	 * @param keepEnd	The last day to spare, exclusive.
+	 */
+	private static void trimDays(long keepStart, long keepEnd)
+	{
+		Iterator<Long> heldDays = days.keySet().iterator();
+		long day;
+
+		while(days.size() > MAX_DAYS && heldDays.hasNext())
+		{
+			day = heldDays.next();
+			if(day < keepStart || day >= keepEnd)
+			{
+				heldDays.remove();
+			}
+		}
+	}
+
+	/**
+	 * Roll up the surveys of a range from the LMI survey table, a partition at a time.
+	 *
+	 * @param dbConnection	The connection to query on.
+	 * @param startDate		The start of the range, inclusive.
+	 * @param endDate		The end of the range, exclusive.
+	 * @param surveysEnd	The latest survey Date to count.
+	 *
+	 * @return	Day => technician => totals, for the days with data.
+	 *
+	 * @throws SQLException	If the table could not be read.
+	 */
+	private static TreeMap<Long, HashMap<String, SurveyTotals>> rollUpDays(PooledConnection dbConnection, Timestamp startDate, Timestamp endDate, final Timestamp surveysEnd) throws SQLException
+	{
+		TreeMap<Long, HashMap<String, SurveyTotals>> retval = new TreeMap<Long, HashMap<String, SurveyTotals>>();
+
+		PartitionTask<TreeMap<Long, HashMap<String, SurveyTotals>>> rollupPartition = new PartitionTask<TreeMap<Long, HashMap<String, SurveyTotals>>>()
+		{
+			@Override
+			public TreeMap<Long, HashMap<String, SurveyTotals>> run(PooledConnection partitionConnection, Timestamp partitionStart, Timestamp partitionEnd) throws SQLException
+			{
+				return rollUp(partitionConnection, partitionStart, partitionEnd, surveysEnd);
+			}
+		};
+
+		//partitions split on midnight, so no day spans two partials
+		for(TreeMap<Long, HashMap<String, SurveyTotals>> partial : DateRangePartitions.run(dbConnection, startDate, endDate, rollupPartition))
+		{
+			retval.putAll(partial);
+		}
+
+		return retval;
+	}
+
+	private static TreeMap<Long, HashMap<String, SurveyTotals>> rollUp(PooledConnection dbConnection, Timestamp startDate, Timestamp endDate, Timestamp surveysEnd) throws SQLException
+	{
+		TreeMap<Long, HashMap<String, SurveyTotals>> retval = new TreeMap<Long, HashMap<String, SurveyTotals>>();
+
+		RowCursor rows = dbConnection.openCursor(SURVEY_QUERY, startDate, endDate, surveysEnd);
+		try
+		{
+			SurveyRecord survey = new SurveyRecord(rows);
+
+			while(rows.next())
+			{
+				survey.load();
+
+				getTotals(getTechnicians(retval, getDay(survey.getSurveyTime())), survey.getTechnicianID()).addSurvey(survey);
+			}
+		}
+		finally
+		{
+			rows.close();
+		}
+
+		return retval;
+	}
+
+	private static HashMap<String, SurveyTotals> getTechnicians(TreeMap<Long, HashMap<String, SurveyTotals>> rolledUpDays, long day)
+	{
+		HashMap<String, SurveyTotals> retval = rolledUpDays.get(day);
+		if(retval == null)
+		{
+			retval = new HashMap<String, SurveyTotals>();
+			rolledUpDays.put(day, retval);
+		}
+
+		return retval;
+	}
+
+	private static SurveyTotals getTotals(HashMap<String, SurveyTotals> technicians, String technicianID)
+	{
+		SurveyTotals retval = technicians.get(technicianID);
+		if(retval == null)
+		{
+			retval = new SurveyTotals();
+			technicians.put(technicianID, retval);
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Step to midnight of the next day.
+	 *
+	 * @param day	Midnight of a day, in epoch millis.
+	 *
+	 * @return	Midnight of the following day, in epoch millis.
+	 */
+	private static long getNextDay(long day)
+	{
+		GregorianCalendar nextDay = new GregorianCalendar();
+		nextDay.setTimeInMillis(day);
+		nextDay.add(GregorianCalendar.DAY_OF_MONTH, 1);
+
+		return nextDay.getTimeInMillis();
+	}
+
+	/**
+	 * Truncate a time to midnight of its day.
+	 *
+	 * @param time	The time, in epoch millis.
+	 *
+	 * @return	Midnight of that day, in epoch millis.
+	 */
+	private static long getDay(long time)
+	{
+		GregorianCalendar day = new GregorianCalendar();
+		day.setTimeInMillis(time);
+		day.set(GregorianCalendar.HOUR_OF_DAY, 0);
+		day.set(GregorianCalendar.MINUTE, 0);
+		day.set(GregorianCalendar.SECOND, 0);
+		day.set(GregorianCalendar.MILLISECOND, 0);
+
+		return day.getTimeInMillis();
+	}
+}
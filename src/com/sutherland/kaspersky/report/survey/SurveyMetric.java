@@ -0,0 +1,30 @@
+package com.sutherland.kaspersky.report.survey;
+
+import java.sql.SQLException;
+
+/**
+ * A metric fed from a shared pass over LMI_10982630_Customer_Survey. Each report's per-survey logic lives behind this interface, so
+ * several reports over the same date range can be filled by one scan.
+ * 
+ * @author Jason Diamond
+ *
+ */
+public interface SurveyMetric 
+{
+	/**
+	 * Accumulate one survey. The record is only valid for the duration of the call.
+	 * 
+	 * @param survey	The current survey.
+	 * 
+	 * @throws SQLException	If a lazily read column cannot be fetched.
+	 */
+	public void addSurvey(SurveyRecord survey) throws SQLException;
+	
+	/**
+	 * Determine if addSurvey reads the session, name, answer text or comment columns. Survey snapshots do not hold them, so scans with
+	 * such a metric joined read every survey from the database.
+	 * 
+	 * @return	True if the detail columns are needed.
+	 */
+	public boolean needsDetailColumns();
+}
@@ -0,0 +1,219 @@
+package com.sutherland.kaspersky.report.survey;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.sutherland.kaspersky.datasources.RowCursor;
+
+/**
+ * The current row of a survey scan. The columns every metric uses are decoded once per row, and the wide text columns are only read if
+ * a metric asks for them. Rows read from a survey snapshot carry only the common columns.
+ * 
+ * @author Jason Diamond
+ *
+ */
+public final class SurveyRecord 
+{
+	/**
+	 * The columns a survey scan selects, in the order SurveyRecord reads them.
+	 */
+	public final static String COLUMNS = "Date,Technician_ID,Session_ID,Customer_Name,Technician_Name,Q1,Q2,Q3,Q4,Comments";
+	
+	private final static int DATE_COL = 0;
+	private final static int TECHNICIAN_ID_COL = 1;
+	private final static int SESSION_ID_COL = 2;
+	private final static int CUSTOMER_NAME_COL = 3;
+	private final static int TECHNICIAN_NAME_COL = 4;
+	private final static int Q1_COL = 5;
+	private final static int COMMENTS_COL = 9;
+	
+	private final RowCursor rows;
+	
+	private long surveyTime;
+	private String technicianID;
+	private int packedAnswers;
+	
+	private final static Logger logger = Logger.getLogger(SurveyRecord.class);
+	
+	/**
+	 * Build a record over a survey cursor.
+	 * 
+	 * @param rows	The cursor, selecting COLUMNS, or null for a record loaded from snapshots.
+	 */
+	SurveyRecord(RowCursor rows)
+	{
+		this.rows = rows;
+	}
+	
+	/**
+	 * Decode the common columns of the cursor's current row. An answer that cannot be packed is logged and read as blank, so one bad row
+	 * does not fail the scan it is read in.
+	 * 
+	 * @throws SQLException	If a column cannot be read.
+	 */
+	void load() throws SQLException
+	{
+		surveyTime = rows.getEpochMillis(DATE_COL);
+		technicianID = rows.getString(TECHNICIAN_ID_COL);
+		
+		packedAnswers = 0;
+		int answer;
+		for(int i = 0; i < 4; i++)
+		{
+			answer = rows.getNullableInt(Q1_COL + i);
+			
+			if(!SurveyScoring.isPackable(answer))
+			{
+				logger.log(Level.WARN, "Survey for technician " + technicianID + " at " + new Timestamp(surveyTime) + " has Q" + (i + 1) + " answer " + answer + ", which cannot be scored, reading it as blank");
+				answer = RowCursor.NULL_INT;
+			}
+			
+			packedAnswers = (packedAnswers << 8) | SurveyScoring.packAnswer(answer);
+		}
+	}
+	
+	/**
+	 * Load the common columns from a snapshot row.
+	 * 
+	 * @param snapshot	The snapshot.
+	 * @param row		The row index.
+	 */
+	void load(SurveySnapshot snapshot, int row)
+	{
+		surveyTime = snapshot.getSurveyTime(row);
+		technicianID = snapshot.getTechnicianID(row);
+		
+		packedAnswers = snapshot.getPackedAnswers(row);
+	}
+	
+	/**
+	 * Copy the common columns into a record of their own, which keeps them once the cursor moves on.
+	 * 
+	 * @return	The copy. It has no detail columns.
+	 */
+	SurveyRecord copy()
+	{
+		SurveyRecord retval = new SurveyRecord(null);
+		
+		retval.surveyTime = surveyTime;
+		retval.technicianID = technicianID;
+		retval.packedAnswers = packedAnswers;
+		
+		return retval;
+	}
+	
+	/**
+	 * @return	When the survey was taken, in epoch millis.
+	 */
+	public long getSurveyTime()
+	{
+		return surveyTime;
+	}
+	
+	/**
+	 * @return	The technician's roster node ID.
+	 */
+	public String getTechnicianID()
+	{
+		return technicianID;
+	}
+	
+	/**
+	 * Accessor for a question's answer.
+	 * 
+	 * @param question	The question number, 1 through 4.
+	 * 
+	 * @return	The answer, or RowCursor.NULL_INT if the question was left blank.
+	 */
+	public int getAnswer(int question)
+	{
+		return SurveyScoring.unpackAnswer(packedAnswers, question);
+	}
+	
+	/**
+	 * @return	The Q1-Q4 answers, packed as SurveyScoring reads them.
+	 */
+	public int getPackedAnswers()
+	{
+		return packedAnswers;
+	}
+	
+	/**
+	 * Score the survey.
+	 * 
+	 * @param scoring	The scoring table to score by.
+	 * 
+	 * @return	The packed score, read with SurveyScoring's accessors.
+	 */
+	public int getScore(SurveyScoring scoring)
+	{
+		return scoring.score(surveyTime, packedAnswers);
+	}
+	
+	/**
+	 * Accessor for a question's answer as it was stored, for display.
+	 * 
+	 * @param question	The question number, 1 through 4.
+	 * 
+	 * @return	The answer text, blank if unanswered.
+	 * 
+	 * @throws SQLException	If the column cannot be read.
+	 */
+	public String getAnswerText(int question) throws SQLException
+	{
+		return getDetail(Q1_COL + question - 1);
+	}
+	
+	/**
+	 * @return	The LMI session ID.
+	 * 
+	 * @throws SQLException	If the column cannot be read.
+	 */
+	public String getSessionID() throws SQLException
+	{
+		return getDetail(SESSION_ID_COL);
+	}
+	
+	/**
+	 * @return	The customer's name.
+	 * 
+	 * @throws SQLException	If the column cannot be read.
+	 */
+	public String getCustomerName() throws SQLException
+	{
+		return getDetail(CUSTOMER_NAME_COL);
+	}
+	
+	/**
+	 * @return	The technician's name, as recorded on the survey.
+	 * 
+	 * @throws SQLException	If the column cannot be read.
+	 */
+	public String getTechnicianName() throws SQLException
+	{
+		return getDetail(TECHNICIAN_NAME_COL);
+	}
+	
+	/**
+	 * @return	The customer's comments.
+	 * 
+	 * @throws SQLException	If the column cannot be read.
+	 */
+	public String getComments() throws SQLException
+	{
+		return getDetail(COMMENTS_COL);
+	}
+	
+	private String getDetail(int column) throws SQLException
+	{
+		if(rows == null)
+		{
+			throw new SQLException("Survey snapshots do not hold column " + column);
+		}
+		
+		return rows.getString(column);
+	}
+}
@@ -0,0 +1,352 @@
+package com.sutherland.kaspersky.report.survey;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.sutherland.kaspersky.datasources.PooledConnection;
+import com.sutherland.kaspersky.datasources.RowCursor;
+import com.sutherland.kaspersky.report.ChunkedAggregation;
+import com.sutherland.kaspersky.report.ChunkedAggregation.ChunkTask;
+import com.sutherland.kaspersky.report.GrainPartial;
+import com.sutherland.kaspersky.report.IngestWatermark;
+import com.sutherland.kaspersky.report.KasperskyRoster;
+import com.sutherland.kaspersky.report.Mergeable;
+
+/**
+ * A single pass over LMI_10982630_Customer_Survey shared by every survey metric requested for the same date range and roster filter.
+ *
+ * The first report to ask for a range starts reading at once. Dashboards request their survey tiles together, so reports asking for the
+ * same range while that scan runs join a single follow-up scan, which starts as soon as the running one is done and fans each row out
+ * to every joined metric. Joined reports block until their pass is complete. Each metric still applies its own roster check, since the
+ * scan only filters on what the joined rosters have in common.
+ *
+ * Closed months are read from local SurveySnapshots rather than the database, unless a joined metric needs the detail columns the
+ * snapshots leave out. When every joined metric is a ChunkedSurveyMetric, snapshot rows are split into chunks filled in parallel by
+ * ChunkedAggregation.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class SurveyScan
+{
+	/**
+	 * Key => the scan reading the table for that key, and key => the scan queued behind it and still accepting metrics. Both guarded by
+	 * gatheringScans.
+	 */
+	private final static HashMap<String, SurveyScan> runningScans = new HashMap<String, SurveyScan>();
+	private final static HashMap<String, SurveyScan> gatheringScans = new HashMap<String, SurveyScan>();
+
+	private final static Logger logger = Logger.getLogger(SurveyScan.class);
+
+	private final ArrayList<SurveyMetric> metrics;
+	private final CountDownLatch finished;
+	private Exception failure;
+
+	private SurveyScan()
+	{
+		metrics = new ArrayList<SurveyMetric>();
+		finished = new CountDownLatch(1);
+	}
+
+	/**
+	 * Fill a metric from a shared scan of the surveys taken in [startDate, endDate) by the roster's technicians. Returns once the metric has
+	 * seen every survey.
+	 *
+	 * @param dbConnection	The caller's connection, used if the caller ends up running the scan.
+	 * @param startDate		The start of the range, inclusive.
+	 * @param endDate		The end of the range, exclusive.
+	 * @param roster		The caller's loaded roster.
+	 * @param metric		The metric to fill.
+	 *
+	 * @throws Exception	If the scan failed.
+	 */
+	public static void scan(PooledConnection dbConnection, Timestamp startDate, Timestamp endDate, KasperskyRoster roster, SurveyMetric metric) throws Exception
+	{
+		ArrayList<Object> parameters = new ArrayList<Object>();
+		parameters.add(startDate);
+		parameters.add(endDate);
+
+		String technicianFilter = roster.getTechnicianFilter("Technician_ID", parameters);
+
+		String key = technicianFilter + parameters;
+
+		SurveyScan scan;
+		SurveyScan runningScan = null;
+		boolean runScan = false;
+
+		synchronized(gatheringScans)
+		{
+			scan = gatheringScans.get(key);
+
+			if(scan == null)
+			{
+				scan = new SurveyScan();
+				runScan = true;
+
+				runningScan = runningScans.get(key);
+				if(runningScan == null)
+				{
+					//nothing is reading this range, so start straight away rather than wait for company
+					runningScans.put(key, scan);
+				}
+				else
+				{
+					gatheringScans.put(key, scan);
+				}
+			}
+
+			scan.metrics.add(metric);
+		}
+
+		if(runScan)
+		{
+			if(runningScan != null)
+			{
+				//gather the reports arriving while the same range is being read, and read it once more for all of them
+				try
+				{
+					runningScan.finished.await();
+				}
+				catch(InterruptedException e)
+				{
+					//the joined reports are waiting on this scan, so run it regardless
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			ArrayList<SurveyMetric> joinedMetrics;
+			synchronized(gatheringScans)
+			{
+				if(runningScan != null)
+				{
+					gatheringScans.remove(key);
+					runningScans.put(key, scan);
+				}
+
+				joinedMetrics = new ArrayList<SurveyMetric>(scan.metrics);
+			}
+
+			try
+			{
+				scan.run(dbConnection, technicianFilter, parameters, joinedMetrics);
+			}
+			catch(Exception e)
+			{
+				scan.failure = e;
+			}
+			finally
+			{
+				synchronized(gatheringScans)
+				{
+					runningScans.remove(key);
+				}
+
+				scan.finished.countDown();
+			}
+		}
+		else
+		{
+			scan.finished.await();
+		}
+
+		if(scan.failure != null)
+		{
+			throw scan.failure;
+		}
+	}
+
+	/**
+	 * Determine if a scan for the roster's technicians over [startDate, endDate) is queued and still accepting metrics, so a report that
+	 * could answer some other way can join it instead.
+	 *
+	 * @param startDate	The start of the range, inclusive.
+	 * @param endDate	The end of the range, exclusive.
+	 * @param roster	The caller's loaded roster.
+	 *
+	 * @return	True if a matching scan is gathering.
+	 */
+	public static boolean isGathering(Timestamp startDate, Timestamp endDate, KasperskyRoster roster)
+	{
+		ArrayList<Object> parameters = new ArrayList<Object>();
+		parameters.add(startDate);
+		parameters.add(endDate);
+
+		String key = roster.getTechnicianFilter("Technician_ID", parameters) + parameters;
+
+		synchronized(gatheringScans)
+		{
+			return gatheringScans.containsKey(key);
+		}
+	}
+
+	private void run(PooledConnection dbConnection, String technicianFilter, ArrayList<Object> parameters, ArrayList<SurveyMetric> joinedMetrics) throws Exception
+	{
+		SurveyMetric[] fanOut = joinedMetrics.toArray(new SurveyMetric[joinedMetrics.size()]);
+
+		boolean needsDetailColumns = false;
+		for(SurveyMetric metric : fanOut)
+		{
+			needsDetailColumns |= metric.needsDetailColumns();
+		}
+
+		Timestamp startDate = (Timestamp)parameters.get(0);
+		Timestamp endDate = (Timestamp)parameters.get(1);
+
+		//closed months are read from their local snapshots, and only what follows the last one from the database
+		Timestamp databaseStart = startDate;
+		long snapshotSurveys = 0;
+
+		if(!needsDetailColumns)
+		{
+			long watermark = IngestWatermark.getWatermark(dbConnection);
+
+			//snapshot rows are all at hand, so metrics that can fill partials are fed in parallel chunks
+			boolean chunked = true;
+			for(SurveyMetric metric : fanOut)
+			{
+				chunked &= metric instanceof ChunkedSurveyMetric;
+			}
+
+			SurveySnapshot snapshot;
+			int fromRow, toRow;
+			while(databaseStart.before(endDate) && (snapshot = SurveySnapshots.getClosedMonth(dbConnection, databaseStart.getTime(), watermark)) != null)
+			{
+				//snapshots hold every technician, the metrics' own roster checks do the filtering
+				fromRow = snapshot.findRow(databaseStart.getTime());
+				toRow = snapshot.findRow(endDate.getTime());
+
+				if(chunked)
+				{
+					scanChunks(snapshot, fromRow, toRow, fanOut);
+				}
+				else
+				{
+					scanRows(snapshot, fromRow, toRow, fanOut);
+				}
+
+				snapshotSurveys += toRow - fromRow;
+
+				databaseStart = new Timestamp(Math.min(snapshot.getEnd(), endDate.getTime()));
+			}
+		}
+
+		long databaseSurveys = 0;
+
+		if(databaseStart.before(endDate))
+		{
+			ArrayList<Object> databaseParameters = new ArrayList<Object>(parameters);
+			databaseParameters.set(0, databaseStart);
+
+			String query = "SELECT " + SurveyRecord.COLUMNS + " FROM LMI_10982630_Customer_Survey WHERE Date >= ? AND Date < ? AND " + technicianFilter;
+
+			RowCursor rows = dbConnection.openCursor(query, databaseParameters.toArray());
+			try
+			{
+				SurveyRecord survey = new SurveyRecord(rows);
+
+				while(rows.next())
+				{
+					survey.load();
+
+					for(SurveyMetric metric : fanOut)
+					{
+						metric.addSurvey(survey);
+					}
+				}
+			}
+			finally
+			{
+				rows.close();
+			}
+
+			databaseSurveys = rows.getRowCount();
+		}
+
+		logger.log(Level.INFO, "Survey scan fed " + fanOut.length + " metrics from " + snapshotSurveys + " snapshot surveys and " + databaseSurveys + " database surveys");
+	}
+
+	private static void scanRows(SurveySnapshot snapshot, int fromRow, int toRow, SurveyMetric[] fanOut) throws SQLException
+	{
+		SurveyRecord survey = new SurveyRecord(null);
+
+		for(int row = fromRow; row < toRow; row++)
+		{
+			survey.load(snapshot, row);
+
+			for(SurveyMetric metric : fanOut)
+			{
+				metric.addSurvey(survey);
+			}
+		}
+	}
+
+	private static void scanChunks(final SurveySnapshot snapshot, int fromRow, int toRow, SurveyMetric[] fanOut) throws SQLException
+	{
+		final ChunkedSurveyMetric[] metrics = new ChunkedSurveyMetric[fanOut.length];
+		for(int i = 0; i < fanOut.length; i++)
+		{
+			metrics[i] = (ChunkedSurveyMetric)fanOut[i];
+		}
+
+		ChunkTask<ChunkPartials> scanChunk = new ChunkTask<ChunkPartials>()
+		{
+			@Override
+			public ChunkPartials aggregate(int chunkFromRow, int chunkToRow)
+			{
+				ChunkPartials retval = new ChunkPartials(metrics);
+
+				SurveyRecord survey = new SurveyRecord(null);
+				for(int row = chunkFromRow; row < chunkToRow; row++)
+				{
+					survey.load(snapshot, row);
+
+					for(int i = 0; i < metrics.length; i++)
+					{
+						metrics[i].addSurvey(retval.partials[i], survey);
+					}
+				}
+
+				return retval;
+			}
+		};
+
+		ChunkPartials merged = ChunkedAggregation.run(fromRow, toRow, scanChunk);
+
+		for(int i = 0; i < metrics.length; i++)
+		{
+			metrics[i].addPartial(merged.partials[i]);
+		}
+	}
+
+	/**
+	 * The partial of each metric for one chunk of surveys.
+	 */
+	private final static class ChunkPartials implements Mergeable<ChunkPartials>
+	{
+		private final GrainPartial[] partials;
+
+		ChunkPartials(ChunkedSurveyMetric[] metrics)
+		{
+			partials = new GrainPartial[metrics.length];
+			for(int i = 0; i < metrics.length; i++)
+			{
+				partials[i] = metrics[i].newPartial();
+			}
+		}
+
+		@Override
+		public void merge(ChunkPartials other)
+		{
+			for(int i = 0; i < partials.length; i++)
+			{
+				partials[i].merge(other.partials[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.sutherland.kaspersky.report.survey;
+
+import com.sutherland.helios.date.parsing.DateParser;
+import com.sutherland.kaspersky.datasources.RowCursor;
+
+/**
+ * A table of the points each survey question is scored out of, by the date the scoring took effect, and the scoring of surveys against
+ * it. Every survey report scores through one of these tables rather than its own copy of the question logic.
+ *
+ * Surveys are scored from their Q1-Q4 answers packed one byte each into an int, Q1 in the high byte, as survey snapshots store them. A
+ * blank answer packs as BLANK_ANSWER, and is neither scored nor counted towards the points available. A score packs the points scored
+ * into its high 16 bits and the points available into its low 16 bits, so scoring a survey allocates nothing.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class SurveyScoring
+{
+	/**
+	 * Packed value of a blank answer.
+	 */
+	public final static byte BLANK_ANSWER = Byte.MIN_VALUE;
+
+	/**
+	 * Surveys taken from this time on score Q1, Q2 and Q4 out of 5 points rather than 10 for CSAT rate.
+	 */
+	public final static long SCORING_CHANGE_DATE = DateParser.convertSQLDateToGregorian("2015-01-29 11:30:00").getTimeInMillis();
+
+	/**
+	 * Every question out of 10 points, as CSAT volume and DSAT are scored.
+	 */
+	public final static SurveyScoring TEN_POINT = new SurveyScoring
+	(
+			new long[]{Long.MIN_VALUE},
+			new int[][]{{10, 10, 10, 10}}
+	);
+
+	/**
+	 * CSAT rate scoring. Q3 is the 0-10 recommendation question, and kept its scale through the scoring change.
+	 */
+	public final static SurveyScoring CSAT_RATE = new SurveyScoring
+	(
+			new long[]{Long.MIN_VALUE, SCORING_CHANGE_DATE},
+			new int[][]{{10, 10, 10, 10}, {5, 5, 10, 5}}
+	);
+
+	private final long[] effectiveFrom;
+	private final int[][] maxPoints;
+
+	/**
+	 * Build a scoring table.
+	 *
+	 * @param effectiveFrom	When each rule took effect, in epoch millis and ascending order. The first rule covers all earlier surveys.
+	 * @param maxPoints		Each rule's points available for Q1 through Q4.
+	 */
+	public SurveyScoring(long[] effectiveFrom, int[][] maxPoints)
+	{
+		if(effectiveFrom.length == 0 || effectiveFrom.length != maxPoints.length)
+		{
+			throw new IllegalArgumentException("Each scoring rule needs an effective date and its points per question");
+		}
+
+		for(int rule = 0; rule < maxPoints.length; rule++)
+		{
+			if(maxPoints[rule].length != 4 || (rule > 0 && effectiveFrom[rule] <= effectiveFrom[rule - 1]))
+			{
+				throw new IllegalArgumentException("Scoring rule " + rule + " is out of order or does not cover Q1 through Q4");
+			}
+		}
+
+		this.effectiveFrom = effectiveFrom.clone();
+		this.maxPoints = new int[maxPoints.length][];
+		for(int rule = 0; rule < maxPoints.length; rule++)
+		{
+			this.maxPoints[rule] = maxPoints[rule].clone();
+		}
+	}
+
+	/**
+	 * Determine if an answer can be packed: it must be blank, or fit a byte without colliding with BLANK_ANSWER.
+	 *
+	 * @param answer	The answer, or RowCursor.NULL_INT if the question was left blank.
+	 *
+	 * @return	True if packAnswer() accepts the answer.
+	 */
+	public static boolean isPackable(int answer)
+	{
+		return answer == RowCursor.NULL_INT || (answer > Byte.MIN_VALUE && answer <= Byte.MAX_VALUE);
+	}
+
+	/**
+	 * Pack an answer into its byte of a survey's packed answers.
+	 *
+	 * @param answer	The answer, or RowCursor.NULL_INT if the question was left blank.
+	 *
+	 * @return	The packed answer, in the low byte.
+	 *
+	 * @throws IllegalArgumentException	If the answer is not packable.
+	 */
+	public static int packAnswer(int answer)
+	{
+		int retval;
+
+		if(!isPackable(answer))
+		{
+			throw new IllegalArgumentException("Survey answer " + answer + " does not fit a packed answer");
+		}
+		else if(answer == RowCursor.NULL_INT)
+		{
+			retval = BLANK_ANSWER & 0xFF;
+		}
+		else
+		{
+			retval = answer & 0xFF;
+		}
+
+		return retval;
+	}
+
+	/**
+	 * Unpack one question's answer.
+	 *
+	 * @param packedAnswers	The survey's packed answers.
+	 * @param question		The question number, 1 through 4.
+	 *
+	 * @return	The answer, or RowCursor.NULL_INT if the question was left blank.
+	 */
+	public static int unpackAnswer(int packedAnswers, int question)
+	{
+		byte answer = (byte)(packedAnswers >>> (8 * (4 - question)));
+
+		return (answer == BLANK_ANSWER) ? RowCursor.NULL_INT : answer;
+	}
+
+	/**
+	 * Score a survey.
+	 *
+	 * @param surveyTime	When the survey was taken, in epoch millis, selecting the rule it is scored by.
+	 * @param packedAnswers	The survey's packed answers.
+	 *
+	 * @return	The packed score. A blank survey scores 0 points out of 0.
+	 */
+	public int score(long surveyTime, int packedAnswers)
+	{
+		int rule = effectiveFrom.length - 1;
+		while(rule > 0 && surveyTime < effectiveFrom[rule])
+		{
+			rule--;
+		}
+
+		int[] questionMaxPoints = maxPoints[rule];
+		int points = 0;
+		int available = 0;
+
+		int answer;
+		for(int question = 0; question < 4; question++)
+		{
+			answer = (byte)(packedAnswers >>> (24 - 8 * question));
+
+			if(answer != BLANK_ANSWER)
+			{
+				points += answer;
+				available += questionMaxPoints[question];
+			}
+		}
+
+		return (points << 16) | available;
+	}
+
+	/**
+	 * @param score	A packed score.
+	 *
+	 * @return	The points scored.
+	 */
+	public static int getPoints(int score)
+	{
+		return score >> 16;
+	}
+
+	/**
+	 * @param score	A packed score.
+	 *
+	 * @return	The points available, 0 for a blank survey.
+	 */
+	public static int getMaxPoints(int score)
+	{
+		return score & 0xFFFF;
+	}
+
+	/**
+	 * @param score	A packed score.
+	 *
+	 * @return	The points scored as a fraction of the points available, or 0 for a blank survey.
+	 */
+	public static double getRate(int score)
+	{
+		int maxPoints = getMaxPoints(score);
+
+		return (maxPoints == 0) ? 0.0 : (double)getPoints(score) / (double)maxPoints;
+	}
+}
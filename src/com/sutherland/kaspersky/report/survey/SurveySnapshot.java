@@ -0,0 +1,307 @@
+package com.sutherland.kaspersky.report.survey;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.sql.Timestamp;
+import java.util.HashMap;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.sutherland.kaspersky.datasources.RowCursor;
+
+/**
+ * A memory-mapped, columnar copy of one closed month of LMI_10982630_Customer_Survey, holding the columns every survey metric reads.
+ *
+ * Surveys are stored in Date order as three columns: epoch millis timestamps, indexes into a dictionary of technician IDs, and the Q1-Q4
+ * answers packed one byte each. Rows are read in place from the mapped file, and the dictionary is decoded once when the file is opened,
+ * so scanning a snapshot allocates nothing per row.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class SurveySnapshot
+{
+	private final static int MAGIC = 0x4C4D4953;
+	private final static int VERSION = 1;
+
+	/**
+	 * Packed value of a blank answer.
+	 */
+	private final static byte NULL_ANSWER = SurveyScoring.BLANK_ANSWER;
+
+	/**
+	 * Bytes per row in each column, and in all three together.
+	 */
+	private final static int TIME_BYTES = 8;
+	private final static int TECHNICIAN_BYTES = 4;
+	private final static int ANSWERS_BYTES = 4;
+	private final static int ROW_BYTES = TIME_BYTES + TECHNICIAN_BYTES + ANSWERS_BYTES;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final static Logger logger = Logger.getLogger(SurveySnapshot.class);
+
+	private final long start;
+	private final long end;
+	private final int rowCount;
+	private final String[] technicianIDs;
+	private final MappedByteBuffer buffer;
+	private final int timesOffset;
+	private final int techniciansOffset;
+	private final int answersOffset;
+
+	private SurveySnapshot(long start, long end, int rowCount, String[] technicianIDs, MappedByteBuffer buffer, int timesOffset)
+	{
+		this.start = start;
+		this.end = end;
+		this.rowCount = rowCount;
+		this.technicianIDs = technicianIDs;
+		this.buffer = buffer;
+		this.timesOffset = timesOffset;
+		this.techniciansOffset = timesOffset + TIME_BYTES * rowCount;
+		this.answersOffset = techniciansOffset + TECHNICIAN_BYTES * rowCount;
+	}
+
+	/**
+	 * Map a snapshot file.
+	 *
+	 * @param file	The snapshot file.
+	 *
+	 * @return	The mapped snapshot.
+	 *
+	 * @throws IOException	If the file cannot be mapped or is not a snapshot.
+	 */
+	static SurveySnapshot open(File file) throws IOException
+	{
+		MappedByteBuffer buffer;
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{
+			//the mapping stays valid after the channel is closed
+			buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+		}
+		finally
+		{
+			in.close();
+		}
+
+		if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+		{
+			throw new IOException(file + " is not a version " + VERSION + " survey snapshot");
+		}
+
+		long start = buffer.getLong();
+		long end = buffer.getLong();
+		int rowCount = buffer.getInt();
+
+		String[] technicianIDs = new String[buffer.getInt()];
+		byte[] text;
+		for(int i = 0; i < technicianIDs.length; i++)
+		{
+			text = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(text);
+			technicianIDs[i] = new String(text, UTF8);
+		}
+
+		if(buffer.remaining() != (long)ROW_BYTES * rowCount)
+		{
+			throw new IOException(file + " is truncated");
+		}
+
+		return new SurveySnapshot(start, end, rowCount, technicianIDs, buffer, buffer.position());
+	}
+
+	/**
+	 * Write the surveys read from a cursor as a snapshot file.
+	 *
+	 * @param file	The snapshot file.
+	 * @param start	The start of the snapshot's range, inclusive.
+	 * @param end	The end of the snapshot's range, exclusive.
+	 * @param rows	A cursor selecting Date,Technician_ID,Q1,Q2,Q3,Q4 over the range, ordered by Date.
+	 *
+	 * @throws IOException	If the file cannot be written.
+	 * @throws SQLException	If the cursor cannot be read.
+	 */
+	static void write(File file, long start, long end, RowCursor rows) throws IOException, SQLException
+	{
+		ArrayList<String> dictionary = new ArrayList<String>();
+		HashMap<String, Integer> dictionaryIndexes = new HashMap<String, Integer>();
+
+		//each column is built up on its own, then written out after the dictionary
+		ByteArrayOutputStream timesColumn = new ByteArrayOutputStream();
+		ByteArrayOutputStream techniciansColumn = new ByteArrayOutputStream();
+		ByteArrayOutputStream answersColumn = new ByteArrayOutputStream();
+
+		DataOutputStream times = new DataOutputStream(timesColumn);
+		DataOutputStream technicians = new DataOutputStream(techniciansColumn);
+
+		int rowCount = 0;
+		String technicianID;
+		Integer technicianIndex;
+		int answer;
+		while(rows.next())
+		{
+			technicianID = rows.getString(1);
+			technicianIndex = dictionaryIndexes.get(technicianID);
+			if(technicianIndex == null)
+			{
+				technicianIndex = dictionary.size();
+				dictionary.add(technicianID);
+				dictionaryIndexes.put(technicianID, technicianIndex);
+			}
+
+			for(int i = 0; i < 4; i++)
+			{
+				answer = rows.getNullableInt(2 + i);
+
+				//stored blank, as SurveyRecord reads it from the database, rather than leaving the whole month unsnapshotted
+				if(!SurveyScoring.isPackable(answer))
+				{
+					logger.log(Level.WARN, "Survey for technician " + technicianID + " at " + new Timestamp(rows.getEpochMillis(0)) + " has Q" + (i + 1) + " answer " + answer + ", which cannot be scored, storing it as blank");
+					answer = RowCursor.NULL_INT;
+				}
+
+				if(answer == RowCursor.NULL_INT)
+				{
+					answersColumn.write(NULL_ANSWER);
+				}
+				else
+				{
+					answersColumn.write(answer);
+				}
+			}
+
+			times.writeLong(rows.getEpochMillis(0));
+			technicians.writeInt(technicianIndex);
+			rowCount++;
+		}
+
+		if(timesColumn.size() != TIME_BYTES * rowCount || techniciansColumn.size() != TECHNICIAN_BYTES * rowCount || answersColumn.size() != ANSWERS_BYTES * rowCount)
+		{
+			throw new IOException("Survey snapshot columns do not match the " + ROW_BYTES + " byte row layout");
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(start);
+			out.writeLong(end);
+			out.writeInt(rowCount);
+
+			out.writeInt(dictionary.size());
+			byte[] text;
+			for(String entry : dictionary)
+			{
+				text = entry.getBytes(UTF8);
+				out.writeShort(text.length);
+				out.write(text);
+			}
+
+			timesColumn.writeTo(out);
+			techniciansColumn.writeTo(out);
+			answersColumn.writeTo(out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Find the first survey taken at or after a time.
+	 *
+	 * @param time	The time, in epoch millis.
+	 *
+	 * @return	The row index, or getRowCount() if every survey is earlier.
+	 */
+	public int findRow(long time)
+	{
+		int low = 0;
+		int high = rowCount;
+		int middle;
+
+		while(low < high)
+		{
+			middle = (low + high) >>> 1;
+
+			if(getSurveyTime(middle) < time)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * @return	The start of the snapshot's range, inclusive, in epoch millis.
+	 */
+	public long getStart()
+	{
+		return start;
+	}
+
+	/**
+	 * @return	The end of the snapshot's range, exclusive, in epoch millis.
+	 */
+	public long getEnd()
+	{
+		return end;
+	}
+
+	/**
+	 * @return	The number of surveys in the snapshot.
+	 */
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	/**
+	 * @param row	The row index.
+	 *
+	 * @return	When the survey was taken, in epoch millis.
+	 */
+	public long getSurveyTime(int row)
+	{
+		return buffer.getLong(timesOffset + TIME_BYTES * row);
+	}
+
+	/**
+	 * @param row	The row index.
+	 *
+	 * @return	The technician's roster node ID.
+	 */
+	public String getTechnicianID(int row)
+	{
+		return technicianIDs[buffer.getInt(techniciansOffset + TECHNICIAN_BYTES * row)];
+	}
+
+	/**
+	 * @param row	The row index.
+	 *
+	 * @return	The Q1-Q4 answers, packed as SurveyScoring reads them.
+	 */
+	public int getPackedAnswers(int row)
+	{
+		return buffer.getInt(answersOffset + ANSWERS_BYTES * row);
+	}
+}
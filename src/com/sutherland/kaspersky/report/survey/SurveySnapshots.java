@@ -0,0 +1,130 @@
+package com.sutherland.kaspersky.report.survey;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.sutherland.kaspersky.datasources.PooledConnection;
+import com.sutherland.kaspersky.datasources.RowCursor;
+
+/**
+ * The local store of survey snapshots, one per closed calendar month. A month is closed once the ingest watermark has passed its end,
+ * and its snapshot is written from the database the first time a scan reaches it. Snapshots are mapped once and shared by every scan.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class SurveySnapshots
+{
+	/**
+	 * Where snapshot files are kept.
+	 */
+	public final static String SNAPSHOT_DIR = "/opt/tomcat/KasperskyReporting/snapshots/survey";
+
+	private final static String SNAPSHOT_QUERY = "SELECT Date,Technician_ID,Q1,Q2,Q3,Q4 FROM LMI_10982630_Customer_Survey WHERE Date >= ? AND Date < ? ORDER BY Date";
+
+	/**
+	 * Month start => mapped snapshot.
+	 */
+	private final static HashMap<Long, SurveySnapshot> snapshots = new HashMap<Long, SurveySnapshot>();
+
+	private final static Logger logger = Logger.getLogger(SurveySnapshots.class);
+
+	private SurveySnapshots()
+	{}
+
+	/**
+	 * Retrieve the snapshot of the month containing a time, writing it first if the month is closed but has no snapshot yet.
+	 *
+	 * @param dbConnection	The connection to read the month from, if its snapshot has to be written.
+	 * @param time			A time in the month, in epoch millis.
+	 * @param watermark		The ingest watermark, in epoch millis.
+	 *
+	 * @return	The snapshot, or null if the month is still open or its snapshot could not be written. Callers fall back to the database.
+	 *
+	 * @throws SQLException	If the month could not be read from the database.
+	 */
+	public static SurveySnapshot getClosedMonth(PooledConnection dbConnection, long time, long watermark) throws SQLException
+	{
+		SurveySnapshot retval = null;
+
+		GregorianCalendar month = new GregorianCalendar();
+		month.setTimeInMillis(time);
+		month.set(GregorianCalendar.DAY_OF_MONTH, 1);
+		month.set(GregorianCalendar.HOUR_OF_DAY, 0);
+		month.set(GregorianCalendar.MINUTE, 0);
+		month.set(GregorianCalendar.SECOND, 0);
+		month.set(GregorianCalendar.MILLISECOND, 0);
+
+		long monthStart = month.getTimeInMillis();
+		month.add(GregorianCalendar.MONTH, 1);
+		long monthEnd = month.getTimeInMillis();
+
+		if(monthEnd <= watermark && watermark != Long.MIN_VALUE)
+		{
+			synchronized(snapshots)
+			{
+				retval = snapshots.get(monthStart);
+
+				if(retval == null)
+				{
+					File file = new File(SNAPSHOT_DIR, "survey-" + new SimpleDateFormat("yyyy-MM").format(monthStart) + ".snap");
+
+					try
+					{
+						if(!file.exists())
+						{
+							writeSnapshot(dbConnection, file, monthStart, monthEnd);
+						}
+
+						retval = SurveySnapshot.open(file);
+						snapshots.put(monthStart, retval);
+					}
+					catch(IOException e)
+					{
+						logger.log(Level.WARN, "Survey snapshot " + file + " unavailable, reading from the database: " + e.getMessage());
+					}
+				}
+			}
+		}
+
+		return retval;
+	}
+
+	private static void writeSnapshot(PooledConnection dbConnection, File file, long monthStart, long monthEnd) throws IOException, SQLException
+	{
+		File directory = file.getParentFile();
+		if(!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create " + directory);
+		}
+
+		//write aside and rename, so a reader never maps a half written file
+		File partial = new File(directory, file.getName() + ".partial");
+
+		RowCursor rows = dbConnection.openCursor(SNAPSHOT_QUERY, new Timestamp(monthStart), new Timestamp(monthEnd));
+		try
+		{
+			SurveySnapshot.write(partial, monthStart, monthEnd, rows);
+		}
+		finally
+		{
+			rows.close();
+		}
+
+		if(!partial.renameTo(file))
+		{
+			partial.delete();
+			throw new IOException("Could not rename " + partial + " to " + file);
+		}
+
+		logger.log(Level.INFO, "Wrote survey snapshot " + file + " with " + rows.getRowCount() + " surveys");
+	}
+}
@@ -0,0 +1,138 @@
+package com.sutherland.kaspersky.report.survey;
+
+import com.sutherland.kaspersky.datasources.RowCursor;
+import com.sutherland.kaspersky.report.Mergeable;
+
+/**
+ * Running totals of the survey measures the survey reports are built from. Totals for a technician's day can be summed into totals for
+ * any coarser grain, and each report's figure is derived from the sums rather than from the individual surveys.
+ *
+ * Surveys are scored by the same SurveyScoring tables as the reports: CSAT volume by TEN_POINT, and CSAT rate by CSAT_RATE.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class SurveyTotals implements Mergeable<SurveyTotals>
+{
+	private final static double SATISFIED_CSAT = .85;
+
+	private int surveys;
+	private int scoredSurveys;
+	private double csatRateSum;
+	private int satisfiedSurveys;
+	private int npsSurveys;
+	private int promoters;
+	private int detractors;
+
+	/**
+	 * Score a survey and add it to the totals.
+	 *
+	 * @param survey	The survey.
+	 */
+	public void addSurvey(SurveyRecord survey)
+	{
+		int score = survey.getScore(SurveyScoring.TEN_POINT);
+		int rateScore = survey.getScore(SurveyScoring.CSAT_RATE);
+
+		surveys++;
+
+		//throw out blank surveys
+		if(SurveyScoring.getMaxPoints(score) > 0)
+		{
+			scoredSurveys++;
+			csatRateSum += SurveyScoring.getRate(rateScore);
+
+			if(SurveyScoring.getRate(score) >= SATISFIED_CSAT)
+			{
+				satisfiedSurveys++;
+			}
+		}
+
+		//NPS is calculated by (% of promoters (9-10) - % of detractors (0-6)).
+		int answer = survey.getAnswer(3);
+		if(answer != RowCursor.NULL_INT)
+		{
+			npsSurveys++;
+
+			if(answer == 9 || answer == 10)
+			{
+				promoters++;
+			}
+			else if(answer <= 6)
+			{
+				detractors++;
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.sutherland.kaspersky.report.Mergeable#merge(com.sutherland.kaspersky.report.Mergeable)
+	 */
+	@Override
+	public void merge(SurveyTotals other)
+	{
+		surveys += other.surveys;
+		scoredSurveys += other.scoredSurveys;
+		csatRateSum += other.csatRateSum;
+		satisfiedSurveys += other.satisfiedSurveys;
+		npsSurveys += other.npsSurveys;
+		promoters += other.promoters;
+		detractors += other.detractors;
+	}
+
+	/**
+	 * @return	The number of surveys, blank or not.
+	 */
+	public int getSurveys()
+	{
+		return surveys;
+	}
+
+	/**
+	 * @return	The number of surveys with at least one answered question.
+	 */
+	public int getScoredSurveys()
+	{
+		return scoredSurveys;
+	}
+
+	/**
+	 * @return	The sum of each scored survey's CSAT rate, for averaging over getScoredSurveys().
+	 */
+	public double getCSATRateSum()
+	{
+		return csatRateSum;
+	}
+
+	/**
+	 * @return	The number of scored surveys with a CSAT of at least 85%.
+	 */
+	public int getSatisfiedSurveys()
+	{
+		return satisfiedSurveys;
+	}
+
+	/**
+	 * @return	The number of surveys with Q3 answered.
+	 */
+	public int getNPSSurveys()
+	{
+		return npsSurveys;
+	}
+
+	/**
+	 * @return	The number of surveys answering Q3 with 9 or 10.
+	 */
+	public int getPromoters()
+	{
+		return promoters;
+	}
+
+	/**
+	 * @return	The number of surveys answering Q3 with 6 or less.
+	 */
+	public int getDetractors()
+	{
+		return detractors;
+	}
+}
@@ -0,0 +1,8 @@
+/**
+ * 
+ */
+/**
+ * @author jason
+ *
+ */
+package com.sutherland.kaspersky.report.survey;
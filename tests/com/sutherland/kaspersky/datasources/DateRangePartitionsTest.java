@@ -0,0 +1,133 @@
+package com.sutherland.kaspersky.datasources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Partition boundaries from DateRangePartitions.partition(), across daylight saving changes.
+ *
+ * @author Jason Diamond
+ *
+ */
+public class DateRangePartitionsTest
+{
+	private TimeZone defaultZone;
+
+	@Before
+	public void setUp()
+	{
+		//partitions follow the default zone, so pin one with daylight saving
+		defaultZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("America/Toronto"));
+	}
+
+	@After
+	public void tearDown()
+	{
+		TimeZone.setDefault(defaultZone);
+	}
+
+	@Test
+	public void partitionsByDayOnMidnightAcrossSpringForward()
+	{
+		ArrayList<Timestamp[]> partitions = DateRangePartitions.partition(Timestamp.valueOf("2015-03-05 00:00:00"), Timestamp.valueOf("2015-03-12 00:00:00"));
+
+		assertEquals(7, partitions.size());
+
+		for(int i = 0; i < partitions.size(); i++)
+		{
+			assertEquals(Timestamp.valueOf("2015-03-" + twoDigits(5 + i) + " 00:00:00"), partitions.get(i)[0]);
+			assertEquals(Timestamp.valueOf("2015-03-" + twoDigits(6 + i) + " 00:00:00"), partitions.get(i)[1]);
+		}
+
+		//the 8th is 23 hours long
+		assertEquals(23 * 60 * 60 * 1000, partitions.get(3)[1].getTime() - partitions.get(3)[0].getTime());
+	}
+
+	@Test
+	public void partitionsByDayOnMidnightAcrossFallBack()
+	{
+		ArrayList<Timestamp[]> partitions = DateRangePartitions.partition(Timestamp.valueOf("2015-10-30 00:00:00"), Timestamp.valueOf("2015-11-03 00:00:00"));
+
+		assertEquals(4, partitions.size());
+		assertEquals(Timestamp.valueOf("2015-11-01 00:00:00"), partitions.get(2)[0]);
+		assertEquals(Timestamp.valueOf("2015-11-02 00:00:00"), partitions.get(2)[1]);
+
+		//the 1st is 25 hours long
+		assertEquals(25 * 60 * 60 * 1000, partitions.get(2)[1].getTime() - partitions.get(2)[0].getTime());
+	}
+
+	@Test
+	public void partitionsByWeekOnMidnightAcrossBothChanges()
+	{
+		Timestamp startDate = Timestamp.valueOf("2015-02-01 00:00:00");
+		Timestamp endDate = Timestamp.valueOf("2015-12-01 00:00:00");
+
+		ArrayList<Timestamp[]> partitions = DateRangePartitions.partition(startDate, endDate);
+
+		GregorianCalendar boundary = new GregorianCalendar();
+		boundary.setTimeInMillis(startDate.getTime());
+
+		assertEquals(startDate, partitions.get(0)[0]);
+
+		for(int i = 0; i < partitions.size() - 1; i++)
+		{
+			boundary.add(GregorianCalendar.DAY_OF_MONTH, 7);
+
+			assertEquals(boundary.getTimeInMillis(), partitions.get(i)[1].getTime());
+			assertEquals(partitions.get(i)[1], partitions.get(i + 1)[0]);
+		}
+
+		//the last week is cut short at the end of the range
+		Timestamp[] last = partitions.get(partitions.size() - 1);
+		assertEquals(endDate, last[1]);
+		assertTrue(last[1].getTime() - last[0].getTime() <= 7 * 24 * 60 * 60 * 1000);
+	}
+
+	@Test
+	public void cutsTheFirstAndLastPartitionsAtTheRangeEnds()
+	{
+		ArrayList<Timestamp[]> partitions = DateRangePartitions.partition(Timestamp.valueOf("2015-03-07 15:30:00"), Timestamp.valueOf("2015-03-10 06:00:00"));
+
+		assertEquals(4, partitions.size());
+		assertEquals(Timestamp.valueOf("2015-03-07 15:30:00"), partitions.get(0)[0]);
+		assertEquals(Timestamp.valueOf("2015-03-08 00:00:00"), partitions.get(0)[1]);
+		assertEquals(Timestamp.valueOf("2015-03-10 00:00:00"), partitions.get(3)[0]);
+		assertEquals(Timestamp.valueOf("2015-03-10 06:00:00"), partitions.get(3)[1]);
+	}
+
+	@Test
+	public void switchesToWeeksPastTheDailyLimit()
+	{
+		GregorianCalendar start = new GregorianCalendar(2015, GregorianCalendar.JANUARY, 1);
+		GregorianCalendar end = new GregorianCalendar(2015, GregorianCalendar.JANUARY, 1);
+
+		end.add(GregorianCalendar.DAY_OF_MONTH, DateRangePartitions.DAILY_PARTITION_LIMIT);
+		assertEquals(DateRangePartitions.DAILY_PARTITION_LIMIT, DateRangePartitions.partition(new Timestamp(start.getTimeInMillis()), new Timestamp(end.getTimeInMillis())).size());
+
+		end.add(GregorianCalendar.DAY_OF_MONTH, 1);
+		assertEquals((DateRangePartitions.DAILY_PARTITION_LIMIT + 1 + 6) / 7, DateRangePartitions.partition(new Timestamp(start.getTimeInMillis()), new Timestamp(end.getTimeInMillis())).size());
+	}
+
+	@Test
+	public void partitionsAnEmptyRangeToNothing()
+	{
+		Timestamp date = Timestamp.valueOf("2015-03-08 00:00:00");
+
+		assertEquals(0, DateRangePartitions.partition(date, date).size());
+	}
+
+	private static String twoDigits(int value)
+	{
+		return (value < 10) ? "0" + value : "" + value;
+	}
+}
@@ -0,0 +1,158 @@
+package com.sutherland.kaspersky.datasources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Keys, expiry, the ingest watermark and row-bounded eviction of QueryCache.
+ *
+ * @author Jason Diamond
+ *
+ */
+public class QueryCacheTest
+{
+	private final static long HOUR_MILLIS = 60 * 60 * 1000;
+
+	@Test
+	public void keysCollapseWhitespaceOutsideLiterals()
+	{
+		Object[] parameters = new Object[]{"100", 5};
+
+		String key = QueryCache.getKey("SELECT a FROM t WHERE b = ? AND c = 'x  y'", parameters);
+
+		assertEquals(key, QueryCache.getKey("  SELECT a\n\tFROM t   WHERE b = ?\r\nAND c = 'x  y'  ", parameters));
+		assertNotEquals(key, QueryCache.getKey("SELECT a FROM t WHERE b = ? AND c = 'x y'", parameters));
+	}
+
+	@Test
+	public void keysIncludeTheParameters()
+	{
+		String query = "SELECT a FROM t WHERE b = ? AND c = ?";
+
+		assertNotEquals(QueryCache.getKey(query, new Object[]{"1", "23"}), QueryCache.getKey(query, new Object[]{"12", "3"}));
+	}
+
+	@Test
+	public void returnsTheCachedRows()
+	{
+		QueryCache cache = new QueryCache(HOUR_MILLIS, 100);
+		ArrayList<String[]> rows = rows(3);
+
+		assertNull(cache.get("q"));
+
+		cache.put("q", rows, QueryCache.NEVER);
+
+		assertSame(rows, cache.get("q"));
+		assertEquals("1", cache.getStatistics().get("Query Cache Hits"));
+		assertEquals("1", cache.getStatistics().get("Query Cache Misses"));
+	}
+
+	@Test
+	public void expiresOpenRangesAfterTheirTimeToLive() throws InterruptedException
+	{
+		QueryCache cache = new QueryCache(1, 100);
+
+		cache.put("q", rows(1), 1000);
+		Thread.sleep(10);
+
+		assertNull(cache.get("q"));
+		assertEquals("0", cache.getStatistics().get("Query Cache Rows"));
+	}
+
+	@Test
+	public void keepsRangesEndingByTheWatermark() throws InterruptedException
+	{
+		QueryCache cache = new QueryCache(1, 100);
+		cache.advanceWatermark(1000);
+
+		cache.put("closed", rows(1), 1000);
+		cache.put("open", rows(1), 1001);
+		Thread.sleep(10);
+
+		assertEquals(1, cache.get("closed").size());
+		assertNull(cache.get("open"));
+	}
+
+	@Test
+	public void neverMovesTheWatermarkBack()
+	{
+		QueryCache cache = new QueryCache(HOUR_MILLIS, 100);
+
+		assertEquals(Long.MIN_VALUE, cache.getWatermark());
+
+		cache.advanceWatermark(2000);
+		cache.advanceWatermark(1000);
+
+		assertEquals(2000, cache.getWatermark());
+	}
+
+	@Test
+	public void invalidatesOnlyOpenRanges()
+	{
+		QueryCache cache = new QueryCache(HOUR_MILLIS, 100);
+		cache.advanceWatermark(1000);
+
+		cache.put("closed", rows(2), 500);
+		cache.put("open", rows(3), 5000);
+
+		cache.invalidateOpenRanges();
+
+		assertEquals(2, cache.get("closed").size());
+		assertNull(cache.get("open"));
+		assertEquals("2", cache.getStatistics().get("Query Cache Rows"));
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsedPastMaxRows()
+	{
+		QueryCache cache = new QueryCache(HOUR_MILLIS, 5);
+
+		cache.put("a", rows(2), QueryCache.NEVER);
+		cache.put("b", rows(2), QueryCache.NEVER);
+		cache.get("a");
+		cache.put("c", rows(2), QueryCache.NEVER);
+
+		assertEquals(2, cache.get("a").size());
+		assertNull(cache.get("b"));
+		assertEquals(2, cache.get("c").size());
+		assertEquals("1", cache.getStatistics().get("Query Cache Evictions"));
+	}
+
+	@Test
+	public void skipsResultsLargerThanMaxRows()
+	{
+		QueryCache cache = new QueryCache(HOUR_MILLIS, 5);
+
+		cache.put("a", rows(6), QueryCache.NEVER);
+
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void cachesNothingWithoutATimeToLive()
+	{
+		QueryCache cache = new QueryCache(0, 100);
+
+		cache.put("a", rows(1), QueryCache.NEVER);
+
+		assertNull(cache.get("a"));
+	}
+
+	private static ArrayList<String[]> rows(int count)
+	{
+		ArrayList<String[]> retval = new ArrayList<String[]>();
+
+		for(int i = 0; i < count; i++)
+		{
+			retval.add(new String[]{"" + i});
+		}
+
+		return retval;
+	}
+}
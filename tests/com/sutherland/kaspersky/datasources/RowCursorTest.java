@@ -0,0 +1,60 @@
+package com.sutherland.kaspersky.datasources;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Time;
+
+import org.junit.Test;
+
+/**
+ * Decoding of interval columns by RowCursor.getIntervalSeconds().
+ *
+ * @author Jason Diamond
+ *
+ */
+public class RowCursorTest
+{
+	private final static double DELTA = 1e-9;
+
+	@Test
+	public void readsTimeColumnsAsTimeOfDay() throws Exception
+	{
+		RowCursor rows = TestCursors.over(new Object[][]
+		{
+				{Time.valueOf("00:00:00")},
+				{Time.valueOf("01:02:03")},
+				{Time.valueOf("23:59:59")},
+				{new Time(Time.valueOf("00:00:10").getTime() + 250)}
+		});
+
+		rows.next();
+		assertEquals(0, rows.getIntervalSeconds(0), DELTA);
+		rows.next();
+		assertEquals(3723, rows.getIntervalSeconds(0), DELTA);
+		rows.next();
+		assertEquals(86399, rows.getIntervalSeconds(0), DELTA);
+		rows.next();
+		assertEquals(10.25, rows.getIntervalSeconds(0), DELTA);
+	}
+
+	@Test
+	public void readsTextColumnsAsIntervals() throws Exception
+	{
+		RowCursor rows = TestCursors.over(new Object[][]
+		{
+				{"01:02:03"},
+				{"100:00:00.5"},
+				{"not an interval"},
+				{null}
+		});
+
+		rows.next();
+		assertEquals(3723, rows.getIntervalSeconds(0), DELTA);
+		rows.next();
+		assertEquals(360000.5, rows.getIntervalSeconds(0), DELTA);
+		rows.next();
+		assertEquals(-1, rows.getIntervalSeconds(0), DELTA);
+		rows.next();
+		assertEquals(-1, rows.getIntervalSeconds(0), DELTA);
+	}
+}
@@ -0,0 +1,74 @@
+package com.sutherland.kaspersky.datasources;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+
+/**
+ * RowCursors over rows held in memory, for testing code that reads cursors without a database.
+ *
+ * @author Jason Diamond
+ *
+ */
+public final class TestCursors
+{
+	private TestCursors()
+	{}
+
+	/**
+	 * Build a cursor over fixed rows. Columns hold what the driver would return from getObject: Timestamps, Numbers, Strings or nulls.
+	 * The cursor has no connection, so it must not be closed.
+	 *
+	 * @param rows	The rows.
+	 *
+	 * @return	The cursor, before the first row.
+	 */
+	public static RowCursor over(final Object[][] rows)
+	{
+		InvocationHandler resultSet = new InvocationHandler()
+		{
+			private int row = -1;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				Object retval;
+
+				String name = method.getName();
+				if(name.equals("next"))
+				{
+					row++;
+					retval = row < rows.length;
+				}
+				else if(name.equals("getObject"))
+				{
+					retval = getColumn(args);
+				}
+				else if(name.equals("getString"))
+				{
+					Object value = getColumn(args);
+					retval = (value == null) ? null : value.toString();
+				}
+				else if(name.equals("getTimestamp"))
+				{
+					retval = (Timestamp)getColumn(args);
+				}
+				else
+				{
+					throw new UnsupportedOperationException(name);
+				}
+
+				return retval;
+			}
+
+			private Object getColumn(Object[] args)
+			{
+				return rows[row][(Integer)args[0] - 1];
+			}
+		};
+
+		return new RowCursor(null, "test", (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, resultSet), System.currentTimeMillis());
+	}
+}
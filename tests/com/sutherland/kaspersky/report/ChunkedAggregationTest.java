@@ -0,0 +1,131 @@
+package com.sutherland.kaspersky.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.sutherland.kaspersky.report.ChunkedAggregation.ChunkTask;
+
+/**
+ * Chunking, merge order and failures of ChunkedAggregation.
+ *
+ * @author Jason Diamond
+ *
+ */
+public class ChunkedAggregationTest
+{
+	@Test
+	public void aggregatesSmallRangesInTheCallingThread() throws SQLException
+	{
+		Chunks chunks = ChunkedAggregation.run(10, 10 + ChunkedAggregation.CHUNK_ROWS, new RecordChunks());
+
+		assertEquals(1, chunks.ranges.size());
+		assertSame(Thread.currentThread(), chunks.threads.get(0));
+	}
+
+	@Test
+	public void aggregatesAnEmptyRange() throws SQLException
+	{
+		Chunks chunks = ChunkedAggregation.run(5, 5, new RecordChunks());
+
+		assertEquals(1, chunks.ranges.size());
+		assertEquals(5, chunks.ranges.get(0)[0]);
+		assertEquals(5, chunks.ranges.get(0)[1]);
+	}
+
+	@Test
+	public void mergesEveryChunkInRowOrder() throws SQLException
+	{
+		for(int rowCount : new int[]{ChunkedAggregation.CHUNK_ROWS + 1, 5 * ChunkedAggregation.CHUNK_ROWS, 37 * ChunkedAggregation.CHUNK_ROWS + 123})
+		{
+			int fromRow = 7;
+			int toRow = fromRow + rowCount;
+
+			Chunks chunks = ChunkedAggregation.run(fromRow, toRow, new RecordChunks());
+
+			assertTrue(chunks.ranges.size() > 1);
+
+			//the merged chunks tile the range, in order, none larger than CHUNK_ROWS
+			int expectedFrom = fromRow;
+			for(int[] range : chunks.ranges)
+			{
+				assertEquals(expectedFrom, range[0]);
+				assertTrue(range[1] > range[0] && range[1] - range[0] <= ChunkedAggregation.CHUNK_ROWS);
+
+				expectedFrom = range[1];
+			}
+
+			assertEquals(toRow, expectedFrom);
+		}
+	}
+
+	@Test
+	public void throwsAChunksFailure()
+	{
+		final SQLException failure = new SQLException("row 70000 is unreadable");
+
+		ChunkTask<Chunks> task = new ChunkTask<Chunks>()
+		{
+			@Override
+			public Chunks aggregate(int fromRow, int toRow) throws SQLException
+			{
+				if(fromRow <= 70000 && 70000 < toRow)
+				{
+					throw failure;
+				}
+
+				return new Chunks(fromRow, toRow);
+			}
+		};
+
+		try
+		{
+			ChunkedAggregation.run(0, 10 * ChunkedAggregation.CHUNK_ROWS, task);
+			fail("a failed chunk was not reported");
+		}
+		catch(SQLException e)
+		{
+			assertSame(failure, e);
+		}
+	}
+
+	/**
+	 * Records each chunk's rows and thread.
+	 */
+	private final static class RecordChunks implements ChunkTask<Chunks>
+	{
+		@Override
+		public Chunks aggregate(int fromRow, int toRow)
+		{
+			return new Chunks(fromRow, toRow);
+		}
+	}
+
+	/**
+	 * The chunks merged so far, in merge order.
+	 */
+	private final static class Chunks implements Mergeable<Chunks>
+	{
+		private final ArrayList<int[]> ranges = new ArrayList<int[]>();
+		private final ArrayList<Thread> threads = new ArrayList<Thread>();
+
+		Chunks(int fromRow, int toRow)
+		{
+			ranges.add(new int[]{fromRow, toRow});
+			threads.add(Thread.currentThread());
+		}
+
+		@Override
+		public void merge(Chunks other)
+		{
+			ranges.addAll(other.ranges);
+			threads.addAll(other.threads);
+		}
+	}
+}
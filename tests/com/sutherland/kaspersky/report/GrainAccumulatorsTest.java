@@ -0,0 +1,158 @@
+package com.sutherland.kaspersky.report;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.sutherland.kaspersky.report.GrainAccumulators.Accumulator;
+
+/**
+ * Totals kept by GrainAccumulators, and merging partial tables as if their rows had been added to one.
+ *
+ * @author Jason Diamond
+ *
+ */
+public class GrainAccumulatorsTest
+{
+	private final static double DELTA = 1e-9;
+
+	private final static String[] GRAINS = new String[]{"Tier 2", "Tier 1", "Tier 2", "Tier 3", "Tier 1", "Tier 1", "Tier 2", "Tier 3"};
+
+	private final static double[] VALUES = new double[]{4, -1.5, 10, 0, 7, 2.25, -3, 8};
+
+	@Test
+	public void keepsCountSumSquaresAndExtremes()
+	{
+		Accumulator accumulator = new Accumulator();
+
+		accumulator.add(3);
+		accumulator.add(-2);
+		accumulator.add(5);
+
+		assertEquals(3, accumulator.getCount());
+		assertEquals(6, accumulator.getSum(), DELTA);
+		assertEquals(38, accumulator.getSumOfSquares(), DELTA);
+		assertEquals(-2, accumulator.getMin(), DELTA);
+		assertEquals(5, accumulator.getMax(), DELTA);
+		assertEquals(2, accumulator.getMean(), DELTA);
+	}
+
+	@Test
+	public void countsOccurrencesWithoutValues()
+	{
+		Accumulator accumulator = new Accumulator();
+
+		accumulator.increment();
+		accumulator.increment();
+
+		assertEquals(2, accumulator.getCount());
+		assertEquals(0, accumulator.getSum(), DELTA);
+		assertEquals(Double.POSITIVE_INFINITY, accumulator.getMin(), DELTA);
+		assertEquals(Double.NEGATIVE_INFINITY, accumulator.getMax(), DELTA);
+	}
+
+	@Test
+	public void reportsNoMeanForAnEmptyAccumulator()
+	{
+		assertEquals(0, new Accumulator().getMean(), DELTA);
+	}
+
+	@Test
+	public void keepsGrainsInTheOrderFirstSeen()
+	{
+		GrainAccumulators table = fill(0, GRAINS.length);
+
+		assertEquals(Arrays.asList("Tier 2", "Tier 1", "Tier 3"), new ArrayList<String>(table.getGrains()));
+	}
+
+	@Test
+	public void keepsMeasuresApart()
+	{
+		GrainAccumulators table = fill(0, GRAINS.length);
+
+		assertEquals(3, table.get("Tier 1", 0).getCount());
+		assertEquals(7.75, table.get("Tier 1", 0).getSum(), DELTA);
+		assertEquals(3, table.get("Tier 1", 1).getCount());
+		assertEquals(0, table.get("Tier 1", 1).getSum(), DELTA);
+	}
+
+	@Test
+	public void mergesPartialsAsOnePass()
+	{
+		GrainAccumulators onePass = fill(0, GRAINS.length);
+
+		//every split point, including empty partials at either end
+		for(int split = 0; split <= GRAINS.length; split++)
+		{
+			GrainAccumulators merged = fill(0, split);
+			merged.merge(fill(split, GRAINS.length));
+
+			assertEquals("split at " + split, new ArrayList<String>(onePass.getGrains()), new ArrayList<String>(merged.getGrains()));
+
+			for(String grain : onePass.getGrains())
+			{
+				for(int measure = 0; measure < 2; measure++)
+				{
+					assertSameTotals(onePass.get(grain, measure), merged.get(grain, measure));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void mergesInAnyGroupingOfAdjacentPartials()
+	{
+		GrainAccumulators left = fill(0, 3);
+		left.merge(fill(3, 5));
+		left.merge(fill(5, GRAINS.length));
+
+		GrainAccumulators right = fill(3, 5);
+		right.merge(fill(5, GRAINS.length));
+		GrainAccumulators grouped = fill(0, 3);
+		grouped.merge(right);
+
+		for(String grain : left.getGrains())
+		{
+			assertSameTotals(left.get(grain, 0), grouped.get(grain, 0));
+		}
+	}
+
+	@Test
+	public void leavesTheOtherTableUnchanged()
+	{
+		GrainAccumulators other = fill(4, GRAINS.length);
+
+		fill(0, 4).merge(other);
+
+		assertEquals(Arrays.asList("Tier 1", "Tier 2", "Tier 3"), new ArrayList<String>(other.getGrains()));
+		assertEquals(2, other.get("Tier 1", 0).getCount());
+	}
+
+	/**
+	 * Fill a table with rows [fromRow, toRow): measure 0 adds each row's value, measure 1 only counts it.
+	 */
+	private static GrainAccumulators fill(int fromRow, int toRow)
+	{
+		GrainAccumulators retval = new GrainAccumulators(2);
+
+		for(int row = fromRow; row < toRow; row++)
+		{
+			retval.get(GRAINS[row], 0).add(VALUES[row]);
+			retval.get(GRAINS[row], 1).increment();
+		}
+
+		return retval;
+	}
+
+	private static void assertSameTotals(Accumulator expected, Accumulator actual)
+	{
+		assertEquals(expected.getCount(), actual.getCount());
+		assertEquals(expected.getSum(), actual.getSum(), DELTA);
+		assertEquals(expected.getSumOfSquares(), actual.getSumOfSquares(), DELTA);
+		assertEquals(expected.getMin(), actual.getMin(), DELTA);
+		assertEquals(expected.getMax(), actual.getMax(), DELTA);
+	}
+}
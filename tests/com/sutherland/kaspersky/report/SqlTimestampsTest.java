@@ -0,0 +1,77 @@
+package com.sutherland.kaspersky.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+/**
+ * Parsing of SQL timestamp strings by SqlTimestamps.toEpochMillis(), against Timestamp.valueOf().
+ *
+ * @author Jason Diamond
+ *
+ */
+public class SqlTimestampsTest
+{
+	@Test
+	public void parsesEveryWallTimeOfAYearAsTimestampDoes()
+	{
+		//every quarter hour of a leap year and the days around it, including the wall times daylight saving skips or repeats
+		String sqlDate;
+		for(int year = 2015; year <= 2016; year++)
+		{
+			for(int month = 1; month <= 12; month++)
+			{
+				for(int day = 1; day <= daysInMonth(year, month); day++)
+				{
+					for(int minute = 0; minute < 24 * 60; minute += 15)
+					{
+						sqlDate = String.format("%04d-%02d-%02d %02d:%02d:%02d", year, month, day, minute / 60, minute % 60, minute % 60);
+
+						assertEquals(sqlDate, Timestamp.valueOf(sqlDate).getTime(), SqlTimestamps.toEpochMillis(sqlDate));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void keepsMillisOfFractionalSeconds()
+	{
+		for(String sqlDate : new String[]{"2015-06-30 23:59:59.9", "2015-06-30 23:59:59.12", "2015-06-30 23:59:59.123", "2015-06-30 23:59:59.1234567", "1999-12-31 00:00:00.0"})
+		{
+			assertEquals(sqlDate, Timestamp.valueOf(sqlDate).getTime(), SqlTimestamps.toEpochMillis(sqlDate));
+		}
+	}
+
+	@Test
+	public void rejectsOtherFormats()
+	{
+		for(String sqlDate : new String[]{"2015-06-30", "2015/06/30 10:00:00", "2015-06-30T10:00:00", "2015-06-30 10:00"})
+		{
+			try
+			{
+				SqlTimestamps.toEpochMillis(sqlDate);
+				fail("parsed " + sqlDate);
+			}
+			catch(IllegalArgumentException e)
+			{
+				//expected
+			}
+		}
+	}
+
+	private static int daysInMonth(int year, int month)
+	{
+		int retval = (month == 2) ? 28 : (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+
+		if(month == 2 && year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))
+		{
+			retval = 29;
+		}
+
+		return retval;
+	}
+}
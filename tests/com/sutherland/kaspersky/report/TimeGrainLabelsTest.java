@@ -0,0 +1,70 @@
+package com.sutherland.kaspersky.report;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+import com.sutherland.helios.date.formatting.DateFormatter;
+
+/**
+ * Labels from TimeGrainLabels against formatting every time with DateFormatter, as the reports did before.
+ *
+ * @author Jason Diamond
+ *
+ */
+public class TimeGrainLabelsTest
+{
+	/**
+	 * The grain and format codes belong to Helios, so every small code is tried and those Helios does not format are passed over.
+	 */
+	private final static int MAX_CODE = 12;
+
+	private final static long STEP_MILLIS = 7 * 60 * 1000 + 13 * 1000;
+
+	@Test
+	public void labelsMatchFormattingEveryTime()
+	{
+		//a spring and an autumn daylight saving change in most zones that have one, walked in time order and then backwards
+		long[][] ranges = new long[][]
+		{
+				{Timestamp.valueOf("2015-03-07 00:00:00").getTime(), Timestamp.valueOf("2015-04-06 00:00:00").getTime()},
+				{Timestamp.valueOf("2015-10-24 00:00:00").getTime(), Timestamp.valueOf("2015-11-02 00:00:00").getTime()}
+		};
+
+		TimeGrainLabels labels;
+		GregorianCalendar date = new GregorianCalendar();
+
+		for(int timeGrain = 0; timeGrain <= MAX_CODE; timeGrain++)
+		{
+			for(int dateFormat = 0; dateFormat <= MAX_CODE; dateFormat++)
+			{
+				try
+				{
+					labels = new TimeGrainLabels(timeGrain, dateFormat);
+				}
+				catch(RuntimeException e)
+				{
+					continue;
+				}
+
+				for(long[] range : ranges)
+				{
+					for(long time = range[0]; time < range[1]; time += STEP_MILLIS)
+					{
+						date.setTimeInMillis(time);
+						assertEquals(timeGrain + "/" + dateFormat + " at " + new Timestamp(time), DateFormatter.getFormattedDate(date, timeGrain, dateFormat), labels.getLabel(time));
+					}
+
+					for(long time = range[1] - 1; time >= range[0]; time -= STEP_MILLIS)
+					{
+						date.setTimeInMillis(time);
+						assertEquals(timeGrain + "/" + dateFormat + " at " + new Timestamp(time), DateFormatter.getFormattedDate(date, timeGrain, dateFormat), labels.getLabel(time));
+					}
+				}
+			}
+		}
+	}
+}
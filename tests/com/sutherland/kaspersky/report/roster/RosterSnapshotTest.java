@@ -0,0 +1,162 @@
+package com.sutherland.kaspersky.report.roster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips of roster snapshots through write() and read(), and the snapshot's indexes.
+ *
+ * @author Jason Diamond
+ *
+ */
+public class RosterSnapshotTest
+{
+	private File file;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		file = File.createTempFile("roster", ".snap");
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void roundTripsEveryField() throws IOException
+	{
+		RosterSnapshot written = snapshot();
+		written.write(file);
+
+		RosterSnapshot read = RosterSnapshot.read(file);
+
+		assertEquals(written.getSize(), read.getSize());
+
+		RosterRecord expected, actual;
+		for(int ordinal = 0; ordinal < written.getSize(); ordinal++)
+		{
+			expected = written.getRecords().get(ordinal);
+			actual = read.getRecords().get(ordinal);
+
+			assertEquals(expected.getNodeID(), actual.getNodeID());
+			assertEquals(expected.getParentID(), actual.getParentID());
+			assertEquals(expected.getTeam(), actual.getTeam());
+			assertEquals(expected.getName(), actual.getName());
+			assertEquals(expected.getEmail(), actual.getEmail());
+			assertEquals(expected.getDescription(), actual.getDescription());
+			assertEquals(expected.getStatus(), actual.getStatus());
+			assertEquals(expected.getType(), actual.getType());
+			assertEquals(expected.getFingerprint(), actual.getFingerprint());
+		}
+	}
+
+	@Test
+	public void roundTripsAnEmptyRoster() throws IOException
+	{
+		new RosterSnapshot(new ArrayList<RosterRecord>()).write(file);
+
+		assertEquals(0, RosterSnapshot.read(file).getSize());
+	}
+
+	@Test
+	public void keepsOneCopyOfRepeatedValues() throws IOException
+	{
+		snapshot().write(file);
+
+		RosterSnapshot read = RosterSnapshot.read(file);
+
+		assertSame(read.getRecords().get(0).getTeam(), read.getRecords().get(2).getTeam());
+		assertSame(read.getRecords().get(0).getStatus(), read.getRecords().get(1).getStatus());
+	}
+
+	@Test
+	public void rejectsAFileThatIsNotASnapshot() throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try
+		{
+			out.writeInt(0x12345678);
+			out.writeInt(1);
+			out.writeInt(0);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		try
+		{
+			RosterSnapshot.read(file);
+			fail("read a file without the snapshot header");
+		}
+		catch(IOException e)
+		{
+			//expected
+		}
+	}
+
+	@Test
+	public void indexesRecords()
+	{
+		RosterSnapshot snapshot = snapshot();
+
+		assertEquals(1, snapshot.getOrdinal("200"));
+		assertEquals(-1, snapshot.getOrdinal("999"));
+		assertEquals("Bea Ng", snapshot.getRecord("200").getName());
+
+		assertEquals(Arrays.asList("Tier 1", "Tier 2"), new ArrayList<String>(snapshot.getTeams()));
+		assertEquals(2, snapshot.getTeamRecords("Tier 1").size());
+		assertEquals(0, snapshot.getTeamRecords("Tier 3").size());
+
+		assertEquals("100", snapshot.findByName("Ann Lee").getNodeID());
+		assertNull(snapshot.findByName("Nobody"));
+	}
+
+	@Test
+	public void findsEmailsInAnyCaseAndLocale()
+	{
+		Locale defaultLocale = Locale.getDefault();
+		try
+		{
+			//Turkish lower-cases I to a dotless i, which must not change the keys
+			Locale.setDefault(new Locale("tr", "TR"));
+
+			RosterSnapshot snapshot = snapshot();
+
+			assertEquals("300", snapshot.findByEmail("IAN.KAY@EXAMPLE.COM").getNodeID());
+			assertEquals("300", snapshot.findByEmail("ian.kay@example.com").getNodeID());
+		}
+		finally
+		{
+			Locale.setDefault(defaultLocale);
+		}
+	}
+
+	private static RosterSnapshot snapshot()
+	{
+		ArrayList<RosterRecord> records = new ArrayList<RosterRecord>();
+
+		records.add(new RosterRecord("100", "10982630", "Tier 1", "Ann Lee", "ann.lee@example.com", "", "enabled", "Technician"));
+		records.add(new RosterRecord("200", "10982630", "Tier 2", "Bea Ng", "bea.ng@example.com", "Night shift", "enabled", "Technician"));
+		records.add(new RosterRecord("300", "10982630", "Tier 1", "Ian Kay", "Ian.Kay@Example.com", "\u00dcn\u00efc\u00f8d\u00e9", "disabled", "Technician"));
+
+		return new RosterSnapshot(records);
+	}
+}
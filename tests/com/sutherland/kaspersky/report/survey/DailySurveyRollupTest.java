@@ -0,0 +1,426 @@
+package com.sutherland.kaspersky.report.survey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sutherland.kaspersky.datasources.RowCursor;
+import com.sutherland.kaspersky.datasources.TestCursors;
+import com.sutherland.kaspersky.report.IngestWatermark;
+import com.sutherland.kaspersky.report.survey.DailySurveyRollup.DayLoader;
+import com.sutherland.kaspersky.report.survey.DailySurveyRollup.DayReader;
+
+/**
+ * Claiming, loading, publishing and trimming the days held by DailySurveyRollup, and counting ingested surveys into them once each.
+ *
+ * @author Jason Diamond
+ *
+ */
+public class DailySurveyRollupTest
+{
+	private final static long MARK = Timestamp.valueOf("2015-06-30 12:00:00").getTime();
+
+	private final static long MINUTE_MILLIS = 60 * 1000;
+
+	@Before
+	public void setUp()
+	{
+		//drops every day held, so each test starts from an empty rollup with ingestion running
+		DailySurveyRollup.startIngest(MARK);
+	}
+
+	@Test
+	public void loadsAMissingRangeOnceAndHoldsIt() throws SQLException
+	{
+		RecordLoads loader = new RecordLoads();
+
+		assertEquals(3, read(day(1), day(4), loader).size());
+		assertEquals(3, read(day(1), day(4), loader).size());
+
+		assertEquals(1, loader.loads.size());
+		assertEquals(day(1), loader.loads.get(0)[0]);
+		assertEquals(day(4), loader.loads.get(0)[1]);
+	}
+
+	@Test
+	public void loadsOnlyTheRunsOfDaysNotHeld() throws SQLException
+	{
+		RecordLoads loader = new RecordLoads();
+
+		read(day(2), day(3), loader);
+		read(day(4), day(5), loader);
+		loader.loads.clear();
+
+		assertEquals(6, read(day(1), day(7), loader).size());
+
+		assertEquals(3, loader.loads.size());
+		assertEquals(day(1), loader.loads.get(0)[0]);
+		assertEquals(day(2), loader.loads.get(0)[1]);
+		assertEquals(day(3), loader.loads.get(1)[0]);
+		assertEquals(day(4), loader.loads.get(1)[1]);
+		assertEquals(day(5), loader.loads.get(2)[0]);
+		assertEquals(day(7), loader.loads.get(2)[1]);
+	}
+
+	@Test
+	public void loadsUpToTheSettledPoint() throws SQLException
+	{
+		RecordLoads loader = new RecordLoads();
+
+		read(day(1), day(2), loader);
+
+		assertEquals(MARK - IngestWatermark.INGEST_LAG_MILLIS, loader.loads.get(0)[2]);
+	}
+
+	@Test
+	public void publishesTheLoadedTotals() throws SQLException
+	{
+		final SurveyTotals loaded = new SurveyTotals();
+		loaded.addSurvey(new SurveyRecord(null));
+		loaded.addSurvey(new SurveyRecord(null));
+
+		DayLoader loader = new DayLoader()
+		{
+			@Override
+			public TreeMap<Long, HashMap<String, SurveyTotals>> load(Timestamp startDate, Timestamp endDate, Timestamp surveysEnd)
+			{
+				TreeMap<Long, HashMap<String, SurveyTotals>> retval = new TreeMap<Long, HashMap<String, SurveyTotals>>();
+
+				retval.put(startDate.getTime(), new HashMap<String, SurveyTotals>());
+				retval.get(startDate.getTime()).put("100", loaded);
+
+				return retval;
+			}
+		};
+
+		TreeMap<Long, HashMap<String, SurveyTotals>> held = read(day(1), day(3), loader);
+
+		assertEquals(2, held.get(day(1)).get("100").getSurveys());
+		assertTrue(held.get(day(2)).isEmpty());
+	}
+
+	@Test
+	public void releasesTheClaimsOfAFailedLoad() throws SQLException
+	{
+		DayLoader failing = new DayLoader()
+		{
+			@Override
+			public TreeMap<Long, HashMap<String, SurveyTotals>> load(Timestamp startDate, Timestamp endDate, Timestamp surveysEnd) throws SQLException
+			{
+				throw new SQLException("survey table is unreadable");
+			}
+		};
+
+		try
+		{
+			read(day(1), day(3), failing);
+			fail("a failed load was not reported");
+		}
+		catch(SQLException e)
+		{
+			//expected
+		}
+
+		RecordLoads loader = new RecordLoads();
+		assertEquals(2, read(day(1), day(3), loader).size());
+		assertEquals(1, loader.loads.size());
+	}
+
+	@Test
+	public void waitsForAnotherReportsLoad() throws Exception
+	{
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final RecordLoads blocking = new RecordLoads()
+		{
+			@Override
+			public TreeMap<Long, HashMap<String, SurveyTotals>> load(Timestamp startDate, Timestamp endDate, Timestamp surveysEnd) throws SQLException
+			{
+				loading.countDown();
+
+				try
+				{
+					release.await();
+				}
+				catch(InterruptedException e)
+				{
+					throw new SQLException(e);
+				}
+
+				return super.load(startDate, endDate, surveysEnd);
+			}
+		};
+
+		final ArrayList<Throwable> failures = new ArrayList<Throwable>();
+		Thread first = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					read(day(1), day(3), blocking);
+				}
+				catch(Throwable e)
+				{
+					failures.add(e);
+				}
+			}
+		};
+		first.start();
+
+		assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+		final RecordLoads second = new RecordLoads();
+		final CountDownLatch secondRead = new CountDownLatch(1);
+		Thread waiting = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					read(day(2), day(3), second);
+					secondRead.countDown();
+				}
+				catch(Throwable e)
+				{
+					failures.add(e);
+				}
+			}
+		};
+		waiting.start();
+
+		//the second report needs a day the first is loading, so it reads nothing until the load is published
+		assertFalse(secondRead.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		first.join(10000);
+		waiting.join(10000);
+
+		assertTrue(failures.isEmpty());
+		assertEquals(0, secondRead.getCount());
+		assertEquals(1, blocking.loads.size());
+		assertEquals(0, second.loads.size());
+	}
+
+	@Test
+	public void dropsTheEarliestDaysPastTheLimit() throws SQLException
+	{
+		RecordLoads loader = new RecordLoads();
+
+		read(day(0), day(DailySurveyRollup.MAX_DAYS), loader);
+		read(day(DailySurveyRollup.MAX_DAYS), day(DailySurveyRollup.MAX_DAYS + 5), loader);
+		loader.loads.clear();
+
+		//the latest days read are held, the five earliest were dropped to make room
+		read(day(5), day(DailySurveyRollup.MAX_DAYS + 5), loader);
+		assertEquals(0, loader.loads.size());
+
+		read(day(4), day(5), loader);
+		assertEquals(1, loader.loads.size());
+	}
+
+	@Test
+	public void countsEachIngestedSurveyOnce() throws SQLException
+	{
+		readDay(MARK, new RecordLoads());
+
+		assertEquals(MARK + MINUTE_MILLIS, DailySurveyRollup.addSurveys(surveys(MARK - 5 * MINUTE_MILLIS, MARK + MINUTE_MILLIS), MARK));
+		assertEquals(2, getSurveys());
+
+		//the next poll reads the lag window again, with one new survey
+		assertEquals(MARK + 2 * MINUTE_MILLIS, DailySurveyRollup.addSurveys(surveys(MARK - 5 * MINUTE_MILLIS, MARK + MINUTE_MILLIS, MARK + 2 * MINUTE_MILLIS), MARK + MINUTE_MILLIS));
+		assertEquals(3, getSurveys());
+	}
+
+	@Test
+	public void countsSurveysSharingATimeApart() throws SQLException
+	{
+		readDay(MARK, new RecordLoads());
+
+		DailySurveyRollup.addSurveys(TestCursors.over(new Object[][]
+		{
+				survey(MARK + MINUTE_MILLIS, "S1"),
+				survey(MARK + MINUTE_MILLIS, "S2")
+		}), MARK);
+
+		assertEquals(2, getSurveys());
+	}
+
+	@Test
+	public void skipsSurveysUpToTheSettledPoint() throws SQLException
+	{
+		readDay(MARK, new RecordLoads());
+
+		long settled = MARK - IngestWatermark.INGEST_LAG_MILLIS;
+		DailySurveyRollup.addSurveys(surveys(settled - 1, settled, settled + 1), MARK);
+
+		assertEquals(1, getSurveys());
+	}
+
+	@Test
+	public void neverCountsASettledSurveyAgain() throws SQLException
+	{
+		readDay(MARK, new RecordLoads());
+
+		long later = MARK + IngestWatermark.INGEST_LAG_MILLIS + MINUTE_MILLIS;
+
+		DailySurveyRollup.addSurveys(surveys(MARK + MINUTE_MILLIS), MARK);
+
+		//settles past the first survey, which is then forgotten, but still not counted again
+		DailySurveyRollup.addSurveys(surveys(MARK + MINUTE_MILLIS, later), MARK + MINUTE_MILLIS);
+		DailySurveyRollup.addSurveys(surveys(MARK + MINUTE_MILLIS, later), later);
+
+		assertEquals(2, getSurveys());
+	}
+
+	@Test
+	public void leavesDaysNotHeldToTheirLoad() throws SQLException
+	{
+		DailySurveyRollup.addSurveys(surveys(MARK + MINUTE_MILLIS), MARK);
+
+		RecordLoads loader = new RecordLoads();
+		assertTrue(readDay(MARK, loader).isEmpty());
+		assertEquals(1, loader.loads.size());
+	}
+
+	@Test
+	public void countsIngestedSurveysIntoADayStillLoading() throws SQLException
+	{
+		DayLoader loader = new DayLoader()
+		{
+			@Override
+			public TreeMap<Long, HashMap<String, SurveyTotals>> load(Timestamp startDate, Timestamp endDate, Timestamp surveysEnd) throws SQLException
+			{
+				//a poll lands while the day loads, after the settled point the load stops at
+				DailySurveyRollup.addSurveys(surveys(MARK + MINUTE_MILLIS), MARK);
+
+				SurveyTotals loaded = new SurveyTotals();
+				loaded.addSurvey(new SurveyRecord(null));
+
+				TreeMap<Long, HashMap<String, SurveyTotals>> retval = new TreeMap<Long, HashMap<String, SurveyTotals>>();
+				retval.put(startDate.getTime(), new HashMap<String, SurveyTotals>());
+				retval.get(startDate.getTime()).put("100", loaded);
+
+				return retval;
+			}
+		};
+
+		assertEquals(2, readDay(MARK, loader).get("100").getSurveys());
+	}
+
+	/**
+	 * Midnight of a day counted from 2015-01-01.
+	 */
+	private static long day(int dayNumber)
+	{
+		GregorianCalendar retval = new GregorianCalendar(2015, GregorianCalendar.JANUARY, 1);
+		retval.add(GregorianCalendar.DAY_OF_MONTH, dayNumber);
+
+		return retval.getTimeInMillis();
+	}
+
+	/**
+	 * A cursor over technician 100's surveys, one per time, each in a session of its own, ordered by Date as the ingest query orders them.
+	 */
+	private static RowCursor surveys(long... times)
+	{
+		Object[][] rows = new Object[times.length][];
+
+		for(int i = 0; i < times.length; i++)
+		{
+			rows[i] = survey(times[i], "S" + times[i]);
+		}
+
+		return TestCursors.over(rows);
+	}
+
+	private static Object[] survey(long time, String sessionID)
+	{
+		return new Object[]{new Timestamp(time), "100", sessionID, "Customer", "Ann Lee", 9, 8, 10, 7, ""};
+	}
+
+	/**
+	 * The surveys held for technician 100 on the mark's day.
+	 */
+	private static int getSurveys() throws SQLException
+	{
+		SurveyTotals totals = readDay(MARK, new RecordLoads()).get("100");
+
+		return (totals == null) ? 0 : totals.getSurveys();
+	}
+
+	/**
+	 * Read the day of a time.
+	 *
+	 * @return	Technician => totals for the day.
+	 */
+	private static HashMap<String, SurveyTotals> readDay(long time, DayLoader loader) throws SQLException
+	{
+		GregorianCalendar day = new GregorianCalendar();
+		day.setTimeInMillis(time);
+		day.set(GregorianCalendar.HOUR_OF_DAY, 0);
+		day.set(GregorianCalendar.MINUTE, 0);
+		day.set(GregorianCalendar.SECOND, 0);
+		day.set(GregorianCalendar.MILLISECOND, 0);
+
+		long startDay = day.getTimeInMillis();
+		day.add(GregorianCalendar.DAY_OF_MONTH, 1);
+
+		return read(startDay, day.getTimeInMillis(), loader).get(startDay);
+	}
+
+	/**
+	 * Read a range, copying out the days held for it.
+	 */
+	private static TreeMap<Long, HashMap<String, SurveyTotals>> read(long startDay, long endDay, DayLoader loader) throws SQLException
+	{
+		final TreeMap<Long, HashMap<String, SurveyTotals>> retval = new TreeMap<Long, HashMap<String, SurveyTotals>>();
+
+		DailySurveyRollup.readDays(startDay, endDay, loader, new DayReader()
+		{
+			@Override
+			public void read(SortedMap<Long, HashMap<String, SurveyTotals>> rangeDays)
+			{
+				retval.putAll(rangeDays);
+			}
+		});
+
+		return retval;
+	}
+
+	/**
+	 * Records each load's start, end and surveys end, and loads no surveys.
+	 */
+	private static class RecordLoads implements DayLoader
+	{
+		private final ArrayList<long[]> loads = new ArrayList<long[]>();
+
+		@Override
+		public TreeMap<Long, HashMap<String, SurveyTotals>> load(Timestamp startDate, Timestamp endDate, Timestamp surveysEnd) throws SQLException
+		{
+			synchronized(loads)
+			{
+				loads.add(new long[]{startDate.getTime(), endDate.getTime(), surveysEnd.getTime()});
+			}
+
+			return new TreeMap<Long, HashMap<String, SurveyTotals>>();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.sutherland.kaspersky.report.survey;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+import com.sutherland.kaspersky.datasources.RowCursor;
+import com.sutherland.kaspersky.datasources.TestCursors;
+
+/**
+ * Decoding survey rows from a cursor into SurveyRecord.
+ *
+ * @author Jason Diamond
+ *
+ */
+public class SurveyRecordTest
+{
+	private final static Timestamp SURVEY_TIME = Timestamp.valueOf("2015-03-02 10:15:00");
+
+	@Test
+	public void decodesTheCommonColumns() throws Exception
+	{
+		SurveyRecord survey = load(new Object[]{SURVEY_TIME, "100", "S1", "Customer", "Ann Lee", 9, null, "", 7, "Thanks"});
+
+		assertEquals(SURVEY_TIME.getTime(), survey.getSurveyTime());
+		assertEquals("100", survey.getTechnicianID());
+		assertEquals(9, survey.getAnswer(1));
+		assertEquals(RowCursor.NULL_INT, survey.getAnswer(2));
+		assertEquals(RowCursor.NULL_INT, survey.getAnswer(3));
+		assertEquals(7, survey.getAnswer(4));
+		assertEquals("S1", survey.getSessionID());
+	}
+
+	@Test
+	public void readsAnAnswerOutsideAByteAsBlank() throws Exception
+	{
+		SurveyRecord survey = load(new Object[]{SURVEY_TIME, "100", "S1", "Customer", "Ann Lee", 300, 8, Byte.MIN_VALUE, 7, ""});
+
+		assertEquals(RowCursor.NULL_INT, survey.getAnswer(1));
+		assertEquals(8, survey.getAnswer(2));
+		assertEquals(RowCursor.NULL_INT, survey.getAnswer(3));
+		assertEquals(7, survey.getAnswer(4));
+	}
+
+	@Test
+	public void copiesTheCommonColumns() throws Exception
+	{
+		SurveyRecord survey = load(new Object[]{SURVEY_TIME, "100", "S1", "Customer", "Ann Lee", 1, 2, 3, 4, ""});
+		SurveyRecord copy = survey.copy();
+
+		assertEquals(survey.getSurveyTime(), copy.getSurveyTime());
+		assertEquals(survey.getTechnicianID(), copy.getTechnicianID());
+		assertEquals(survey.getPackedAnswers(), copy.getPackedAnswers());
+	}
+
+	private static SurveyRecord load(Object[] row) throws Exception
+	{
+		RowCursor rows = TestCursors.over(new Object[][]{row});
+		rows.next();
+
+		SurveyRecord retval = new SurveyRecord(rows);
+		retval.load();
+
+		return retval;
+	}
+}
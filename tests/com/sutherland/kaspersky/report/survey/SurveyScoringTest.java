@@ -0,0 +1,226 @@
+package com.sutherland.kaspersky.report.survey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+import com.sutherland.kaspersky.datasources.RowCursor;
+
+/**
+ * Packing of survey answers, and scores from SurveyScoring against the question logic the survey reports each used to carry.
+ *
+ * @author Jason Diamond
+ *
+ */
+public class SurveyScoringTest
+{
+	private final static double DELTA = 1e-12;
+
+	/**
+	 * Answers tried for each question: blank, the ends of both scales, and values in between.
+	 */
+	private final static int[] ANSWERS = new int[]{RowCursor.NULL_INT, 0, 1, 3, 5, 7, 10};
+
+	private final static long[] SURVEY_TIMES = new long[]
+	{
+			Timestamp.valueOf("2014-06-01 09:00:00").getTime(),
+			SurveyScoring.SCORING_CHANGE_DATE - 1,
+			SurveyScoring.SCORING_CHANGE_DATE,
+			Timestamp.valueOf("2015-06-01 09:00:00").getTime()
+	};
+
+	@Test
+	public void packsAndUnpacksEveryAnswer()
+	{
+		int[] answers;
+		for(int answer = Byte.MIN_VALUE + 1; answer <= Byte.MAX_VALUE; answer++)
+		{
+			answers = new int[]{answer, RowCursor.NULL_INT, -answer, 10};
+
+			int packed = pack(answers);
+
+			for(int question = 1; question <= 4; question++)
+			{
+				assertEquals(answers[question - 1], SurveyScoring.unpackAnswer(packed, question));
+			}
+		}
+	}
+
+	@Test
+	public void rejectsAnswersOutsideAByte()
+	{
+		assertTrue(SurveyScoring.isPackable(RowCursor.NULL_INT));
+		assertTrue(SurveyScoring.isPackable(Byte.MIN_VALUE + 1));
+		assertTrue(SurveyScoring.isPackable(Byte.MAX_VALUE));
+
+		for(int answer : new int[]{Byte.MIN_VALUE, Byte.MAX_VALUE + 1, 1000})
+		{
+			assertFalse(SurveyScoring.isPackable(answer));
+
+			try
+			{
+				SurveyScoring.packAnswer(answer);
+				fail("packed " + answer);
+			}
+			catch(IllegalArgumentException e)
+			{
+				//expected
+			}
+		}
+	}
+
+	@Test
+	public void scoresCSATRateAsBefore()
+	{
+		for(long surveyTime : SURVEY_TIMES)
+		{
+			for(int[] answers : everyAnswerCombination())
+			{
+				int score = SurveyScoring.CSAT_RATE.score(surveyTime, pack(answers));
+
+				int[] expected = scoreCSATRate(surveyTime, answers);
+
+				assertEquals(expected[0], SurveyScoring.getPoints(score));
+				assertEquals(expected[1], SurveyScoring.getMaxPoints(score));
+				assertEquals((expected[1] == 0) ? 0.0 : (double)expected[0] / (double)expected[1], SurveyScoring.getRate(score), DELTA);
+			}
+		}
+	}
+
+	@Test
+	public void scoresEveryQuestionOutOfTen()
+	{
+		for(long surveyTime : SURVEY_TIMES)
+		{
+			for(int[] answers : everyAnswerCombination())
+			{
+				int score = SurveyScoring.TEN_POINT.score(surveyTime, pack(answers));
+
+				int points = 0, maxPoints = 0;
+				for(int answer : answers)
+				{
+					if(answer != RowCursor.NULL_INT)
+					{
+						points += answer;
+						maxPoints += 10;
+					}
+				}
+
+				assertEquals(points, SurveyScoring.getPoints(score));
+				assertEquals(maxPoints, SurveyScoring.getMaxPoints(score));
+			}
+		}
+	}
+
+	@Test
+	public void scoresNegativePointsTotals()
+	{
+		int score = SurveyScoring.TEN_POINT.score(0, pack(new int[]{-5, -7, RowCursor.NULL_INT, 2}));
+
+		assertEquals(-10, SurveyScoring.getPoints(score));
+		assertEquals(30, SurveyScoring.getMaxPoints(score));
+	}
+
+	@Test
+	public void picksTheRuleInEffectAtTheSurveyTime()
+	{
+		SurveyScoring scoring = new SurveyScoring(new long[]{Long.MIN_VALUE, 1000, 2000}, new int[][]{{1, 1, 1, 1}, {2, 2, 2, 2}, {3, 3, 3, 3}});
+
+		int answers = pack(new int[]{1, 1, 1, 1});
+
+		assertEquals(4, SurveyScoring.getMaxPoints(scoring.score(999, answers)));
+		assertEquals(8, SurveyScoring.getMaxPoints(scoring.score(1000, answers)));
+		assertEquals(8, SurveyScoring.getMaxPoints(scoring.score(1999, answers)));
+		assertEquals(12, SurveyScoring.getMaxPoints(scoring.score(2000, answers)));
+	}
+
+	@Test
+	public void rejectsMalformedRules()
+	{
+		long[][] effectiveFrom = new long[][]{{}, {0, 0}, {5, 1}, {0}};
+		int[][][] maxPoints = new int[][][]{{}, {{1, 1, 1, 1}, {1, 1, 1, 1}}, {{1, 1, 1, 1}, {1, 1, 1, 1}}, {{1, 1, 1}}};
+
+		for(int i = 0; i < effectiveFrom.length; i++)
+		{
+			try
+			{
+				new SurveyScoring(effectiveFrom[i], maxPoints[i]);
+				fail("built scoring rules " + i);
+			}
+			catch(IllegalArgumentException e)
+			{
+				//expected
+			}
+		}
+	}
+
+	/**
+	 * The CSAT rate scoring LMICSATRate carried before SurveyScoring: Q1, Q2 and Q4 out of 10 points before the scoring change and 5 from
+	 * it on, Q3 always out of 10, and blank questions left out.
+	 *
+	 * @return	{points, max points}
+	 */
+	private static int[] scoreCSATRate(long surveyTime, int[] answers)
+	{
+		int surveyPoints = 0;
+		int maxPoints = 0;
+
+		for(int question = 0; question < 4; question++)
+		{
+			if(answers[question] != RowCursor.NULL_INT)
+			{
+				surveyPoints += answers[question];
+
+				if(question == 2 || surveyTime < SurveyScoring.SCORING_CHANGE_DATE)
+				{
+					maxPoints += 10;
+				}
+				else
+				{
+					maxPoints += 5;
+				}
+			}
+		}
+
+		return new int[]{surveyPoints, maxPoints};
+	}
+
+	private static int[][] everyAnswerCombination()
+	{
+		int[][] retval = new int[ANSWERS.length * ANSWERS.length * ANSWERS.length * ANSWERS.length][];
+
+		int combination = 0;
+		for(int q1 : ANSWERS)
+		{
+			for(int q2 : ANSWERS)
+			{
+				for(int q3 : ANSWERS)
+				{
+					for(int q4 : ANSWERS)
+					{
+						retval[combination++] = new int[]{q1, q2, q3, q4};
+					}
+				}
+			}
+		}
+
+		return retval;
+	}
+
+	private static int pack(int[] answers)
+	{
+		int retval = 0;
+
+		for(int answer : answers)
+		{
+			retval = (retval << 8) | SurveyScoring.packAnswer(answer);
+		}
+
+		return retval;
+	}
+}
@@ -0,0 +1,148 @@
+package com.sutherland.kaspersky.report.survey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Timestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sutherland.kaspersky.datasources.RowCursor;
+import com.sutherland.kaspersky.datasources.TestCursors;
+
+/**
+ * Round trips of survey snapshots through write() and open().
+ *
+ * @author Jason Diamond
+ *
+ */
+public class SurveySnapshotTest
+{
+	private final static long START = Timestamp.valueOf("2015-03-01 00:00:00").getTime();
+	private final static long END = Timestamp.valueOf("2015-04-01 00:00:00").getTime();
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		file = File.createTempFile("survey", ".snap");
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void roundTripsEveryColumn() throws Exception
+	{
+		Object[][] rows = new Object[][]
+		{
+				{new Timestamp(START + 1000), "100", 10, 9, 8, 7},
+				{new Timestamp(START + 2000), "200", null, "", 0, 5},
+				{new Timestamp(START + 2000), "100", -3, 127, null, 10}
+		};
+
+		SurveySnapshot.write(file, START, END, TestCursors.over(rows));
+		SurveySnapshot snapshot = SurveySnapshot.open(file);
+
+		assertEquals(START, snapshot.getStart());
+		assertEquals(END, snapshot.getEnd());
+		assertEquals(rows.length, snapshot.getRowCount());
+
+		SurveyRecord survey = new SurveyRecord(null);
+		for(int row = 0; row < rows.length; row++)
+		{
+			survey.load(snapshot, row);
+
+			assertEquals(((Timestamp)rows[row][0]).getTime(), survey.getSurveyTime());
+			assertEquals(rows[row][1], survey.getTechnicianID());
+
+			for(int question = 1; question <= 4; question++)
+			{
+				Object answer = rows[row][1 + question];
+				int expected = (answer == null || answer.equals("")) ? RowCursor.NULL_INT : (Integer)answer;
+
+				assertEquals(expected, survey.getAnswer(question));
+			}
+		}
+	}
+
+	@Test
+	public void roundTripsAnEmptyMonth() throws Exception
+	{
+		SurveySnapshot.write(file, START, END, TestCursors.over(new Object[0][]));
+
+		assertEquals(0, SurveySnapshot.open(file).getRowCount());
+	}
+
+	@Test
+	public void findsRowsByTime() throws Exception
+	{
+		Object[][] rows = new Object[][]
+		{
+				{new Timestamp(START + 1000), "100", 1, 1, 1, 1},
+				{new Timestamp(START + 2000), "100", 1, 1, 1, 1},
+				{new Timestamp(START + 2000), "100", 1, 1, 1, 1},
+				{new Timestamp(START + 3000), "100", 1, 1, 1, 1}
+		};
+
+		SurveySnapshot.write(file, START, END, TestCursors.over(rows));
+		SurveySnapshot snapshot = SurveySnapshot.open(file);
+
+		assertEquals(0, snapshot.findRow(START));
+		assertEquals(1, snapshot.findRow(START + 2000));
+		assertEquals(3, snapshot.findRow(START + 2500));
+		assertEquals(4, snapshot.findRow(END));
+	}
+
+	@Test
+	public void rejectsATruncatedFile() throws Exception
+	{
+		SurveySnapshot.write(file, START, END, TestCursors.over(new Object[][]{{new Timestamp(START), "100", 1, 2, 3, 4}}));
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try
+		{
+			out.setLength(out.length() - 1);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		try
+		{
+			SurveySnapshot.open(file);
+			fail("Opened a truncated snapshot");
+		}
+		catch(IOException e)
+		{
+			//expected
+		}
+	}
+
+	@Test
+	public void storesAnAnswerOutsideAByteAsBlank() throws Exception
+	{
+		SurveySnapshot.write(file, START, END, TestCursors.over(new Object[][]{{new Timestamp(START), "100", 1, 2, 300, 4}, {new Timestamp(START + 1000), "100", 1, 2, 3, 4}}));
+		SurveySnapshot snapshot = SurveySnapshot.open(file);
+
+		assertEquals(2, snapshot.getRowCount());
+
+		SurveyRecord survey = new SurveyRecord(null);
+		survey.load(snapshot, 0);
+
+		assertEquals(1, survey.getAnswer(1));
+		assertEquals(2, survey.getAnswer(2));
+		assertEquals(RowCursor.NULL_INT, survey.getAnswer(3));
+		assertEquals(4, survey.getAnswer(4));
+	}
+}